@@ -0,0 +1,325 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server;
+
+import com.mastfrog.settings.Settings;
+import static com.mastfrog.signup.server.SignupServer.DEFAULT_RESPONSE_MAX_BUFFERED;
+import static com.mastfrog.signup.server.SignupServer.SETTINGS_KEY_RESPONSE_MAX_BUFFERED;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.FileRegion;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes a chunked response body a piece at a time, only as fast as the
+ * client reads it. Pieces are produced while the channel is writable and
+ * this response has less than <code>admin.response.max.buffered</code>
+ * bytes written but not yet sent; otherwise writing pauses until a write
+ * completes or the channel becomes writable again.
+ * <p>
+ * Set as the response body writer. Given an {@link ExportExecutor}, pieces
+ * are produced on its threads, one at a time, and its permit for the
+ * channel is returned when the body is done; otherwise they are produced on
+ * the channel's event loop. Everything else happens on the event loop, and
+ * {@link #release()} is never called while a piece is being produced.
+ *
+ * @author Tim Boudreau
+ */
+abstract class ChunkedBodyWriter implements ChannelFutureListener {
+
+    /**
+     * Returned by {@link #next} when nothing is available yet; the writer
+     * waits until {@link #wake()} is called.
+     */
+    static final Object PENDING = new Object();
+    private static final int FLUSH_BYTES = 16 * 1024;
+    private final long maxBuffered;
+    private final ExportExecutor exports;
+    private final Writability writability = new Writability();
+    private volatile Channel channel;
+    private long buffered;
+    private long peakBuffered;
+    private boolean writing;
+    private boolean wakeup;
+    private boolean producing;
+    private boolean done;
+    private boolean released;
+    private final AtomicBoolean woken = new AtomicBoolean();
+
+    ChunkedBodyWriter(Settings settings) {
+        this(settings, null);
+    }
+
+    ChunkedBodyWriter(Settings settings, ExportExecutor exports) {
+        this(settings.getLong(SETTINGS_KEY_RESPONSE_MAX_BUFFERED, DEFAULT_RESPONSE_MAX_BUFFERED), exports);
+    }
+
+    ChunkedBodyWriter(long maxBuffered, ExportExecutor exports) {
+        if (maxBuffered <= 0) {
+            throw new IllegalArgumentException("Bad max buffered bytes " + maxBuffered);
+        }
+        this.maxBuffered = maxBuffered;
+        this.exports = exports;
+    }
+
+    /**
+     * Produce the next piece of the body.
+     *
+     * @param channel The channel
+     * @return A ByteBuf or FileRegion, or null if the body is complete
+     * @throws Exception If something goes wrong
+     */
+    protected abstract Object next(Channel channel) throws Exception;
+
+    /**
+     * Produce any trailing bytes once {@link #next} has returned null.
+     *
+     * @param channel The channel
+     * @return A buffer, or null
+     * @throws Exception If something goes wrong
+     */
+    protected ByteBuf finish(Channel channel) throws Exception {
+        return null;
+    }
+
+    /**
+     * Free any resources; called exactly once, when the body is complete or
+     * the channel is closed, whichever happens first.
+     */
+    protected void release() {
+        // do nothing
+    }
+
+    /**
+     * Tell the writer more may be available after {@link #next} returned
+     * {@link #PENDING}. May be called from any thread.
+     */
+    final void wake() {
+        woken.set(true);
+        Channel ch = channel;
+        if (ch != null) {
+            ch.eventLoop().execute(this::resume);
+        }
+    }
+
+    /**
+     * The most bytes this response has had written but not yet sent at any
+     * one time.
+     *
+     * @return A byte count
+     */
+    final long peakBuffered() {
+        return peakBuffered;
+    }
+
+    @Override
+    public final void operationComplete(ChannelFuture f) {
+        channel = f.channel();
+        channel.closeFuture().addListener(cf -> close());
+        if (f.cause() != null) {
+            failed(null);
+            return;
+        }
+        channel.pipeline().addFirst(writability);
+        resume();
+    }
+
+    private void resume() {
+        // Write completions can be notified synchronously from inside
+        // write() or flush(); note that one happened and go around again,
+        // rather than recursing
+        if (writing) {
+            wakeup = true;
+            return;
+        }
+        writing = true;
+        try {
+            do {
+                wakeup = false;
+                writeSome();
+            } while (wakeup && !done);
+        } finally {
+            writing = false;
+        }
+    }
+
+    private void writeSome() {
+        long unflushed = 0;
+        try {
+            while (!done && !producing && buffered < maxBuffered && channel.isWritable()) {
+                if (exports != null) {
+                    producing = true;
+                    try {
+                        exports.execute(this::produce);
+                    } catch (RejectedExecutionException ex) {
+                        producing = false;
+                        throw ex;
+                    }
+                    return;
+                }
+                Object msg = next(channel);
+                if (msg == PENDING) {
+                    return;
+                } else if (msg == null) {
+                    complete(finish(channel));
+                    return;
+                }
+                unflushed += write(msg);
+                if (unflushed >= FLUSH_BYTES) {
+                    unflushed = 0;
+                    channel.flush();
+                }
+            }
+        } catch (Exception ex) {
+            failed(ex);
+        } finally {
+            if (unflushed > 0) {
+                channel.flush();
+            }
+        }
+    }
+
+    private void produce() {
+        Object msg = null;
+        ByteBuf tail = null;
+        Exception failure = null;
+        // Cleared first, so a wake() that arrives while next() is running
+        // is not lost
+        woken.set(false);
+        try {
+            msg = next(channel);
+            if (msg == null) {
+                tail = finish(channel);
+            }
+        } catch (Exception ex) {
+            failure = ex;
+        }
+        Object produced = msg;
+        ByteBuf last = tail;
+        Exception thrown = failure;
+        channel.eventLoop().execute(() -> {
+            producing = false;
+            if (done) {
+                if (produced != PENDING) {
+                    ReferenceCountUtil.release(produced);
+                }
+                ReferenceCountUtil.release(last);
+                close();
+            } else if (thrown != null) {
+                failed(thrown);
+            } else if (produced == null) {
+                complete(last);
+            } else if (produced == PENDING) {
+                if (woken.get()) {
+                    resume();
+                }
+            } else {
+                write(produced);
+                channel.flush();
+                resume();
+            }
+        });
+    }
+
+    private long write(Object msg) {
+        long size = msg instanceof ByteBuf ? ((ByteBuf) msg).readableBytes()
+                : msg instanceof FileRegion ? ((FileRegion) msg).count() : 0;
+        buffered += size;
+        peakBuffered = Math.max(peakBuffered, buffered);
+        Object content = msg instanceof ByteBuf ? new DefaultHttpContent((ByteBuf) msg) : msg;
+        channel.write(content).addListener((ChannelFuture wf) -> {
+            buffered -= size;
+            if (wf.cause() != null) {
+                // The client went away
+                failed(null);
+            } else {
+                resume();
+            }
+        });
+        return size;
+    }
+
+    private void complete(ByteBuf tail) {
+        LastHttpContent last = tail == null ? LastHttpContent.EMPTY_LAST_CONTENT : new DefaultLastHttpContent(tail);
+        close();
+        channel.writeAndFlush(last);
+    }
+
+    private void failed(Exception cause) {
+        if (cause != null && !done) {
+            Logger.getLogger(getClass().getName()).log(Level.WARNING, "Failed writing response", cause);
+        }
+        close();
+        channel.close();
+    }
+
+    private void close() {
+        if (!done) {
+            done = true;
+            if (writability.ctx != null) {
+                writability.ctx.pipeline().remove(writability);
+            }
+        }
+        // If a piece is being produced, wait for it to finish
+        if (!released && !producing) {
+            released = true;
+            if (exports != null) {
+                exports.release(channel);
+            }
+            release();
+        }
+    }
+
+    private final class Writability extends ChannelInboundHandlerAdapter {
+
+        private ChannelHandlerContext ctx;
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            this.ctx = ctx;
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) {
+            this.ctx = null;
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            ctx.fireChannelWritabilityChanged();
+            resume();
+        }
+    }
+}
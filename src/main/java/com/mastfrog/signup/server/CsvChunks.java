@@ -0,0 +1,167 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server;
+
+import com.mastfrog.signup.server.model.CloseableIterator;
+import com.mastfrog.signup.server.model.Signup;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Writes signups as CSV (RFC 4180) into buffers of roughly a fixed size,
+ * with the same columns as the spreadsheet export. Only the current buffer
+ * is held, so memory use does not depend on the number of signups. The
+ * signups are closed once the last row is written, or if writing fails.
+ *
+ * @author Tim Boudreau
+ */
+final class CsvChunks implements SharedExports.Source {
+
+    private final CloseableIterator<Signup> signups;
+    private final List<String> categories;
+    private final ByteBufAllocator alloc;
+    private final int chunkSize;
+    private final StringBuilder field = new StringBuilder();
+    private boolean headerWritten;
+    private boolean done;
+    private int largest;
+
+    CsvChunks(CloseableIterator<Signup> signups, List<String> categories, ByteBufAllocator alloc, int chunkSize) {
+        this.signups = signups;
+        this.categories = categories;
+        this.alloc = alloc;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Get the next chunk.
+     *
+     * @return A buffer the caller is responsible for, or null once every
+     * row has been written
+     */
+    @Override
+    public ByteBuf next() {
+        if (done) {
+            return null;
+        }
+        ByteBuf buf = alloc.ioBuffer(chunkSize);
+        try {
+            if (!headerWritten) {
+                writeHeader(buf);
+                headerWritten = true;
+            }
+            // Always write one row, or a row wider than a chunk would never
+            // be sent
+            int start = buf.writerIndex();
+            int position = start;
+            while (signups.hasNext() && (position == start || position + largest <= chunkSize)) {
+                writeRow(signups.next(), buf);
+                largest = Math.max(largest, buf.writerIndex() - position);
+                position = buf.writerIndex();
+            }
+            if (!signups.hasNext()) {
+                close();
+            }
+            return buf;
+        } catch (RuntimeException ex) {
+            buf.release();
+            close();
+            throw ex;
+        }
+    }
+
+    @Override
+    public void close() {
+        done = true;
+        signups.close();
+    }
+
+    private void writeHeader(ByteBuf buf) {
+        writeField("Name", buf, false);
+        writeField("Email", buf, true);
+        for (String category : categories) {
+            writeField(category, buf, true);
+        }
+        writeField("When", buf, true);
+        writeField("Email Sent", buf, true);
+        writeField("Email Address Verified", buf, true);
+        buf.writeByte('\r').writeByte('\n');
+    }
+
+    private void writeRow(Signup signup, ByteBuf buf) {
+        writeField(signup.info.name == null ? "" : signup.info.name, buf, false);
+        writeField(signup.info.emailAddress, buf, true);
+        for (String category : categories) {
+            writeBoolean(signup.info.signedUpFor.contains(category), buf);
+        }
+        buf.writeByte(',');
+        buf.writeCharSequence(Instant.ofEpochMilli(signup.when).toString(), StandardCharsets.US_ASCII);
+        writeBoolean(signup.emailed, buf);
+        writeBoolean(signup.validated, buf);
+        buf.writeByte('\r').writeByte('\n');
+    }
+
+    private static void writeBoolean(boolean value, ByteBuf buf) {
+        buf.writeByte(',');
+        buf.writeCharSequence(value ? "true" : "false", StandardCharsets.US_ASCII);
+    }
+
+    private void writeField(String value, ByteBuf buf, boolean comma) {
+        if (comma) {
+            buf.writeByte(',');
+        }
+        boolean quote = false;
+        field.setLength(0);
+        // Text a spreadsheet would evaluate as a formula is prefixed with a
+        // quote, since names and addresses come from the public form
+        if (!value.isEmpty() && "=+-@\t\r".indexOf(value.charAt(0)) >= 0) {
+            field.append('\'');
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    field.append('"');
+                // fall through
+                case ',':
+                case '\r':
+                case '\n':
+                    quote = true;
+                // fall through
+                default:
+                    field.append(c);
+            }
+        }
+        if (quote) {
+            buf.writeByte('"');
+            buf.writeCharSequence(field, StandardCharsets.UTF_8);
+            buf.writeByte('"');
+        } else {
+            buf.writeCharSequence(field, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server;
+
+import com.google.common.net.MediaType;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.mastfrog.acteur.Acteur;
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.annotations.HttpCall;
+import com.mastfrog.acteur.headers.Headers;
+import static com.mastfrog.acteur.headers.Headers.CONTENT_TYPE;
+import static com.mastfrog.acteur.headers.Headers.ETAG;
+import static com.mastfrog.acteur.headers.Headers.LAST_MODIFIED;
+import static com.mastfrog.acteur.headers.Method.GET;
+import static com.mastfrog.acteur.headers.Method.HEAD;
+import com.mastfrog.acteur.preconditions.Authenticated;
+import com.mastfrog.acteur.preconditions.Methods;
+import com.mastfrog.acteur.preconditions.PathRegex;
+import com.mastfrog.settings.Settings;
+import static com.mastfrog.signup.server.SignupServer.DEFAULT_LIST_CHUNK_SIZE;
+import static com.mastfrog.signup.server.SignupServer.GUICE_BINDING_POSSIBLE_SIGNUPS;
+import static com.mastfrog.signup.server.SignupServer.SETTINGS_KEY_LIST_CHUNK_SIZE;
+import com.mastfrog.signup.server.model.Signups;
+import com.mastfrog.util.time.TimeUtil;
+import io.netty.buffer.ByteBufAllocator;
+import static io.netty.handler.codec.http.HttpHeaderNames.RETRY_AFTER;
+import io.netty.handler.codec.http.HttpMethod;
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_MODIFIED;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Streams the same columns as the spreadsheet as CSV, a chunk at a time;
+ * concurrent requests for the same generation share one production of it.
+ *
+ * @author Tim Boudreau
+ */
+@HttpCall
+@Methods({GET, HEAD})
+@PathRegex("^api\\/admin\\/csv$")
+@Authenticated
+public class CsvResource extends Acteur {
+
+    @Inject
+    CsvResource(Signups signups, HttpEvent evt, ExportExecutor exports, SharedExports shared,
+            @Named(GUICE_BINDING_POSSIBLE_SIGNUPS) Set<String> possibilities, Settings settings,
+            ByteBufAllocator alloc) throws IOException {
+        TimeRange range;
+        try {
+            range = TimeRange.of(evt);
+        } catch (IllegalArgumentException ex) {
+            badRequest(ex.getMessage());
+            return;
+        }
+        StoreVersion version = new StoreVersion(signups);
+        add(ETAG, version.etag);
+        add(LAST_MODIFIED, version.lastModified);
+        if (version.isNotModified(evt)) {
+            reply(NOT_MODIFIED);
+            return;
+        }
+        if (HttpMethod.GET.name().equals(evt.method().name())) {
+            if (!exports.tryAcquire(evt.channel())) {
+                add(Headers.header(RETRY_AFTER), Integer.toString(exports.retryAfterSeconds));
+                reply(SERVICE_UNAVAILABLE, "Too many exports in progress.  Please try again in a moment.");
+                return;
+            }
+            List<String> kinds = new ArrayList<>(possibilities);
+            Collections.sort(kinds);
+            int chunkSize = settings.getInt(SETTINGS_KEY_LIST_CHUNK_SIZE, DEFAULT_LIST_CHUNK_SIZE);
+            setResponseBodyWriter(exports.writer(evt.channel(), () -> {
+                SharedExports.Reader reader = shared.join(
+                        Arrays.asList("csv", version.generation, range.from, range.to, kinds),
+                        () -> new CsvChunks(signups.iterator(range.from, range.to, Collections.emptySet()), kinds,
+                                alloc, chunkSize));
+                return new SharedExportWriter(settings, exports, shared, reader);
+            }));
+        }
+        String nm = "signups-" + TimeUtil.toSortableStringFormat(version.lastModified) + ".csv";
+        add(CONTENT_TYPE, MediaType.CSV_UTF_8);
+        add(Headers.CONTENT_DISPOSITION, "attachment; filename=\"" + nm + "\"");
+        setChunked(true);
+        ok();
+    }
+}
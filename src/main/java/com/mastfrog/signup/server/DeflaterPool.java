@@ -0,0 +1,84 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.mastfrog.settings.Settings;
+import static com.mastfrog.signup.server.SignupServer.DEFAULT_LIST_COMPRESSION_LEVEL;
+import static com.mastfrog.signup.server.SignupServer.SETTINGS_KEY_LIST_COMPRESSION_LEVEL;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * Deflaters for compressed streaming responses. Each one holds native
+ * buffers of a few hundred kilobytes, which are expensive to allocate and
+ * only freed when it is ended, so they are reset and reused rather than
+ * created per response.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class DeflaterPool {
+
+    private final int level;
+    private final BlockingQueue<Deflater> raw;
+    private final BlockingQueue<Deflater> zlib;
+
+    @Inject
+    DeflaterPool(Settings settings) {
+        this(settings.getInt(SETTINGS_KEY_LIST_COMPRESSION_LEVEL, DEFAULT_LIST_COMPRESSION_LEVEL),
+                Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    DeflaterPool(int level, int size) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Bad compression level " + level);
+        }
+        this.level = level;
+        raw = new ArrayBlockingQueue<>(Math.max(1, size));
+        zlib = new ArrayBlockingQueue<>(Math.max(1, size));
+    }
+
+    /**
+     * Get a deflater.
+     *
+     * @param nowrap True for raw deflate data (as gzip wraps), false for
+     * the zlib format (as HTTP's deflate coding uses)
+     * @return A deflater, which must be returned with
+     * {@link #release(Deflater, boolean)}
+     */
+    Deflater take(boolean nowrap) {
+        Deflater result = (nowrap ? raw : zlib).poll();
+        return result == null ? new Deflater(level, nowrap) : result;
+    }
+
+    void release(Deflater deflater, boolean nowrap) {
+        deflater.reset();
+        if (!(nowrap ? raw : zlib).offer(deflater)) {
+            deflater.end();
+        }
+    }
+}
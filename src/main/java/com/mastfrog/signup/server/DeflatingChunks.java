@@ -0,0 +1,151 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a chunked response one chunk at a time, as gzip or zlib
+ * (HTTP's deflate). Each chunk is flushed, so the client can decompress
+ * and use everything sent so far without waiting for the rest.
+ *
+ * @author Tim Boudreau
+ */
+final class DeflatingChunks implements AutoCloseable {
+
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int TRAILER_LENGTH = 8;
+    private final DeflaterPool pool;
+    private final ByteBufAllocator alloc;
+    private final boolean gzip;
+    private final CRC32 crc = new CRC32();
+    private Deflater deflater;
+    private byte[] input = new byte[0];
+    private boolean started;
+
+    DeflatingChunks(StreamEncoding encoding, DeflaterPool pool, ByteBufAllocator alloc) {
+        if (encoding == StreamEncoding.IDENTITY) {
+            throw new IllegalArgumentException("Nothing to do for " + encoding);
+        }
+        this.pool = pool;
+        this.alloc = alloc;
+        this.gzip = encoding == StreamEncoding.GZIP;
+        this.deflater = pool.take(gzip);
+    }
+
+    /**
+     * Compress a chunk.
+     *
+     * @param chunk The uncompressed bytes, which are released
+     * @return The compressed bytes
+     */
+    synchronized ByteBuf compress(ByteBuf chunk) {
+        try {
+            checkOpen();
+            int length = chunk.readableBytes();
+            byte[] bytes;
+            int offset;
+            if (chunk.hasArray()) {
+                bytes = chunk.array();
+                offset = chunk.arrayOffset() + chunk.readerIndex();
+            } else {
+                if (input.length < length) {
+                    input = new byte[length];
+                }
+                chunk.getBytes(chunk.readerIndex(), input, 0, length);
+                bytes = input;
+                offset = 0;
+            }
+            if (gzip) {
+                crc.update(bytes, offset, length);
+            }
+            deflater.setInput(bytes, offset, length);
+            ByteBuf out = alloc.heapBuffer(Math.max(256, length / 4));
+            if (!started && gzip) {
+                out.writeBytes(GZIP_HEADER);
+            }
+            started = true;
+            // Once a sync flush leaves space unused, all the input is out
+            for (;;) {
+                int space = out.writableBytes();
+                int written = deflater.deflate(out.array(), out.arrayOffset() + out.writerIndex(), space,
+                        Deflater.SYNC_FLUSH);
+                out.writerIndex(out.writerIndex() + written);
+                if (written < space) {
+                    return out;
+                }
+                out.ensureWritable(space);
+            }
+        } finally {
+            chunk.release();
+        }
+    }
+
+    /**
+     * Finish the stream, returning the deflater to the pool.
+     *
+     * @return The final bytes
+     */
+    synchronized ByteBuf finish() {
+        checkOpen();
+        ByteBuf out = alloc.heapBuffer(256);
+        if (!started && gzip) {
+            out.writeBytes(GZIP_HEADER);
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            out.ensureWritable(256);
+            int written = deflater.deflate(out.array(), out.arrayOffset() + out.writerIndex(), out.writableBytes());
+            out.writerIndex(out.writerIndex() + written);
+        }
+        if (gzip) {
+            out.ensureWritable(TRAILER_LENGTH);
+            out.writeIntLE((int) crc.getValue());
+            out.writeIntLE((int) deflater.getBytesRead());
+        }
+        close();
+        return out;
+    }
+
+    private void checkOpen() {
+        if (deflater == null) {
+            throw new IllegalStateException("Closed");
+        }
+    }
+
+    /**
+     * Return the deflater to the pool, if that has not been done yet, such
+     * as when the connection closes before the response is finished.
+     */
+    @Override
+    public synchronized void close() {
+        if (deflater != null) {
+            pool.release(deflater, gzip);
+            deflater = null;
+        }
+    }
+}
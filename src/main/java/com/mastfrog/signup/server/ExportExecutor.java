@@ -0,0 +1,138 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.mastfrog.giulius.ShutdownHookRegistry;
+import com.mastfrog.settings.Settings;
+import static com.mastfrog.signup.server.SignupServer.DEFAULT_EXPORT_QUEUE;
+import static com.mastfrog.signup.server.SignupServer.DEFAULT_EXPORT_RETRY_AFTER_SECONDS;
+import static com.mastfrog.signup.server.SignupServer.DEFAULT_EXPORT_THREADS;
+import static com.mastfrog.signup.server.SignupServer.SETTINGS_KEY_EXPORT_QUEUE;
+import static com.mastfrog.signup.server.SignupServer.SETTINGS_KEY_EXPORT_RETRY_AFTER_SECONDS;
+import static com.mastfrog.signup.server.SignupServer.SETTINGS_KEY_EXPORT_THREADS;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Threads for producing large admin responses - spreadsheets, CSV, streamed
+ * listings and exports - so that reading and encoding the whole store never
+ * happens on an event loop that also serves signups.
+ * <p>
+ * At most <code>admin.export.threads + admin.export.queue</code> responses
+ * are admitted at once; each produces one piece at a time, so the pool's
+ * queue cannot grow beyond that. A request that cannot be admitted should
+ * be answered with a 503.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class ExportExecutor {
+
+    private static final AttributeKey<Runnable> PERMIT = AttributeKey.valueOf(ExportExecutor.class, "permit");
+    private final ExecutorService threads;
+    private final Semaphore permits;
+    final int retryAfterSeconds;
+
+    @Inject
+    ExportExecutor(Settings settings, ShutdownHookRegistry onShutdown) {
+        this(settings.getInt(SETTINGS_KEY_EXPORT_THREADS, DEFAULT_EXPORT_THREADS),
+                settings.getInt(SETTINGS_KEY_EXPORT_QUEUE, DEFAULT_EXPORT_QUEUE),
+                settings.getInt(SETTINGS_KEY_EXPORT_RETRY_AFTER_SECONDS, DEFAULT_EXPORT_RETRY_AFTER_SECONDS));
+        onShutdown.add(threads);
+    }
+
+    ExportExecutor(int threads, int queue, int retryAfterSeconds) {
+        if (threads <= 0 || queue < 0) {
+            throw new IllegalArgumentException("Bad export threads " + threads + " or queue " + queue);
+        }
+        this.threads = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "signup-export");
+            t.setDaemon(true);
+            t.setPriority(Thread.NORM_PRIORITY - 1);
+            return t;
+        });
+        permits = new Semaphore(threads + queue);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * Admit one response on a channel, if there is room. The permit is
+     * returned by {@link #release(Channel)}, or when the channel is closed.
+     *
+     * @param channel The channel
+     * @return false if too many responses are already in progress
+     */
+    boolean tryAcquire(Channel channel) {
+        if (!permits.tryAcquire()) {
+            return false;
+        }
+        AtomicBoolean held = new AtomicBoolean(true);
+        Runnable release = () -> {
+            if (held.compareAndSet(true, false)) {
+                permits.release();
+            }
+        };
+        channel.attr(PERMIT).set(release);
+        channel.closeFuture().addListener(f -> release.run());
+        return true;
+    }
+
+    void release(Channel channel) {
+        Runnable release = channel.attr(PERMIT).getAndSet(null);
+        if (release != null) {
+            release.run();
+        }
+    }
+
+    /**
+     * Create the body writer for a response admitted by
+     * {@link #tryAcquire(Channel)}. The writer returns the permit when it is
+     * done; if creating it fails, nothing else would before the connection
+     * closes, so it is returned here.
+     *
+     * @param <T> The writer type
+     * @param channel The channel holding the permit
+     * @param factory Creates the writer
+     * @return The writer
+     */
+    <T extends ChunkedBodyWriter> T writer(Channel channel, Supplier<T> factory) {
+        try {
+            return factory.get();
+        } catch (RuntimeException | Error ex) {
+            release(channel);
+            throw ex;
+        }
+    }
+
+    void execute(Runnable task) {
+        threads.execute(task);
+    }
+}
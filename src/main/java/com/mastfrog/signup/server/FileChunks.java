@@ -0,0 +1,114 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.ssl.SslHandler;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sends <code>count</code> bytes of a file as body pieces - a
+ * single file region, sent with <code>transferTo</code>, or where the
+ * pipeline needs the bytes in memory (TLS), buffers read from the file a
+ * chunk at a time. The file is closed once it has been sent or when this is
+ * closed.
+ * <p>
+ * A response sent this way must have <code>Content-Encoding: identity</code>
+ * set explicitly: file regions pass straight through the HTTP content
+ * compressor, which would otherwise still claim to have compressed them.
+ *
+ * @author Tim Boudreau
+ */
+final class FileChunks implements AutoCloseable {
+
+    private final ByteBufAllocator alloc;
+    private final int chunkSize;
+    // The position to stop at
+    private final long end;
+    private final boolean zeroCopy;
+    private FileChannel file;
+    private long position;
+
+    FileChunks(FileChannel file, long count, Channel channel, ByteBufAllocator alloc, int chunkSize) {
+        this(file, 0, count, channel, alloc, chunkSize);
+    }
+
+    FileChunks(FileChannel file, long position, long count, Channel channel, ByteBufAllocator alloc,
+            int chunkSize) {
+        this.file = file;
+        this.position = position;
+        this.end = position + count;
+        this.alloc = alloc;
+        this.chunkSize = chunkSize;
+        zeroCopy = channel.pipeline().get(SslHandler.class) == null;
+    }
+
+    /**
+     * Get the next piece.
+     *
+     * @return A FileRegion or ByteBuf, or null if the file has been sent
+     * @throws IOException If reading fails
+     */
+    Object next() throws IOException {
+        if (file == null) {
+            return null;
+        }
+        if (zeroCopy) {
+            // The region closes the file once it has been written
+            DefaultFileRegion region = new DefaultFileRegion(file, position, end - position);
+            file = null;
+            return region;
+        }
+        int length = (int) Math.min(chunkSize, end - position);
+        ByteBuf buf = alloc.directBuffer(length);
+        try {
+            while (buf.writerIndex() < length) {
+                if (buf.writeBytes(file, position + buf.writerIndex(), length - buf.writerIndex()) < 0) {
+                    throw new IOException("File truncated at " + (position + buf.writerIndex()));
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            buf.release();
+            throw ex;
+        }
+        position += length;
+        if (position >= end) {
+            close();
+        }
+        return buf;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file != null) {
+            FileChannel f = file;
+            file = null;
+            f.close();
+        }
+    }
+}
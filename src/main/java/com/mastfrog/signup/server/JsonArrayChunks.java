@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.mastfrog.signup.server.model.CloseableIterator;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Serializes a sequence of objects as a JSON array, or as newline-delimited
+ * JSON (one object per line), into buffers of roughly a fixed size, so a
+ * large listing goes out as a few big chunks rather than one per record.
+ * Objects are written straight into the (pooled) buffers by a single
+ * generator, with no intermediate byte arrays.  The items are closed once
+ * the last chunk is written, or if writing one fails.
+ *
+ * @author Tim Boudreau
+ */
+final class JsonArrayChunks implements Closeable {
+
+    private final CloseableIterator<?> items;
+    private final ObjectWriter writer;
+    private final ByteBufAllocator alloc;
+    private final int chunkSize;
+    private final BufferOutput out = new BufferOutput();
+    private final JsonGenerator gen;
+    private final boolean lines;
+    private int largest;
+    private boolean done;
+
+    JsonArrayChunks(CloseableIterator<?> items, ObjectMapper mapper, ByteBufAllocator alloc, int chunkSize)
+            throws IOException {
+        this(items, mapper, alloc, chunkSize, false);
+    }
+
+    JsonArrayChunks(CloseableIterator<?> items, ObjectMapper mapper, ByteBufAllocator alloc, int chunkSize,
+            boolean lines) throws IOException {
+        this.items = items;
+        this.lines = lines;
+        this.alloc = alloc;
+        this.chunkSize = chunkSize;
+        // Flush once per chunk, not once per record
+        this.writer = mapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        gen = mapper.getFactory().createGenerator(out, JsonEncoding.UTF8);
+        if (lines) {
+            // Each line is terminated explicitly, not separated by a space
+            gen.setRootValueSeparator(null);
+        }
+    }
+
+    /**
+     * Get the next chunk.
+     *
+     * @return A buffer the caller is responsible for, or null once
+     * everything (and the closing bracket, if any) has been written
+     * @throws IOException If serialization fails
+     */
+    ByteBuf next() throws IOException {
+        if (done) {
+            return null;
+        }
+        ByteBuf buf = alloc.ioBuffer(chunkSize);
+        out.target = buf;
+        try {
+            if (!lines && gen.getOutputContext().inRoot()) {
+                gen.writeStartArray();
+            }
+            // Stop while the largest record seen so far still fits, so the
+            // buffer is almost never grown (and copied) - but always write
+            // one, or a record bigger than a chunk would never be sent
+            int start = written();
+            int position = start;
+            while (items.hasNext() && (position == start || position + largest <= chunkSize)) {
+                writer.writeValue(gen, items.next());
+                if (lines) {
+                    gen.writeRaw('\n');
+                }
+                int end = written();
+                largest = Math.max(largest, end - position);
+                position = end;
+            }
+            if (!items.hasNext()) {
+                if (!lines) {
+                    gen.writeEndArray();
+                }
+                gen.close();
+                close();
+            } else {
+                gen.flush();
+            }
+            return buf;
+        } catch (IOException | RuntimeException ex) {
+            buf.release();
+            close();
+            throw ex;
+        } finally {
+            out.target = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        done = true;
+        items.close();
+    }
+
+    private int written() {
+        // Bytes in the buffer, plus those the generator is holding on to
+        return out.target.writerIndex() + gen.getOutputBuffered();
+    }
+
+    private static final class BufferOutput extends OutputStream {
+
+        ByteBuf target;
+
+        @Override
+        public void write(int b) {
+            target.writeByte(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            target.writeBytes(b, off, len);
+        }
+    }
+}
@@ -24,87 +24,286 @@
 package com.mastfrog.signup.server;
 
 import static com.google.common.net.MediaType.JSON_UTF_8;
+import com.google.common.net.MediaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.inject.Inject;
 import com.mastfrog.acteur.Acteur;
-import com.mastfrog.acteur.Event;
+import com.mastfrog.acteur.Deferral;
+import com.mastfrog.acteur.Deferral.Resumer;
 import com.mastfrog.acteur.HttpEvent;
-import com.mastfrog.acteur.ResponseWriter;
+import com.mastfrog.acteur.annotations.Concluders;
 import com.mastfrog.acteur.annotations.HttpCall;
+import com.mastfrog.acteur.headers.Headers;
+import static com.mastfrog.acteur.headers.Headers.CONTENT_ENCODING;
 import static com.mastfrog.acteur.headers.Headers.CONTENT_TYPE;
+import static com.mastfrog.acteur.headers.Headers.ETAG;
+import static com.mastfrog.acteur.headers.Headers.LAST_MODIFIED;
 import static com.mastfrog.acteur.headers.Method.GET;
 import static com.mastfrog.acteur.headers.Method.HEAD;
 import com.mastfrog.acteur.preconditions.Authenticated;
 import com.mastfrog.acteur.preconditions.Methods;
 import com.mastfrog.acteur.preconditions.PathRegex;
+import com.mastfrog.settings.Settings;
+import static com.mastfrog.signup.server.SignupServer.DEFAULT_LIST_CHUNK_SIZE;
+import static com.mastfrog.signup.server.SignupServer.DEFAULT_LIST_MAX_LIMIT;
+import static com.mastfrog.signup.server.SignupServer.SETTINGS_KEY_LIST_CHUNK_SIZE;
+import static com.mastfrog.signup.server.SignupServer.SETTINGS_KEY_LIST_MAX_LIMIT;
+import com.mastfrog.signup.server.model.SignupPage;
+import com.mastfrog.signup.server.model.SignupQuery;
 import com.mastfrog.signup.server.model.Signups;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import static io.netty.handler.codec.http.HttpHeaderNames.RETRY_AFTER;
 import io.netty.handler.codec.http.HttpMethod;
+import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_MODIFIED;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.util.Iterator;
-import java.util.function.BiPredicate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
+ * Lists signups as a JSON array. With no <code>limit</code> or
+ * <code>cursor</code> parameter, streams every signup in the time range,
+ * oldest first; with either, returns one page, newest first, with the cursor
+ * for the next page (if any) in the <code>X-Next-Cursor</code> header. Either
+ * form can be filtered by <code>category</code> - a comma-separated list of
+ * categories, all of which returned signups must be signed up for. Answers
+ * conditional requests with a 304 from in-memory validators.
+ * <p>
+ * A streamed listing is sent as newline-delimited JSON if the client
+ * prefers <code>application/x-ndjson</code>, and compressed with gzip or
+ * deflate as it is written, per <code>Accept-Encoding</code>. Streams and
+ * pages are produced on the {@link ExportExecutor}'s threads, and refused
+ * with a 503 if too many exports are already in progress; concurrent
+ * requests for the same listing of the same generation share one production
+ * of it.
  *
  * @author Tim Boudreau
  */
-@HttpCall
+@HttpCall(scopeTypes = ListSignupsResource.PageResult.class)
 @Methods({GET, HEAD})
 @PathRegex("^api\\/admin\\/list$")
 @Authenticated
+@Concluders(ListSignupsResource.PageListed.class)
 public class ListSignupsResource extends Acteur {
 
+    public static final String PARAM_LIMIT = "limit";
+    public static final String PARAM_CURSOR = "cursor";
+    public static final String PARAM_CATEGORY = "category";
+    public static final String HEADER_NEXT_CURSOR = "X-Next-Cursor";
+    public static final MediaType NDJSON = MediaType.create("application", "x-ndjson");
+
     @Inject
-    ListSignupsResource(HttpEvent evt) {
+    ListSignupsResource(HttpEvent evt, Signups signups, Settings settings, ExportExecutor exports,
+            SharedExports shared, ObjectMapper mapper, ByteBufAllocator alloc, DeflaterPool deflaters,
+            Deferral deferral) throws IOException {
+        SignupQuery query;
+        TimeRange range;
+        try {
+            range = TimeRange.of(evt);
+            query = query(evt, range, settings.getInt(SETTINGS_KEY_LIST_MAX_LIMIT, DEFAULT_LIST_MAX_LIMIT));
+        } catch (IllegalArgumentException ex) {
+            badRequest(ex.getMessage());
+            return;
+        }
+        // Streamed listings can be newline-delimited and compressed here;
+        // pages are small, and left to the pipeline
+        boolean lines = query == null && isNdjsonPreferred(evt);
+        StreamEncoding encoding = query == null ? StreamEncoding.negotiate(evt) : StreamEncoding.IDENTITY;
+        StoreVersion version = new StoreVersion(signups, variant(lines, encoding));
+        add(ETAG, version.etag);
+        add(LAST_MODIFIED, version.lastModified);
+        add(Headers.header(HttpHeaderNames.VARY), "Accept, Accept-Encoding");
+        if (version.isNotModified(evt)) {
+            reply(NOT_MODIFIED);
+            return;
+        }
+        boolean get = HttpMethod.GET.name().equals(evt.method().name());
+        // A page is computed even for HEAD, for its cursor header
+        if ((query != null || get) && !exports.tryAcquire(evt.channel())) {
+            add(Headers.header(RETRY_AFTER), Integer.toString(exports.retryAfterSeconds));
+            reply(SERVICE_UNAVAILABLE, "Too many exports in progress.  Please try again in a moment.");
+            return;
+        }
+        add(CONTENT_TYPE, lines ? NDJSON : JSON_UTF_8);
+        if (query != null) {
+            page(query, signups, exports, evt.channel(), deferral);
+            return;
+        }
+        if (encoding != StreamEncoding.IDENTITY) {
+            add(CONTENT_ENCODING, encoding.token());
+        }
         setChunked(true);
-        add(CONTENT_TYPE, JSON_UTF_8);
-        if (HttpMethod.GET.name().equals(evt.method().name())) {
-            setResponseWriter(RW.class);
+        if (get) {
+            stream(evt, range, lines, encoding, version, signups, settings, exports, shared, mapper, alloc,
+                    deflaters);
         }
         ok();
     }
 
-    private static final class RW extends ResponseWriter implements BiPredicate<Path, BasicFileAttributes> {
+    private void page(SignupQuery query, Signups signups, ExportExecutor exports, Channel channel,
+            Deferral deferral) {
+        // Finding a page scans the store, so it happens on an export
+        // thread, and the response is sent by PageListed
+        Resumer resumer = deferral.defer();
+        try {
+            exports.execute(() -> {
+                PageResult result;
+                try {
+                    result = new PageResult(signups.page(query), null);
+                } catch (RuntimeException | Error ex) {
+                    result = new PageResult(null, ex);
+                } finally {
+                    exports.release(channel);
+                }
+                resumer.resume(result);
+            });
+        } catch (RuntimeException | Error ex) {
+            exports.release(channel);
+            throw ex;
+        }
+        next();
+    }
+
+    private void stream(HttpEvent evt, TimeRange range, boolean lines, StreamEncoding encoding,
+            StoreVersion version, Signups signups, Settings settings, ExportExecutor exports,
+            SharedExports shared, ObjectMapper mapper, ByteBufAllocator alloc, DeflaterPool deflaters) {
+        setResponseBodyWriter(exports.writer(evt.channel(), () -> {
+            Set<String> categories = categories(evt);
+            int chunkSize = settings.getInt(SETTINGS_KEY_LIST_CHUNK_SIZE, DEFAULT_LIST_CHUNK_SIZE);
+            SharedExports.Reader reader = shared.join(Arrays.asList("list", version.generation,
+                    range.from, range.to, categories, lines, encoding), () -> new Listing(
+                            new JsonArrayChunks(signups.iterator(range.from, range.to, categories), mapper, alloc,
+                                    chunkSize, lines),
+                            encoding == StreamEncoding.IDENTITY ? null : new DeflatingChunks(encoding, deflaters,
+                                    alloc)));
+            return new SharedExportWriter(settings, exports, shared, reader);
+        }));
+    }
 
-        private Iterator<Path> paths;
-        private final ByteBufAllocator alloc;
+    /**
+     * A page of the listing, or the failure computing it.
+     */
+    public static final class PageResult {
+
+        final SignupPage page;
+        final Throwable failure;
+
+        PageResult(SignupPage page, Throwable failure) {
+            this.page = page;
+            this.failure = failure;
+        }
+    }
+
+    public static final class PageListed extends Acteur {
 
         @Inject
-        RW(Signups signups, ByteBufAllocator alloc) throws IOException {
-            paths = signups.iterator();
-            this.alloc = alloc;
+        PageListed(PageResult result) {
+            if (result.failure != null) {
+                Logger.getLogger(ListSignupsResource.class.getName()).log(Level.SEVERE, "Listing page", result.failure);
+                reply(INTERNAL_SERVER_ERROR, "Could not list signups.");
+                return;
+            }
+            if (result.page.nextCursor != null) {
+                add(Headers.header(HEADER_NEXT_CURSOR), result.page.nextCursor);
+            }
+            ok(result.page.signups);
+        }
+    }
+
+    private static boolean isNdjsonPreferred(HttpEvent evt) {
+        String accept = evt.header(HttpHeaderNames.ACCEPT);
+        if (accept == null) {
+            return false;
+        }
+        float ndjson = StreamEncoding.quality(accept, NDJSON.withoutParameters().toString(), "application/ndjson");
+        return ndjson > 0 && ndjson >= StreamEncoding.quality(accept, "application/json");
+    }
+
+    private static String variant(boolean lines, StreamEncoding encoding) {
+        String result = lines ? "ndjson" : null;
+        if (encoding != StreamEncoding.IDENTITY) {
+            result = result == null ? encoding.token() : result + "-" + encoding.token();
+        }
+        return result;
+    }
+
+    private static SignupQuery query(HttpEvent evt, TimeRange range, int maxLimit) {
+        String limit = evt.urlParameter(PARAM_LIMIT);
+        String cursor = evt.urlParameter(PARAM_CURSOR);
+        if (limit == null && cursor == null) {
+            return null;
+        }
+        int lim = maxLimit;
+        if (limit != null) {
+            try {
+                lim = Integer.parseInt(limit.trim());
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Bad value for '" + PARAM_LIMIT + "': " + limit);
+            }
+            if (lim <= 0 || lim > maxLimit) {
+                throw new IllegalArgumentException("'" + PARAM_LIMIT + "' must be between 1 and " + maxLimit);
+            }
+        }
+        return new SignupQuery(range.from, range.to, categories(evt), lim,
+                cursor == null ? SignupQuery.NO_CURSOR : SignupQuery.parseCursor(cursor.trim()));
+    }
+
+    private static Set<String> categories(HttpEvent evt) {
+        String param = evt.urlParameter(PARAM_CATEGORY);
+        if (param == null) {
+            return Collections.emptySet();
+        }
+        Set<String> result = new TreeSet<>();
+        for (String category : param.split(",")) {
+            if (!category.trim().isEmpty()) {
+                result.add(category.trim());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Produces the listing, compressed if the client asked for it.
+     */
+    private static final class Listing implements SharedExports.Source {
+
+        private final JsonArrayChunks chunks;
+        private final DeflatingChunks compressor;
+        private boolean finished;
+
+        Listing(JsonArrayChunks chunks, DeflatingChunks compressor) {
+            this.chunks = chunks;
+            this.compressor = compressor;
         }
 
         @Override
-        public Status write(Event<?> evt, Output out, int iteration) throws Exception {
-            Path pth = paths.hasNext() ? paths.next() : null;
-            if (pth == null) {
-                if (iteration == 0) {
-                    out.write(new byte[]{'[', ']'});
-                } else {
-                    out.write(new byte[]{']'});
-                }
-                return Status.DONE;
+        public ByteBuf next() throws IOException {
+            if (finished) {
+                return null;
             }
-            int len = (int) Files.size(pth);
-            ByteBuf buf = alloc.ioBuffer(len + 1);
-            if (iteration == 0) {
-                buf.writeByte('[');
-            } else {
-                buf.writeByte(',');
+            ByteBuf buf = chunks.next();
+            if (buf != null) {
+                return compressor == null ? buf : compressor.compress(buf);
             }
-            buf.writeBytes(Files.readAllBytes(pth));
-            out.write(buf);
-            return Status.NOT_DONE;
+            finished = true;
+            return compressor == null ? null : compressor.finish();
         }
 
         @Override
-        public boolean test(Path t, BasicFileAttributes u) {
-            boolean result = (t.toString().endsWith(".signup") && !u.isDirectory()) || u.isDirectory();
-            return result;
+        public void close() {
+            chunks.close();
+            // Return the deflater even if the client goes away mid-stream
+            if (compressor != null) {
+                compressor.close();
+            }
         }
     }
 }
@@ -0,0 +1,149 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server;
+
+import static com.google.common.net.MediaType.OCTET_STREAM;
+import com.google.inject.Inject;
+import com.mastfrog.acteur.Acteur;
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.annotations.HttpCall;
+import com.mastfrog.acteur.headers.Headers;
+import static com.mastfrog.acteur.headers.Headers.CONTENT_ENCODING;
+import static com.mastfrog.acteur.headers.Headers.CONTENT_TYPE;
+import static com.mastfrog.acteur.headers.Method.GET;
+import static com.mastfrog.acteur.headers.Method.HEAD;
+import com.mastfrog.acteur.preconditions.Authenticated;
+import com.mastfrog.acteur.preconditions.Methods;
+import com.mastfrog.acteur.preconditions.PathRegex;
+import com.mastfrog.settings.Settings;
+import static com.mastfrog.signup.server.SignupServer.DEFAULT_LIST_CHUNK_SIZE;
+import static com.mastfrog.signup.server.SignupServer.SETTINGS_KEY_LIST_CHUNK_SIZE;
+import com.mastfrog.signup.server.model.CloseableIterator;
+import com.mastfrog.signup.server.model.RawExport;
+import com.mastfrog.signup.server.model.Signups;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import static io.netty.handler.codec.http.HttpHeaderNames.RETRY_AFTER;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Exports stored records without decoding them, in the
+ * {@link RawExport} format. Log segments and signup files go from the file
+ * to the socket with <code>transferTo</code>, so a full export does not pass
+ * the store through the heap; only the small block headers between them are
+ * buffers.
+ *
+ * @author Tim Boudreau
+ */
+@HttpCall
+@Methods({GET, HEAD})
+@PathRegex("^api\\/admin\\/raw$")
+@Authenticated
+public class RawExportResource extends Acteur {
+
+    @Inject
+    RawExportResource(HttpEvent evt, ExportExecutor exports) {
+        try {
+            TimeRange.of(evt);
+        } catch (IllegalArgumentException ex) {
+            badRequest(ex.getMessage());
+            return;
+        }
+        boolean get = HttpMethod.GET.name().equals(evt.method().name());
+        if (get && !exports.tryAcquire(evt.channel())) {
+            add(Headers.header(RETRY_AFTER), Integer.toString(exports.retryAfterSeconds));
+            reply(SERVICE_UNAVAILABLE, "Too many exports in progress.  Please try again in a moment.");
+            return;
+        }
+        setChunked(true);
+        add(CONTENT_TYPE, OCTET_STREAM);
+        // Sent with FileChunks
+        add(CONTENT_ENCODING, HttpHeaderValues.IDENTITY);
+        if (get) {
+            setResponseBodyWriter(RW.class);
+        }
+        ok();
+    }
+
+    private static final class RW extends ChunkedBodyWriter {
+
+        private final CloseableIterator<RawExport.Chunk> chunks;
+        private final ByteBufAllocator alloc;
+        private final int chunkSize;
+        private FileChunks file;
+
+        @Inject
+        RW(Signups signups, ByteBufAllocator alloc, HttpEvent evt, Settings settings, ExportExecutor exports) {
+            super(settings, exports);
+            TimeRange range = TimeRange.of(evt);
+            try {
+                chunks = signups.export(range.from, range.to);
+            } catch (RuntimeException | Error ex) {
+                // Admitted by RawExportResource, but never going to write
+                exports.release(evt.channel());
+                throw ex;
+            }
+            this.alloc = alloc;
+            chunkSize = settings.getInt(SETTINGS_KEY_LIST_CHUNK_SIZE, DEFAULT_LIST_CHUNK_SIZE);
+        }
+
+        @Override
+        protected Object next(Channel channel) throws IOException {
+            Object result = file == null ? null : file.next();
+            if (result != null) {
+                return result;
+            }
+            file = null;
+            if (!chunks.hasNext()) {
+                return null;
+            }
+            RawExport.Chunk chunk = chunks.next();
+            if (chunk.file != null) {
+                // Open now, so the file is still readable if compaction
+                // deletes it before it is sent
+                file = new FileChunks(FileChannel.open(chunk.file, StandardOpenOption.READ), chunk.count,
+                        channel, alloc, chunkSize);
+            }
+            return alloc.directBuffer(chunk.prefix.length).writeBytes(chunk.prefix);
+        }
+
+        @Override
+        protected void release() {
+            chunks.close();
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException ex) {
+                    // nothing to do
+                }
+                file = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server;
+
+import com.mastfrog.settings.Settings;
+import io.netty.channel.Channel;
+import java.io.IOException;
+
+/**
+ * Sends a shared export to one client, taking chunks from the production
+ * as they are produced, and producing them itself when it is first to need
+ * one.
+ *
+ * @author Tim Boudreau
+ */
+final class SharedExportWriter extends ChunkedBodyWriter {
+
+    private final SharedExports shared;
+    private final SharedExports.Reader reader;
+
+    SharedExportWriter(Settings settings, ExportExecutor exports, SharedExports shared,
+            SharedExports.Reader reader) {
+        super(settings, exports);
+        this.shared = shared;
+        this.reader = reader;
+        reader.listen(this::wake);
+    }
+
+    @Override
+    protected Object next(Channel channel) throws IOException {
+        return shared.next(reader);
+    }
+
+    @Override
+    protected void release() {
+        shared.leave(reader);
+    }
+}
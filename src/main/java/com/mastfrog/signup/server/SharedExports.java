@@ -0,0 +1,351 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.mastfrog.settings.Settings;
+import static com.mastfrog.signup.server.SignupServer.DEFAULT_EXPORT_SHARED_WINDOW;
+import static com.mastfrog.signup.server.SignupServer.SETTINGS_KEY_EXPORT_SHARED_WINDOW;
+import io.netty.buffer.ByteBuf;
+import io.netty.util.ReferenceCountUtil;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Lets concurrent requests for the same export of the same store generation
+ * share one production of it. Nothing produces an export on its own: each
+ * response's {@link SharedExportWriter} pulls the next chunk, on the
+ * {@link ExportExecutor} under that response's permit, and whichever needs
+ * a chunk nobody has produced yet produces it. Chunks are kept in memory
+ * until every reader has sent them, and production waits once more than
+ * <code>admin.export.shared.window</code> bytes are held, so it goes no
+ * faster than the slowest reader.
+ * <p>
+ * A request can join a production only while its first chunk is still
+ * held - that is, until it has produced a window's worth - since it needs
+ * the same bytes from the start; after that, an identical request starts a
+ * production of its own. Production stops as soon as every reader goes
+ * away.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class SharedExports {
+
+    private final Map<List<?>, Production> running = new HashMap<>();
+    private final long window;
+
+    @Inject
+    SharedExports(Settings settings) {
+        this(settings.getLong(SETTINGS_KEY_EXPORT_SHARED_WINDOW, DEFAULT_EXPORT_SHARED_WINDOW));
+    }
+
+    SharedExports(long window) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("Bad shared export window " + window);
+        }
+        this.window = window;
+    }
+
+    /**
+     * Produces an export a chunk at a time.
+     */
+    interface Source extends AutoCloseable {
+
+        /**
+         * Produce the next chunk.
+         *
+         * @return A buffer, which may be empty if work was done but nothing
+         * is ready to send yet, or null once everything has been produced
+         * @throws Exception If something goes wrong
+         */
+        ByteBuf next() throws Exception;
+
+        /**
+         * Free any resources, whether or not everything was produced.
+         */
+        @Override
+        void close();
+    }
+
+    /**
+     * Join the production of an export, starting it if there is none that
+     * can be joined. The caller must {@link #leave} when done reading.
+     *
+     * @param key Identifies the export - its kind, the store generation and
+     * every parameter that affects its bytes
+     * @param source Creates the source, if this starts a production; called
+     * on an export thread when the first chunk is needed
+     * @return A reader, positioned at the start of the export
+     */
+    synchronized Reader join(List<?> key, Callable<? extends Source> source) {
+        Production production = running.get(key);
+        if (production == null) {
+            production = new Production(key, source);
+            running.put(key, production);
+        }
+        Reader result = new Reader(production);
+        production.readers.add(result);
+        return result;
+    }
+
+    /**
+     * Stop reading; once every reader has left, production stops and its
+     * chunks are released.
+     *
+     * @param reader The reader
+     */
+    void leave(Reader reader) {
+        Production production = reader.production;
+        synchronized (this) {
+            if (!production.readers.remove(reader)) {
+                return;
+            }
+            reader.listener = null;
+            if (production.readers.isEmpty()) {
+                running.remove(production.key, production);
+                production.cancelled = true;
+                production.release(Integer.MAX_VALUE);
+                if (!production.producing) {
+                    production.closeSource();
+                }
+                return;
+            }
+        }
+        // The slowest reader may have been this one
+        if (trim(production)) {
+            production.fire();
+        }
+    }
+
+    /**
+     * Get the next chunk for a reader, producing it if nobody has yet.
+     *
+     * @param reader The reader
+     * @return A buffer the caller is responsible for,
+     * {@link ChunkedBodyWriter#PENDING} if the reader must wait to be woken,
+     * or null once the export has been sent
+     * @throws IOException If production failed
+     */
+    Object next(Reader reader) throws IOException {
+        Production production = reader.production;
+        ByteBuf result = null;
+        boolean released = false;
+        synchronized (this) {
+            if (reader.position < production.produced()) {
+                result = production.chunks.get(reader.position++ - production.first).retainedDuplicate();
+                released = trim(production);
+            } else if (production.done) {
+                if (production.failure != null) {
+                    throw new IOException("Export failed", production.failure);
+                }
+                return null;
+            } else if (production.producing || !makeRoom(production)) {
+                return ChunkedBodyWriter.PENDING;
+            } else {
+                production.producing = true;
+            }
+        }
+        if (result != null) {
+            if (released) {
+                // A reader waiting for room may be able to produce now
+                production.fire();
+            }
+            return result;
+        }
+        production.produce();
+        // Wakes this reader too, to send what it just produced
+        production.fire();
+        return ChunkedBodyWriter.PENDING;
+    }
+
+    /**
+     * Make room to produce another chunk, if the window is full, by no
+     * longer letting requests join - so chunks every reader has sent can be
+     * released.
+     */
+    private boolean makeRoom(Production production) {
+        if (production.held < window) {
+            return true;
+        }
+        if (production.joinable) {
+            production.joinable = false;
+            running.remove(production.key, production);
+            trim(production);
+        }
+        return production.held < window;
+    }
+
+    /**
+     * Release the chunks every reader has sent, unless the production can
+     * still be joined.
+     */
+    private synchronized boolean trim(Production production) {
+        if (production.joinable || production.readers.isEmpty()) {
+            return false;
+        }
+        int slowest = Integer.MAX_VALUE;
+        for (Reader reader : production.readers) {
+            slowest = Math.min(slowest, reader.position);
+        }
+        return production.release(slowest);
+    }
+
+    synchronized int running() {
+        return running.size();
+    }
+
+    /**
+     * One response's place in a production.
+     */
+    final class Reader {
+
+        private final Production production;
+        private volatile Runnable listener;
+        private int position;
+
+        Reader(Production production) {
+            this.production = production;
+        }
+
+        /**
+         * Call a runnable whenever the reader may be able to make progress
+         * after {@link SharedExports#next} returned PENDING.
+         *
+         * @param listener A listener
+         */
+        void listen(Runnable listener) {
+            this.listener = listener;
+        }
+    }
+
+    private final class Production {
+
+        private final List<?> key;
+        private final Callable<? extends Source> factory;
+        private final List<Reader> readers = new ArrayList<>();
+        // Chunks from index first on; everything before has been released
+        private final List<ByteBuf> chunks = new ArrayList<>();
+        private Source source;
+        private int first;
+        private long held;
+        private boolean joinable = true;
+        private boolean producing;
+        private boolean done;
+        private boolean cancelled;
+        private Exception failure;
+
+        Production(List<?> key, Callable<? extends Source> factory) {
+            this.key = key;
+            this.factory = factory;
+        }
+
+        int produced() {
+            return first + chunks.size();
+        }
+
+        /**
+         * Produce a chunk, outside the lock - only one reader does this at a
+         * time.
+         */
+        private void produce() {
+            ByteBuf chunk = null;
+            Exception thrown = null;
+            try {
+                if (source == null) {
+                    source = factory.call();
+                }
+                chunk = source.next();
+            } catch (Exception ex) {
+                thrown = ex;
+            }
+            synchronized (SharedExports.this) {
+                producing = false;
+                if (cancelled) {
+                    // Every reader left while this was being produced
+                    ReferenceCountUtil.release(chunk);
+                    closeSource();
+                } else if (thrown != null) {
+                    Logger.getLogger(SharedExports.class.getName()).log(Level.WARNING, "Producing " + key, thrown);
+                    failure = thrown;
+                    done = true;
+                    closeSource();
+                    // Later requests should get an export of their own
+                    running.remove(key, this);
+                } else if (chunk == null) {
+                    done = true;
+                    closeSource();
+                } else if (chunk.isReadable()) {
+                    chunks.add(chunk);
+                    held += chunk.readableBytes();
+                } else {
+                    chunk.release();
+                }
+            }
+        }
+
+        /**
+         * Release every chunk before an index.
+         */
+        private boolean release(int before) {
+            boolean result = false;
+            while (!chunks.isEmpty() && first < before) {
+                ByteBuf chunk = chunks.remove(0);
+                held -= chunk.readableBytes();
+                chunk.release();
+                first++;
+                result = true;
+            }
+            return result;
+        }
+
+        private void closeSource() {
+            if (source != null) {
+                source.close();
+                source = null;
+            }
+        }
+
+        private void fire() {
+            List<Runnable> listeners = new ArrayList<>();
+            synchronized (SharedExports.this) {
+                for (Reader reader : readers) {
+                    if (reader.listener != null) {
+                        listeners.add(reader.listener);
+                    }
+                }
+            }
+            for (Runnable r : listeners) {
+                r.run();
+            }
+        }
+    }
+}
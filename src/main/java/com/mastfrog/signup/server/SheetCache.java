@@ -0,0 +1,209 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.mastfrog.giulius.ShutdownHookRegistry;
+import com.mastfrog.settings.Settings;
+import static com.mastfrog.signup.server.SignupServer.DEFAULT_SHEET_CACHE_BYTES;
+import static com.mastfrog.signup.server.SignupServer.GUICE_BINDING_TEMP_FOLDER;
+import static com.mastfrog.signup.server.SignupServer.SETTINGS_KEY_SHEET_CACHE_BYTES;
+import com.mastfrog.signup.server.model.Signups;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Rendered spreadsheets, kept on disk so a repeat download of an unchanged
+ * store is sent straight from a file. Entries are keyed by the store
+ * generation and everything else that affects the workbook; storing a
+ * signup drops every entry, and the least recently used are dropped to stay
+ * under <code>admin.sheet.cache.bytes</code>.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class SheetCache {
+
+    private final Path dir;
+    private final long maxBytes;
+    private final Map<List<?>, Entry> entries = new LinkedHashMap<>(16, 0.75F, true);
+    private final AtomicLong names = new AtomicLong();
+    private long generation;
+    private long totalBytes;
+
+    @Inject
+    SheetCache(Signups signups, Settings settings, ShutdownHookRegistry onShutdown,
+            @Named(GUICE_BINDING_TEMP_FOLDER) Path tmp) throws IOException {
+        this(Files.createTempDirectory(tmp, "signup-sheets"),
+                settings.getLong(SETTINGS_KEY_SHEET_CACHE_BYTES, DEFAULT_SHEET_CACHE_BYTES), signups.generation());
+        signups.addChangeListener(this::invalidate);
+        Runnable shutdown = this::close;
+        onShutdown.add(shutdown);
+    }
+
+    SheetCache(Path dir, long maxBytes, long generation) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.generation = generation;
+    }
+
+    /**
+     * Open the cached file for a key.
+     *
+     * @param generation The store generation
+     * @param key Everything else that affects the bytes
+     * @return An open file, which stays readable if the entry is dropped,
+     * or null if there is none
+     * @throws IOException If opening fails
+     */
+    FileChannel open(long generation, List<?> key) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            entry = generation == this.generation ? entries.get(key(generation, key)) : null;
+        }
+        if (entry == null) {
+            return null;
+        }
+        try {
+            return FileChannel.open(entry.file, StandardOpenOption.READ);
+        } catch (NoSuchFileException ex) {
+            // Dropped since we looked
+            return null;
+        }
+    }
+
+    /**
+     * Add a copy of a rendered file, if it is for the current generation
+     * and fits.
+     *
+     * @param generation The store generation it was rendered from
+     * @param key Everything else that affects the bytes
+     * @param rendered The file, which is not moved or deleted
+     */
+    void put(long generation, List<?> key, Path rendered) {
+        List<Path> dropped = new ArrayList<>();
+        try {
+            long size = Files.size(rendered);
+            if (size > maxBytes) {
+                return;
+            }
+            Path file = dir.resolve(names.getAndIncrement() + ".xlsx");
+            try {
+                Files.createLink(file, rendered);
+            } catch (IOException | UnsupportedOperationException ex) {
+                Files.copy(rendered, file);
+            }
+            synchronized (this) {
+                if (generation != this.generation || entries.containsKey(key(generation, key))) {
+                    dropped.add(file);
+                    return;
+                }
+                entries.put(key(generation, key), new Entry(file, size));
+                totalBytes += size;
+                for (Iterator<Entry> it = entries.values().iterator(); totalBytes > maxBytes && it.hasNext();) {
+                    Entry old = it.next();
+                    totalBytes -= old.size;
+                    it.remove();
+                    dropped.add(old.file);
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(SheetCache.class.getName()).log(Level.WARNING, "Caching " + key, ex);
+        } finally {
+            delete(dropped);
+        }
+    }
+
+    synchronized long totalBytes() {
+        return totalBytes;
+    }
+
+    void invalidate(long generation) {
+        List<Path> dropped;
+        synchronized (this) {
+            this.generation = generation;
+            if (entries.isEmpty()) {
+                return;
+            }
+            dropped = new ArrayList<>();
+            for (Entry entry : entries.values()) {
+                dropped.add(entry.file);
+            }
+            entries.clear();
+            totalBytes = 0;
+        }
+        delete(dropped);
+    }
+
+    void close() {
+        invalidate(Long.MAX_VALUE);
+        try {
+            Files.deleteIfExists(dir);
+        } catch (IOException ex) {
+            Logger.getLogger(SheetCache.class.getName()).log(Level.WARNING, "Deleting " + dir, ex);
+        }
+    }
+
+    private static List<?> key(long generation, List<?> key) {
+        List<Object> result = new ArrayList<>(key.size() + 1);
+        result.add(generation);
+        result.addAll(key);
+        return result;
+    }
+
+    private static void delete(List<Path> files) {
+        for (Path file : files) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ex) {
+                Logger.getLogger(SheetCache.class.getName()).log(Level.WARNING, "Deleting " + file, ex);
+            }
+        }
+    }
+
+    private static final class Entry {
+
+        final Path file;
+        final long size;
+
+        Entry(Path file, long size) {
+            this.file = file;
+            this.size = size;
+        }
+    }
+}
@@ -27,9 +27,13 @@ import static com.google.common.net.MediaType.PLAIN_TEXT_UTF_8;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import com.mastfrog.acteur.Acteur;
+import com.mastfrog.acteur.Deferral;
+import com.mastfrog.acteur.Deferral.Resumer;
 import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.annotations.Concluders;
 import com.mastfrog.acteur.annotations.HttpCall;
 import com.mastfrog.acteur.annotations.Precursors;
+import com.mastfrog.acteur.headers.Headers;
 import static com.mastfrog.acteur.headers.Headers.CACHE_CONTROL;
 import static com.mastfrog.acteur.headers.Headers.CONTENT_TYPE;
 import static com.mastfrog.acteur.headers.Headers.SET_COOKIE_B;
@@ -40,17 +44,22 @@ import com.mastfrog.acteur.preconditions.PathRegex;
 import com.mastfrog.acteur.util.CacheControl;
 import com.mastfrog.bunyan.Logger;
 import static com.mastfrog.signup.server.SignupServer.GUICE_BINDING_POSSIBLE_SIGNUPS;
+import com.mastfrog.signup.server.model.DuplicateSignupException;
 import com.mastfrog.signup.server.model.SignupInfo;
 import com.mastfrog.signup.server.model.Signups;
 import com.mastfrog.signup.server.token.TokenCache;
 import com.mastfrog.util.Strings;
 import static io.netty.handler.codec.http.HttpResponseStatus.CONFLICT;
+import static io.netty.handler.codec.http.HttpHeaderNames.RETRY_AFTER;
+import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
 import io.netty.handler.codec.http.cookie.DefaultCookie;
 import static io.netty.handler.codec.rtsp.RtspResponseStatuses.PAYMENT_REQUIRED;
 import java.io.IOException;
-import java.nio.file.Path;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
 import org.netbeans.validation.api.Problems;
 import org.netbeans.validation.api.builtin.stringvalidation.StringValidators;
 
@@ -58,15 +67,17 @@ import org.netbeans.validation.api.builtin.stringvalidation.StringValidators;
  *
  * @author Tim Boudreau
  */
-@HttpCall(order = 2, scopeTypes = VisitorCookie.class)
+@HttpCall(order = 2, scopeTypes = {VisitorCookie.class, SignupResource.Outcome.class})
 @Methods(POST)
 @PathRegex("^api\\/signup$")
 @Precursors(VisitorCookieHelper.class)
 @InjectRequestBodyAs(SignupInfo.class)
+@Concluders(SignupResource.SignupStored.class)
 public class SignupResource extends Acteur {
 
     @Inject
-    SignupResource(HttpEvent evt, SignupInfo info, Signups signups, @Named("signup") Logger signupLog, TokenCache tokens, VisitorCookie cookie, @Named(GUICE_BINDING_POSSIBLE_SIGNUPS) Set<String> possibilities) throws IOException {
+    SignupResource(HttpEvent evt, SignupInfo info, Signups signups, TokenCache tokens, VisitorCookie cookie,
+            @Named(GUICE_BINDING_POSSIBLE_SIGNUPS) Set<String> possibilities, Deferral deferral) throws IOException {
         Problems problems = new Problems();
         StringValidators.EMAIL_ADDRESS.validate(problems, "address", info.emailAddress);
         if (problems.hasFatal()) {
@@ -87,25 +98,75 @@ public class SignupResource extends Acteur {
             badRequest("Unknown categories: " + Strings.join(',', unknowns));
             return;
         }
-        if (tokens.isUsed(info.token)) {
+        if (tokens.isUsed(info.token) || signups.isSignedUp(info.emailAddress)) {
             reply(CONFLICT, "You have already signed up");
             return;
         }
-        Path file = signups.add(info, cookie, evt);
-        signupLog.info("signup")
-                .add("info", info)
-                .add("visitor", cookie)
-                .add("file", file.toString())
-                .close();
+        // Mark the token used before the write completes, so a resubmit
+        // while we wait for the disk is rejected
         tokens.onTokenUsed(info.token);
-        DefaultCookie ck = new DefaultCookie("tnc_e", "[" + Strings.join(",", info.signedUpFor) + "]" + info.emailAddress);
-        ck.setMaxAge(60 * 60 * 24 * 800);
-        ck.setHttpOnly(false);
-        ck.setPath("/");
-        add(CONTENT_TYPE, PLAIN_TEXT_UTF_8);
-        add(CACHE_CONTROL, CacheControl.PRIVATE_NO_CACHE_NO_STORE);
-        add(SET_COOKIE_B, ck);
-        ok("{\"msg\": \"Signed up " + info.emailAddress + "\"}");
-//        ok("Signed up " + info.emailAddress);
+        Resumer resumer = deferral.defer();
+        signups.add(info, cookie, evt).whenComplete((ignored, thrown) -> {
+            resumer.resume(new Outcome(thrown));
+        });
+        next();
+    }
+
+    /**
+     * Result of a signup write, once it is durable or has failed.
+     */
+    public static final class Outcome {
+
+        final Throwable failure;
+
+        Outcome(Throwable failure) {
+            this.failure = failure instanceof CompletionException && failure.getCause() != null
+                    ? failure.getCause() : failure;
+        }
+    }
+
+    public static final class SignupStored extends Acteur {
+
+        @Inject
+        SignupStored(SignupInfo info, Outcome outcome, @Named("signup") Logger signupLog, VisitorCookie cookie, TokenCache tokens) {
+            if (outcome.failure != null) {
+                tokens.onTokenUnused(info.token);
+            }
+            if (outcome.failure instanceof DuplicateSignupException) {
+                reply(CONFLICT, "You have already signed up");
+                return;
+            }
+            if (outcome.failure instanceof RejectedExecutionException) {
+                // The writer queue is full - tell the client to retry shortly
+                signupLog.warn("signupRejected")
+                        .add("info", info)
+                        .add("visitor", cookie)
+                        .close();
+                add(Headers.header(RETRY_AFTER), "2");
+                reply(SERVICE_UNAVAILABLE, "Too busy.  Please try again in a moment.");
+                return;
+            }
+            if (outcome.failure != null) {
+                signupLog.error("signupFailed")
+                        .add("info", info)
+                        .add("visitor", cookie)
+                        .add(outcome.failure)
+                        .close();
+                reply(INTERNAL_SERVER_ERROR, "Could not save signup.  Please try again later.");
+                return;
+            }
+            signupLog.info("signup")
+                    .add("info", info)
+                    .add("visitor", cookie)
+                    .close();
+            DefaultCookie ck = new DefaultCookie("tnc_e", "[" + Strings.join(",", info.signedUpFor) + "]" + info.emailAddress);
+            ck.setMaxAge(60 * 60 * 24 * 800);
+            ck.setHttpOnly(false);
+            ck.setPath("/");
+            add(CONTENT_TYPE, PLAIN_TEXT_UTF_8);
+            add(CACHE_CONTROL, CacheControl.PRIVATE_NO_CACHE_NO_STORE);
+            add(SET_COOKIE_B, ck);
+            ok("{\"msg\": \"Signed up " + info.emailAddress + "\"}");
+        }
     }
 }
@@ -66,6 +66,8 @@ import com.mastfrog.jackson.JacksonModule;
 import com.mastfrog.jackson.TimeSerializationMode;
 import com.mastfrog.settings.Settings;
 import com.mastfrog.settings.SettingsBuilder;
+import com.mastfrog.signup.server.model.SignupStore;
+import com.mastfrog.signup.server.model.StorageMode;
 import com.mastfrog.util.preconditions.ConfigurationError;
 import com.mastfrog.util.Strings;
 import com.mastfrog.util.strings.RandomStrings;
@@ -112,6 +114,45 @@ public class SignupServer extends AbstractModule {
     public static final String SETTINGS_KEY_ADMIN_PASSWORD = "adminPassword";
     public static final String DEFAULT_ADMIN_NAME = "admin";
     public static final String DEFAULT_ADMIN_PASSWORD = "4kbMWFMY";
+    public static final String SETTINGS_KEY_STORAGE_MODE = "storage.mode";
+    public static final String SETTINGS_KEY_LOG_SEGMENT_SIZE = "storage.log.segment.size";
+    public static final long DEFAULT_LOG_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final String SETTINGS_KEY_DURABILITY = "storage.durability";
+    public static final String SETTINGS_KEY_GROUP_COMMIT_WINDOW_MILLIS = "storage.group.commit.window";
+    public static final long DEFAULT_GROUP_COMMIT_WINDOW_MILLIS = 2;
+    public static final String SETTINGS_KEY_GROUP_COMMIT_MAX_BATCH = "storage.group.commit.max.batch";
+    public static final int DEFAULT_GROUP_COMMIT_MAX_BATCH = 512;
+    public static final String SETTINGS_KEY_WRITER_QUEUE_SIZE = "storage.writer.queue.size";
+    public static final int DEFAULT_WRITER_QUEUE_SIZE = 4096;
+    public static final String SETTINGS_KEY_INDEX_THREADS = "storage.index.threads";
+    public static final String SETTINGS_KEY_COMPACTION_INTERVAL_MINUTES = "storage.compaction.interval";
+    public static final long DEFAULT_COMPACTION_INTERVAL_MINUTES = 60;
+    public static final String SETTINGS_KEY_COMPACTION_MIN_IDLE_MINUTES = "storage.compaction.min.idle";
+    public static final long DEFAULT_COMPACTION_MIN_IDLE_MINUTES = 10;
+    public static final String SETTINGS_KEY_TIME_PARTITIONING = "storage.partition";
+    public static final String SETTINGS_KEY_NODE_ID = "storage.node.id";
+    public static final String SETTINGS_KEY_LIST_CHUNK_SIZE = "admin.list.chunk.size";
+    public static final int DEFAULT_LIST_CHUNK_SIZE = 64 * 1024;
+    public static final String SETTINGS_KEY_LIST_MAX_LIMIT = "admin.list.max.limit";
+    public static final int DEFAULT_LIST_MAX_LIMIT = 1000;
+    public static final String SETTINGS_KEY_LIST_COMPRESSION_LEVEL = "admin.list.compression.level";
+    public static final int DEFAULT_LIST_COMPRESSION_LEVEL = 6;
+    public static final String SETTINGS_KEY_RESPONSE_MAX_BUFFERED = "admin.response.max.buffered";
+    public static final long DEFAULT_RESPONSE_MAX_BUFFERED = 1024 * 1024;
+    public static final String SETTINGS_KEY_SHEET_ROW_WINDOW = "admin.sheet.row.window";
+    public static final int DEFAULT_SHEET_ROW_WINDOW = 500;
+    public static final String SETTINGS_KEY_EXPORT_THREADS = "admin.export.threads";
+    public static final int DEFAULT_EXPORT_THREADS = 2;
+    public static final String SETTINGS_KEY_EXPORT_QUEUE = "admin.export.queue";
+    public static final int DEFAULT_EXPORT_QUEUE = 4;
+    public static final String SETTINGS_KEY_EXPORT_RETRY_AFTER_SECONDS = "admin.export.retry.after";
+    public static final int DEFAULT_EXPORT_RETRY_AFTER_SECONDS = 10;
+    public static final String SETTINGS_KEY_SHEET_CACHE_BYTES = "admin.sheet.cache.bytes";
+    public static final long DEFAULT_SHEET_CACHE_BYTES = 64 * 1024 * 1024;
+    public static final String SETTINGS_KEY_EXPORT_SHARED_WINDOW = "admin.export.shared.window";
+    public static final long DEFAULT_EXPORT_SHARED_WINDOW = 4 * 1024 * 1024;
+    public static final String SETTINGS_KEY_RANDOM_RESEED_INTERVAL = "random.reseed.interval";
+    public static final long DEFAULT_RANDOM_RESEED_INTERVAL = 1024 * 1024;
 
     private final Settings settings;
     private final Random rnd;
@@ -119,7 +160,12 @@ public class SignupServer extends AbstractModule {
 
     SignupServer(Settings settings, ReentrantScope scope) throws NoSuchAlgorithmException {
         this.settings = settings;
-        rnd = new Random(SecureRandom.getInstanceStrong().nextLong());
+        // Each thread gets its own generator, so event loop threads issuing
+        // tokens and cookies don't contend on one seed.  Reseeding happens on
+        // those threads, so it draws from a non-blocking SecureRandom which
+        // is seeded from the strong one
+        rnd = new StripedRandom(new SecureRandom(SecureRandom.getInstanceStrong().generateSeed(32)),
+                settings.getLong(SETTINGS_KEY_RANDOM_RESEED_INTERVAL, DEFAULT_RANDOM_RESEED_INTERVAL));
         this.scope = scope;
     }
 
@@ -187,6 +233,8 @@ public class SignupServer extends AbstractModule {
                 throw new ConfigurationError(e);
             }
         }
+        bind(SignupStore.class).to(StorageMode.parse(settings.getString(SETTINGS_KEY_STORAGE_MODE,
+                StorageMode.FILES.name())).storeType());
         bind(ConfigSanityCheck.class).asEagerSingleton();
         Set<String> possibleSignups = new HashSet<>();
         for (CharSequence seq : Strings.splitUniqueNoEmpty(',', settings.getString(pass, DEFAULT_POSSIBLE_SIGNUPS))) {
@@ -0,0 +1,127 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server;
+
+import com.mastfrog.signup.server.model.Signup;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.IndexedColors;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.xssf.streaming.SXSSFSheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+
+/**
+ * Writes signups as an XLSX workbook, with only a window of rows in memory
+ * at a time; the rest are flushed to compressed temporary files until the
+ * workbook is written out. Column widths are estimated from the length of
+ * the longest value in each column, since measuring rendered text with
+ * <code>autoSizeColumn</code> needs every cell.
+ *
+ * @author Tim Boudreau
+ */
+final class SignupWorkbook {
+
+    static final String DATE_FORMAT = "dd-MM-yyyy";
+    private static final int MAX_WIDTH = 255;
+    // The header is bold and larger than the body font
+    private static final double HEADER_SCALE = 1.4;
+
+    private SignupWorkbook() {
+        throw new AssertionError();
+    }
+
+    static void write(Iterator<Signup> signups, List<String> kinds, int window, OutputStream out) throws IOException {
+        List<String> headers = new ArrayList<>();
+        headers.add("Name");
+        headers.add("Email");
+        headers.addAll(kinds);
+        headers.add("When");
+        headers.add("Email Sent");
+        headers.add("Email Address Verified");
+        int[] widths = new int[headers.size()];
+
+        SXSSFWorkbook workbook = new SXSSFWorkbook(window);
+        workbook.setCompressTempFiles(true);
+        try {
+            SXSSFSheet sheet = workbook.createSheet("Signups");
+
+            Font headerFont = workbook.createFont();
+            headerFont.setBold(true);
+            headerFont.setFontHeightInPoints((short) 14);
+            headerFont.setColor(IndexedColors.RED.getIndex());
+
+            CellStyle headerCellStyle = workbook.createCellStyle();
+            headerCellStyle.setFont(headerFont);
+
+            Row headerRow = sheet.createRow(0);
+            for (int i = 0; i < headers.size(); i++) {
+                Cell cell = headerRow.createCell(i);
+                cell.setCellValue(headers.get(i));
+                cell.setCellStyle(headerCellStyle);
+                widths[i] = (int) Math.ceil(headers.get(i).length() * HEADER_SCALE);
+            }
+            CellStyle dateCellStyle = workbook.createCellStyle();
+            dateCellStyle.setDataFormat(workbook.getCreationHelper().createDataFormat().getFormat(DATE_FORMAT));
+            int ix = 1;
+            while (signups.hasNext()) {
+                int cellIx = 0;
+                Signup s = signups.next();
+                Row row = sheet.createRow(ix++);
+                String name = s.info.name == null ? "" : s.info.name;
+                row.createCell(cellIx).setCellValue(name);
+                widths[cellIx] = Math.max(widths[cellIx++], name.length());
+                row.createCell(cellIx).setCellValue(s.info.emailAddress);
+                widths[cellIx] = Math.max(widths[cellIx++], s.info.emailAddress.length());
+                for (String poss : kinds) {
+                    boolean value = s.info.signedUpFor.contains(poss);
+                    row.createCell(cellIx).setCellValue(value);
+                    widths[cellIx] = Math.max(widths[cellIx++], value ? 4 : 5);
+                }
+                Cell dateCell = row.createCell(cellIx);
+                dateCell.setCellStyle(dateCellStyle);
+                dateCell.setCellValue(new Date(s.when));
+                widths[cellIx] = Math.max(widths[cellIx++], DATE_FORMAT.length());
+                row.createCell(cellIx).setCellValue(s.emailed);
+                widths[cellIx] = Math.max(widths[cellIx++], s.emailed ? 4 : 5);
+                row.createCell(cellIx).setCellValue(s.validated);
+                widths[cellIx] = Math.max(widths[cellIx], s.validated ? 4 : 5);
+            }
+            // Widths are in 256ths of a character, plus some padding
+            for (int i = 0; i < widths.length; i++) {
+                sheet.setColumnWidth(i, Math.min(MAX_WIDTH, widths[i] + 2) * 256);
+            }
+            workbook.write(out);
+        } finally {
+            workbook.dispose();
+            workbook.close();
+        }
+    }
+}
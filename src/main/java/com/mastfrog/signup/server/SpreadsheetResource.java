@@ -23,7 +23,6 @@
  */
 package com.mastfrog.signup.server;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.net.MediaType;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
@@ -31,50 +30,58 @@ import com.mastfrog.acteur.Acteur;
 import com.mastfrog.acteur.HttpEvent;
 import com.mastfrog.acteur.annotations.HttpCall;
 import com.mastfrog.acteur.headers.Headers;
+import static com.mastfrog.acteur.headers.Headers.CONTENT_ENCODING;
+import static com.mastfrog.acteur.headers.Headers.CONTENT_LENGTH;
 import static com.mastfrog.acteur.headers.Headers.CONTENT_TYPE;
+import static com.mastfrog.acteur.headers.Headers.ETAG;
 import static com.mastfrog.acteur.headers.Headers.LAST_MODIFIED;
 import static com.mastfrog.acteur.headers.Method.GET;
 import static com.mastfrog.acteur.headers.Method.HEAD;
 import com.mastfrog.acteur.preconditions.Authenticated;
 import com.mastfrog.acteur.preconditions.Methods;
 import com.mastfrog.acteur.preconditions.PathRegex;
-import com.mastfrog.bunyan.Logger;
+import com.mastfrog.settings.Settings;
+import static com.mastfrog.signup.server.SignupServer.DEFAULT_LIST_CHUNK_SIZE;
+import static com.mastfrog.signup.server.SignupServer.DEFAULT_SHEET_ROW_WINDOW;
 import static com.mastfrog.signup.server.SignupServer.GUICE_BINDING_POSSIBLE_SIGNUPS;
+import static com.mastfrog.signup.server.SignupServer.GUICE_BINDING_TEMP_FOLDER;
+import static com.mastfrog.signup.server.SignupServer.SETTINGS_KEY_LIST_CHUNK_SIZE;
+import static com.mastfrog.signup.server.SignupServer.SETTINGS_KEY_SHEET_ROW_WINDOW;
+import com.mastfrog.signup.server.model.CloseableIterator;
 import com.mastfrog.signup.server.model.Signup;
 import com.mastfrog.signup.server.model.Signups;
-import com.mastfrog.util.preconditions.Exceptions;
-import com.mastfrog.util.collections.CollectionUtils;
-import com.mastfrog.util.collections.Converter;
 import com.mastfrog.util.time.TimeUtil;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufOutputStream;
-import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelFutureListener;
-import io.netty.handler.codec.http.DefaultHttpContent;
-import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.HttpHeaderNames;
 import static io.netty.handler.codec.http.HttpHeaderNames.HOST;
+import static io.netty.handler.codec.http.HttpHeaderNames.RETRY_AFTER;
+import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpMethod;
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_MODIFIED;
+import static io.netty.handler.codec.http.HttpResponseStatus.PARTIAL_CONTENT;
+import static io.netty.handler.codec.http.HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.time.ZonedDateTime;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.CellStyle;
-import org.apache.poi.ss.usermodel.CreationHelper;
-import org.apache.poi.ss.usermodel.Font;
-import org.apache.poi.ss.usermodel.IndexedColors;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
+ * Serves the signups as a workbook. Once rendered, a workbook is kept in the
+ * {@link SheetCache} until the next signup arrives, and repeat downloads are
+ * sent from there with a length and support for a single Range.
  *
  * @author Tim Boudreau
  */
@@ -85,127 +92,189 @@ import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 public class SpreadsheetResource extends Acteur {
 
     @Inject
-    SpreadsheetResource(Signups signups, HttpEvent evt) throws IOException {
-        if (HttpMethod.GET.name().equals(evt.method().name())) {
-            setResponseBodyWriter(SRW.class);
+    SpreadsheetResource(Signups signups, HttpEvent evt, ExportExecutor exports, SharedExports shared,
+            SheetCache cache, @Named(GUICE_BINDING_POSSIBLE_SIGNUPS) Set<String> possibilities,
+            Settings settings, ByteBufAllocator alloc, @Named(GUICE_BINDING_TEMP_FOLDER) Path tmp)
+            throws IOException {
+        TimeRange range;
+        try {
+            range = TimeRange.of(evt);
+        } catch (IllegalArgumentException ex) {
+            badRequest(ex.getMessage());
+            return;
         }
-        long lm = Long.MIN_VALUE;
-        for (Path pth : signups) {
-            long dt = Files.getLastModifiedTime(pth).toMillis();
-            lm = Math.max(lm, dt);
+        StoreVersion version = new StoreVersion(signups);
+        add(ETAG, version.etag);
+        add(LAST_MODIFIED, version.lastModified);
+        if (version.isNotModified(evt)) {
+            reply(NOT_MODIFIED);
+            return;
+        }
+        boolean get = HttpMethod.GET.name().equals(evt.method().name());
+        List<String> kinds = new ArrayList<>(possibilities);
+        Collections.sort(kinds);
+        List<?> key = Arrays.asList(range.from, range.to, kinds);
+        FileChannel cached = cache.open(version.generation, key);
+        if (cached == null && get && !exports.tryAcquire(evt.channel())) {
+            add(Headers.header(RETRY_AFTER), Integer.toString(exports.retryAfterSeconds));
+            reply(SERVICE_UNAVAILABLE, "Too many exports in progress.  Please try again in a moment.");
+            return;
         }
         String host = evt.header(HOST);
-        ZonedDateTime lastModified = TimeUtil.fromUnixTimestamp(lm);
-        String nm = (host == null ? "" : host) + "signups-" + TimeUtil.toSortableStringFormat(lastModified) + ".xlsx";
-        add(LAST_MODIFIED, lastModified);
+        String nm = (host == null ? "" : host) + "signups-" + TimeUtil.toSortableStringFormat(version.lastModified) + ".xlsx";
         add(CONTENT_TYPE, MediaType.parse("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet"));
         add(Headers.CONTENT_DISPOSITION, "attachment; filename=\"" + nm + "\"");
+        if (cached != null) {
+            sendCached(cached, evt, version, get, settings);
+            return;
+        }
+        if (get) {
+            int window = settings.getInt(SETTINGS_KEY_SHEET_ROW_WINDOW, DEFAULT_SHEET_ROW_WINDOW);
+            int chunkSize = settings.getInt(SETTINGS_KEY_LIST_CHUNK_SIZE, DEFAULT_LIST_CHUNK_SIZE);
+            setResponseBodyWriter(exports.writer(evt.channel(), () -> {
+                SharedExports.Reader reader = shared.join(
+                        Arrays.asList("sheet", version.generation, range.from, range.to, kinds),
+                        () -> new Sheet(signups.iterator(range.from, range.to, Collections.emptySet()), kinds,
+                                window, Files.createTempFile(tmp, "signups-", ".xlsx"), alloc, chunkSize,
+                                file -> cache.put(version.generation, key, file)));
+                return new SharedExportWriter(settings, exports, shared, reader);
+            }));
+        }
         setChunked(true);
         ok();
     }
 
-    static final class SRW implements Converter<Signup, Path>, ChannelFutureListener {
+    private void sendCached(FileChannel file, HttpEvent evt, StoreVersion version, boolean get,
+            Settings settings) throws IOException {
+        long total = file.size();
+        // Only honor Range if the client's copy is this one
+        String ifRange = evt.header(HttpHeaderNames.IF_RANGE);
+        ByteRange byteRange = ifRange == null || version.etag.equals(ifRange.trim())
+                ? ByteRange.parse(evt.header(HttpHeaderNames.RANGE), total) : null;
+        add(Headers.header(HttpHeaderNames.ACCEPT_RANGES), "bytes");
+        if (byteRange == ByteRange.UNSATISFIABLE) {
+            file.close();
+            add(Headers.header(HttpHeaderNames.CONTENT_RANGE), "bytes */" + total);
+            reply(REQUESTED_RANGE_NOT_SATISFIABLE);
+            return;
+        }
+        long position = byteRange == null ? 0 : byteRange.start;
+        long count = byteRange == null ? total : byteRange.length();
+        // Sent with FileChunks; the workbook is already compressed anyway
+        add(CONTENT_ENCODING, HttpHeaderValues.IDENTITY);
+        add(CONTENT_LENGTH, count);
+        if (get) {
+            setResponseBodyWriter(new CachedFileWriter(settings, file, position, count));
+        } else {
+            file.close();
+        }
+        if (byteRange != null) {
+            add(Headers.header(HttpHeaderNames.CONTENT_RANGE), byteRange.contentRange(total));
+            reply(PARTIAL_CONTENT);
+        } else {
+            ok();
+        }
+    }
 
-        private final ObjectMapper mapper;
-        private final List<String> cells = new ArrayList<>();
-        private final List<String> kinds;
-        private final Signups signups;
-        private final Logger logger;
+    private static final class CachedFileWriter extends ChunkedBodyWriter {
 
-        @Inject
-        SRW(Signups signups, ObjectMapper mapper, @Named(GUICE_BINDING_POSSIBLE_SIGNUPS) Set<String> possibilities, @Named("admin") Logger logger) throws Exception {
-            this.signups = signups;
-            this.mapper = mapper;
-            kinds = new ArrayList<>(possibilities);
-            Collections.sort(kinds);
-            cells.add("Name");
-            cells.add("Email");
-            for (String poss : possibilities) {
-                cells.add(poss);
-            }
-            cells.add("When");
-            cells.add("Email Sent");
-            cells.add("Email Address Verified");
-            this.logger = logger;
+        private final FileChannel file;
+        private final long position;
+        private final long count;
+        private final int chunkSize;
+        private FileChunks chunks;
+
+        CachedFileWriter(Settings settings, FileChannel file, long position, long count) {
+            super(settings);
+            this.file = file;
+            this.position = position;
+            this.count = count;
+            chunkSize = settings.getInt(SETTINGS_KEY_LIST_CHUNK_SIZE, DEFAULT_LIST_CHUNK_SIZE);
         }
 
         @Override
-        public Signup convert(Path r) {
-            try {
-                return mapper.readValue(Files.readAllBytes(r), Signup.class);
-            } catch (IOException ex) {
-                return Exceptions.chuck(ex);
+        protected Object next(Channel channel) throws IOException {
+            if (chunks == null) {
+                chunks = new FileChunks(file, position, count, channel, channel.alloc(), chunkSize);
             }
+            return chunks.next();
         }
 
         @Override
-        public Path unconvert(Signup t) {
-            throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        protected void release() {
+            try {
+                if (chunks == null) {
+                    file.close();
+                } else {
+                    chunks.close();
+                }
+            } catch (IOException ex) {
+                // nothing to do
+            }
         }
+    }
 
-        @Override
-        public void operationComplete(ChannelFuture f) throws Exception {
-            if (f.cause() != null) {
-                f.cause().printStackTrace();
-                logger.warn("spreadsheet").add(f.cause());
-                return;
-            }
-            Workbook workbook = new XSSFWorkbook();
-            CreationHelper createHelper = workbook.getCreationHelper();
-            Sheet sheet = workbook.createSheet("Signups");
+    /**
+     * Renders the workbook to a temporary file the first time it is asked
+     * for a piece, then reads it back a chunk at a time. Once all of it has
+     * been read the file is offered to the cache.
+     */
+    private static final class Sheet implements SharedExports.Source {
 
-            Font headerFont = workbook.createFont();
-            headerFont.setBold(true);
-            headerFont.setFontHeightInPoints((short) 14);
-            headerFont.setColor(IndexedColors.RED.getIndex());
+        private final CloseableIterator<Signup> rows;
+        private final List<String> kinds;
+        private final int window;
+        private final Path file;
+        private final ByteBufAllocator alloc;
+        private final int chunkSize;
+        private final Consumer<Path> completed;
+        private FileChannel channel;
 
-            // Create a CellStyle with the font
-            CellStyle headerCellStyle = workbook.createCellStyle();
-            headerCellStyle.setFont(headerFont);
+        Sheet(CloseableIterator<Signup> rows, List<String> kinds, int window, Path file, ByteBufAllocator alloc,
+                int chunkSize, Consumer<Path> completed) {
+            this.rows = rows;
+            this.kinds = kinds;
+            this.window = window;
+            this.file = file;
+            this.alloc = alloc;
+            this.chunkSize = chunkSize;
+            this.completed = completed;
+        }
 
-            Row headerRow = sheet.createRow(0);
-            for (int i = 0; i < cells.size(); i++) {
-                Cell cell = headerRow.createCell(i);
-                cell.setCellValue(cells.get(i));
-                cell.setCellStyle(headerCellStyle);
-            }
-            CellStyle dateCellStyle = workbook.createCellStyle();
-            dateCellStyle.setDataFormat(createHelper.createDataFormat().getFormat("dd-MM-yyyy"));
-            Iterator<Signup> it = CollectionUtils.convertedIterator(this, signups.iterator());
-            int ix = 0;
-            long lm = Long.MIN_VALUE;
-            while (it.hasNext()) {
-                int cellIx = 0;
-                Signup s = it.next();
-                Row row = sheet.createRow(ix++);
-                lm = Math.max(lm, s.when);
-                row.createCell(cellIx++).setCellValue(s.info.name == null ? "" : s.info.name);
-                row.createCell(cellIx++).setCellValue(s.info.emailAddress);
-                for (String poss : kinds) {
-                    row.createCell(cellIx++).setCellValue(s.info.signedUpFor.contains(poss));
+        @Override
+        public ByteBuf next() throws IOException {
+            if (channel == null) {
+                try (OutputStream out = Files.newOutputStream(file)) {
+                    SignupWorkbook.write(rows, kinds, window, out);
                 }
-                Cell dateCell = row.createCell(cellIx++);
-                dateCell.setCellStyle(dateCellStyle);
-                dateCell.setCellValue(new Date(s.when));
-                row.createCell(cellIx++).setCellValue(s.emailed);
-                row.createCell(cellIx++).setCellValue(s.validated);
-            }
-            // Resize all columns to fit the content size
-            for (int i = 0; i < cells.size(); i++) {
-                sheet.autoSizeColumn(i);
+                rows.close();
+                channel = FileChannel.open(file, StandardOpenOption.READ);
             }
-            ByteBuf buf = f.channel().alloc().ioBuffer();
-            try (ByteBufOutputStream o = new ByteBufOutputStream(buf)) {
-                workbook.write(o);
+            ByteBuf buf = alloc.ioBuffer(chunkSize);
+            try {
+                if (buf.writeBytes(channel, chunkSize) < 0) {
+                    buf.release();
+                    completed.accept(file);
+                    return null;
+                }
+            } catch (IOException | RuntimeException | Error ex) {
+                buf.release();
+                throw ex;
             }
-            f = f.channel().writeAndFlush(new DefaultHttpContent(buf)).addListener((ChannelFuture ff) -> {
-                if (ff.cause() != null) {
-                    ff.cause().printStackTrace();
-                    logger.warn("spreadsheet").add(ff.cause()).close();
-                    return;
+            return buf;
+        }
+
+        @Override
+        public void close() {
+            rows.close();
+            try {
+                if (channel != null) {
+                    channel.close();
                 }
-                ff.channel().writeAndFlush(DefaultLastHttpContent.EMPTY_LAST_CONTENT);
-            });
+                Files.deleteIfExists(file);
+            } catch (IOException ex) {
+                Logger.getLogger(SpreadsheetResource.class.getName()).log(Level.WARNING, "Deleting " + file, ex);
+            }
         }
     }
 }
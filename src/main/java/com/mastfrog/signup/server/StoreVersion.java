@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server;
+
+import com.mastfrog.acteur.HttpEvent;
+import static com.mastfrog.acteur.headers.Headers.IF_MODIFIED_SINCE;
+import static com.mastfrog.acteur.headers.Headers.IF_NONE_MATCH;
+import com.mastfrog.signup.server.model.Signups;
+import com.mastfrog.util.time.TimeUtil;
+import java.time.ZonedDateTime;
+
+/**
+ * The ETag and Last-Modified validators for responses computed from the
+ * store, taken from the generation and last write time {@link Signups}
+ * keeps in memory, so answering a conditional request never touches the
+ * disk.
+ * <p>
+ * Both only reflect what was on disk at startup and what this node has
+ * written since, so they are only valid while a single node writes to the
+ * store: a node does not see another's writes, and would keep answering 304
+ * for a listing another node has since changed. The ETag includes the last
+ * write time as well as the generation, so one from before a restart is not
+ * mistaken for a later, different store that happens to reach the same
+ * generation.
+ *
+ * @author Tim Boudreau
+ */
+final class StoreVersion {
+
+    final String etag;
+    final long generation;
+    final ZonedDateTime lastModified;
+    private final long lastModifiedSeconds;
+
+    StoreVersion(Signups signups) {
+        this(signups, null);
+    }
+
+    /**
+     * Create validators for one representation of the store's contents.
+     *
+     * @param signups The signups
+     * @param variant Distinguishes the representation, such as a content
+     * coding, from others of the same generation; may be null
+     */
+    StoreVersion(Signups signups, String variant) {
+        // Read the generation first - a write landing in between can only
+        // make the timestamp newer than the generation, never older
+        generation = signups.generation();
+        long lm = signups.lastModified();
+        etag = "\"" + signups.node() + "-" + Long.toString(generation, 36)
+                + "-" + Long.toString(lm, 36)
+                + (variant == null ? "" : "-" + variant) + "\"";
+        lastModified = TimeUtil.fromUnixTimestamp(lm);
+        lastModifiedSeconds = lm / 1000;
+    }
+
+    /**
+     * Determine if a request's conditional headers show the client already
+     * has this version. If-None-Match takes precedence over
+     * If-Modified-Since when both are present.
+     *
+     * @param evt The request
+     * @return true if a 304 should be sent
+     */
+    boolean isNotModified(HttpEvent evt) {
+        CharSequence inm = evt.header(IF_NONE_MATCH);
+        if (inm != null) {
+            for (String tag : inm.toString().split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if ("*".equals(tag) || etag.equals(tag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        ZonedDateTime ims;
+        try {
+            ims = evt.header(IF_MODIFIED_SINCE);
+        } catch (RuntimeException ex) {
+            // Unparseable dates are ignored
+            return false;
+        }
+        return ims != null && lastModifiedSeconds <= TimeUtil.toUnixTimestamp(ims) / 1000;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server;
+
+import com.mastfrog.acteur.HttpEvent;
+
+/**
+ * The content codings the admin listing can apply itself while streaming,
+ * and the parsing of <code>Accept</code>-style headers needed to pick one.
+ *
+ * @author Tim Boudreau
+ */
+enum StreamEncoding {
+    IDENTITY("identity"),
+    GZIP("gzip"),
+    DEFLATE("deflate");
+    private final String token;
+
+    StreamEncoding(String token) {
+        this.token = token;
+    }
+
+    String token() {
+        return token;
+    }
+
+    /**
+     * Pick an encoding from a request's <code>Accept-Encoding</code>
+     * header, preferring gzip when the client accepts both equally.
+     *
+     * @param evt The request
+     * @return An encoding
+     */
+    static StreamEncoding negotiate(HttpEvent evt) {
+        String accept = evt.header("Accept-Encoding");
+        if (accept == null) {
+            return IDENTITY;
+        }
+        float gzip = quality(accept, GZIP.token, "x-gzip", "*");
+        float deflate = quality(accept, DEFLATE.token, "*");
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        } else if (deflate > 0) {
+            return DEFLATE;
+        }
+        return IDENTITY;
+    }
+
+    /**
+     * Find the quality value an <code>Accept</code>-style header gives to
+     * the first of some names it lists; earlier names are more specific
+     * than later ones, such as a wildcard.
+     *
+     * @param header The header value
+     * @param names Names, most specific first
+     * @return The quality, or -1 if none of the names is listed
+     */
+    static float quality(String header, String... names) {
+        for (String name : names) {
+            for (String element : header.split(",")) {
+                String[] parts = element.split(";");
+                if (!name.equalsIgnoreCase(parts[0].trim())) {
+                    continue;
+                }
+                for (int i = 1; i < parts.length; i++) {
+                    String param = parts[i].trim();
+                    if (param.startsWith("q=") || param.startsWith("Q=")) {
+                        try {
+                            return Float.parseFloat(param.substring(2).trim());
+                        } catch (NumberFormatException ex) {
+                            return 0;
+                        }
+                    }
+                }
+                return 1;
+            }
+        }
+        return -1;
+    }
+}
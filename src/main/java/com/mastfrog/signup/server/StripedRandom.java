@@ -0,0 +1,119 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server;
+
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.SplittableRandom;
+
+/**
+ * A Random which gives each thread its own generator, so threads drawing
+ * random numbers concurrently never contend on a shared seed. Each thread's
+ * generator is seeded from a SecureRandom, and seeded again after it has
+ * been drawn from a set number of times. Bound in place of a shared
+ * java.util.Random; setSeed() is ignored.
+ *
+ * @author Tim Boudreau
+ */
+public final class StripedRandom extends Random {
+
+    private final SecureRandom seeds;
+    private final long reseedInterval;
+    private final ThreadLocal<Stripe> stripes;
+
+    public StripedRandom(SecureRandom seeds, long reseedInterval) {
+        if (reseedInterval <= 0) {
+            throw new IllegalArgumentException("Reseed interval must be > 0: " + reseedInterval);
+        }
+        this.seeds = seeds;
+        this.reseedInterval = reseedInterval;
+        stripes = ThreadLocal.withInitial(Stripe::new);
+    }
+
+    private SplittableRandom stripe() {
+        return stripes.get().next();
+    }
+
+    @Override
+    public synchronized void setSeed(long seed) {
+        // Called from Random's constructor; the per-thread generators are
+        // only ever seeded from the SecureRandom
+    }
+
+    @Override
+    protected int next(int bits) {
+        return stripe().nextInt() >>> (32 - bits);
+    }
+
+    @Override
+    public int nextInt() {
+        return stripe().nextInt();
+    }
+
+    @Override
+    public int nextInt(int bound) {
+        return stripe().nextInt(bound);
+    }
+
+    @Override
+    public long nextLong() {
+        return stripe().nextLong();
+    }
+
+    @Override
+    public boolean nextBoolean() {
+        return stripe().nextBoolean();
+    }
+
+    @Override
+    public double nextDouble() {
+        return stripe().nextDouble();
+    }
+
+    @Override
+    public void nextBytes(byte[] bytes) {
+        SplittableRandom rnd = stripe();
+        for (int i = 0; i < bytes.length;) {
+            for (long val = rnd.nextLong(), n = Math.min(bytes.length - i, 8); n-- > 0; val >>= 8) {
+                bytes[i++] = (byte) val;
+            }
+        }
+    }
+
+    private final class Stripe {
+
+        private SplittableRandom random;
+        private long remaining;
+
+        SplittableRandom next() {
+            if (--remaining < 0) {
+                // SecureRandom is thread-safe; this is the only point threads
+                // share, once per reseed interval
+                random = new SplittableRandom(seeds.nextLong());
+                remaining = reseedInterval - 1;
+            }
+            return random;
+        }
+    }
+}
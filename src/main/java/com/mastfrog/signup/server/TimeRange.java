@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server;
+
+import com.mastfrog.acteur.HttpEvent;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+
+/**
+ * The optional <code>from</code> and <code>to</code> parameters of the admin
+ * export endpoints. Each may be a unix timestamp in milliseconds, an ISO
+ * date, or an ISO date-time (UTC unless it has an offset). The range includes
+ * <code>from</code> and excludes <code>to</code> - except that a
+ * <code>to</code> which is a bare date includes that whole day.
+ *
+ * @author Tim Boudreau
+ */
+public final class TimeRange {
+
+    public static final String PARAM_FROM = "from";
+    public static final String PARAM_TO = "to";
+    public static final TimeRange ALL = new TimeRange(Long.MIN_VALUE, Long.MAX_VALUE);
+    public final long from;
+    public final long to;
+
+    public TimeRange(long from, long to) {
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Get the range specified by a request's parameters.
+     *
+     * @param evt The request
+     * @return A range
+     * @throws IllegalArgumentException if a parameter cannot be parsed, or
+     * the range is empty
+     */
+    public static TimeRange of(HttpEvent evt) {
+        String f = evt.urlParameter(PARAM_FROM);
+        String t = evt.urlParameter(PARAM_TO);
+        if (f == null && t == null) {
+            return ALL;
+        }
+        long from = f == null ? Long.MIN_VALUE : parse(PARAM_FROM, f, false);
+        long to = t == null ? Long.MAX_VALUE : parse(PARAM_TO, t, true);
+        if (from >= to) {
+            throw new IllegalArgumentException("'" + PARAM_FROM + "' must be before '" + PARAM_TO + "'");
+        }
+        return new TimeRange(from, to);
+    }
+
+    private static long parse(String name, String value, boolean end) {
+        String v = value.trim();
+        try {
+            if (!v.isEmpty() && v.chars().allMatch(Character::isDigit)) {
+                return Long.parseLong(v);
+            }
+            if (v.length() == 10) {
+                LocalDate date = LocalDate.parse(v);
+                return (end ? date.plusDays(1) : date).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+            }
+            try {
+                return OffsetDateTime.parse(v).toInstant().toEpochMilli();
+            } catch (DateTimeParseException ex) {
+                try {
+                    return Instant.parse(v).toEpochMilli();
+                } catch (DateTimeParseException ex2) {
+                    return LocalDateTime.parse(v).toInstant(ZoneOffset.UTC).toEpochMilli();
+                }
+            }
+        } catch (NumberFormatException | DateTimeParseException ex) {
+            throw new IllegalArgumentException("Bad value for '" + name + "': " + value);
+        }
+    }
+
+    public boolean isAll() {
+        return from == Long.MIN_VALUE && to == Long.MAX_VALUE;
+    }
+
+    @Override
+    public String toString() {
+        return from + "-" + to;
+    }
+}
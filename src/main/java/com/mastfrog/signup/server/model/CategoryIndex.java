@@ -0,0 +1,122 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A bitmap of record ordinals per category, so a query for signups in
+ * several categories is an intersection of bitmaps rather than a scan of
+ * every record.
+ *
+ * @author Tim Boudreau
+ */
+final class CategoryIndex {
+
+    private final Map<String, OrdinalBitmap> bitmaps = new TreeMap<>();
+
+    synchronized void add(int ordinal, Collection<String> categories) {
+        for (String category : categories) {
+            bitmaps.computeIfAbsent(category, c -> new OrdinalBitmap()).add(ordinal);
+        }
+    }
+
+    /**
+     * Add every ordinal in a bitmap, shifted by an offset, to a category.
+     *
+     * @param category The category
+     * @param ordinals The ordinals
+     * @param offset The offset
+     */
+    synchronized void addAll(String category, OrdinalBitmap ordinals, int offset) {
+        bitmaps.computeIfAbsent(category, c -> new OrdinalBitmap()).addAll(ordinals, offset);
+    }
+
+    /**
+     * Get the ordinals of records in every one of a set of categories.
+     *
+     * @param categories The categories, at least one
+     * @return A new bitmap, which the caller may use without locking
+     */
+    synchronized OrdinalBitmap allOf(Collection<String> categories) {
+        OrdinalBitmap result = null;
+        for (String category : categories) {
+            OrdinalBitmap bitmap = bitmaps.get(category);
+            if (bitmap == null) {
+                return new OrdinalBitmap();
+            }
+            result = result == null ? bitmap.below(Integer.MAX_VALUE) : result.and(bitmap);
+        }
+        if (result == null) {
+            throw new IllegalArgumentException("No categories");
+        }
+        return result;
+    }
+
+    synchronized int categoryCount() {
+        return bitmaps.size();
+    }
+
+    /**
+     * Copy the index, omitting ordinals at or above a limit.
+     *
+     * @param limit The limit
+     * @return A new index
+     */
+    synchronized CategoryIndex below(int limit) {
+        CategoryIndex result = new CategoryIndex();
+        bitmaps.forEach((category, bitmap) -> {
+            OrdinalBitmap copy = bitmap.below(limit);
+            if (!copy.isEmpty()) {
+                result.bitmaps.put(category, copy);
+            }
+        });
+        return result;
+    }
+
+    synchronized void write(DataOutput out) throws IOException {
+        out.writeInt(bitmaps.size());
+        for (Map.Entry<String, OrdinalBitmap> e : bitmaps.entrySet()) {
+            out.writeUTF(e.getKey());
+            e.getValue().write(out);
+        }
+    }
+
+    static CategoryIndex read(DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Bad category count " + count);
+        }
+        CategoryIndex result = new CategoryIndex();
+        for (int i = 0; i < count; i++) {
+            result.bitmaps.put(in.readUTF(), OrdinalBitmap.read(in));
+        }
+        return result;
+    }
+}
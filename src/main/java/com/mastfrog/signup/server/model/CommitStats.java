@@ -0,0 +1,82 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Batch size and latency of fsyncs, for tuning the group commit window.
+ *
+ * @author Tim Boudreau
+ */
+public final class CommitStats {
+
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder records = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxBatch = new LongAccumulator(Math::max, 0);
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+    private volatile int lastBatch;
+    private volatile long lastNanos;
+
+    void onCommit(int batchSize, long nanos) {
+        commits.increment();
+        records.add(batchSize);
+        totalNanos.add(nanos);
+        maxBatch.accumulate(batchSize);
+        maxNanos.accumulate(nanos);
+        lastBatch = batchSize;
+        lastNanos = nanos;
+    }
+
+    public long commits() {
+        return commits.sum();
+    }
+
+    public long records() {
+        return records.sum();
+    }
+
+    public Map<String, Object> toMap() {
+        long c = commits.sum();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("commits", c);
+        result.put("records", records.sum());
+        result.put("meanBatchSize", c == 0 ? 0D : records.sum() / (double) c);
+        result.put("maxBatchSize", maxBatch.get());
+        result.put("lastBatchSize", lastBatch);
+        result.put("meanCommitMillis", c == 0 ? 0D : millis(totalNanos.sum()) / c);
+        result.put("maxCommitMillis", millis(maxNanos.get()));
+        result.put("lastCommitMillis", millis(lastNanos));
+        return result;
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,448 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import com.mastfrog.util.preconditions.Exceptions;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A closed session's records merged into one file of deflate-compressed,
+ * CRC32-checked blocks of about 64Kb, followed by an index of block offsets
+ * so a record can be located without decompressing the blocks before it.
+ * A block never spans two time buckets, and the index records the time span
+ * of each block's bucket, so reads of a time range skip blocks outside it.
+ * <pre>
+ * header:  int magic, int version, int recordCount
+ * blocks:  int compressedLength, int length, int crc32, compressed bytes
+ *          (uncompressed: repeated int recordLength, record bytes)
+ * index:   per block - long offset, int firstRecord, long from, long to
+ * footer:  int blockCount, long indexOffset, int magic
+ * </pre>
+ * Version 1 files have no time spans in the index, and are treated as
+ * unbounded.
+ *
+ * @author Tim Boudreau
+ */
+final class CompactedSegment implements Closeable {
+
+    static final String SUFFIX = ".cseg";
+    private static final int MAGIC = 0x43534547;
+    private static final int VERSION_1 = 1;
+    private static final int VERSION = 2;
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int HEADER_LENGTH = Integer.BYTES * 3;
+    private static final int BLOCK_HEADER_LENGTH = Integer.BYTES * 3;
+    private static final int FOOTER_LENGTH = Integer.BYTES + Long.BYTES + Integer.BYTES;
+    private final Path file;
+    private final FileChannel channel;
+    private final int recordCount;
+    private final long[] blockOffsets;
+    private final int[] firstRecords;
+    private final long[] spanStarts;
+    private final long[] spanEnds;
+
+    CompactedSegment(Path file) throws IOException {
+        this.file = file;
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = read(0, HEADER_LENGTH);
+            int version;
+            if (header.getInt() != MAGIC || ((version = header.getInt()) != VERSION && version != VERSION_1)) {
+                throw new IOException("Not a compacted segment: " + file);
+            }
+            recordCount = header.getInt();
+            ByteBuffer footer = read(channel.size() - FOOTER_LENGTH, FOOTER_LENGTH);
+            int blockCount = footer.getInt();
+            long indexOffset = footer.getLong();
+            if (footer.getInt() != MAGIC) {
+                throw new IOException("Truncated compacted segment: " + file);
+            }
+            boolean spans = version != VERSION_1;
+            ByteBuffer index = read(indexOffset, blockCount * (Long.BYTES + Integer.BYTES
+                    + (spans ? Long.BYTES * 2 : 0)));
+            blockOffsets = new long[blockCount];
+            firstRecords = new int[blockCount];
+            spanStarts = new long[blockCount];
+            spanEnds = new long[blockCount];
+            for (int i = 0; i < blockCount; i++) {
+                blockOffsets[i] = index.getLong();
+                firstRecords[i] = index.getInt();
+                spanStarts[i] = spans ? index.getLong() : Long.MIN_VALUE;
+                spanEnds[i] = spans ? index.getLong() : Long.MAX_VALUE;
+            }
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    static boolean isCompactedSegment(Path path) {
+        return path.getFileName().toString().endsWith(SUFFIX);
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new IOException("Unexpected end of " + file);
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    int recordCount() {
+        return recordCount;
+    }
+
+    private List<byte[]> block(int blockIndex) throws IOException {
+        ByteBuffer blockHeader = read(blockOffsets[blockIndex], BLOCK_HEADER_LENGTH);
+        int compressedLength = blockHeader.getInt();
+        int length = blockHeader.getInt();
+        int crc = blockHeader.getInt();
+        ByteBuffer compressed = read(blockOffsets[blockIndex] + BLOCK_HEADER_LENGTH, compressedLength);
+        byte[] data = new byte[length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed.array(), 0, compressedLength);
+            int inflated = 0;
+            while (inflated < length && !inflater.finished()) {
+                int count = inflater.inflate(data, inflated, length - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    // Truncated, or not what we wrote - it will never finish
+                    throw new IOException("Truncated block " + blockIndex + " in " + file);
+                }
+                inflated += count;
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupt block " + blockIndex + " in " + file, ex);
+        } finally {
+            inflater.end();
+        }
+        CRC32 check = new CRC32();
+        check.update(data, 0, length);
+        if ((int) check.getValue() != crc) {
+            throw new IOException("Checksum mismatch in block " + blockIndex + " of " + file);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        List<byte[]> result = new ArrayList<>();
+        while (buf.hasRemaining()) {
+            byte[] record = new byte[buf.getInt()];
+            buf.get(record);
+            result.add(record);
+        }
+        return result;
+    }
+
+    private List<byte[]> blockOrChuck(int blockIndex) {
+        try {
+            return block(blockIndex);
+        } catch (IOException ex) {
+            return Exceptions.chuck(ex);
+        }
+    }
+
+    /**
+     * Fetch a single record, decompressing only the block containing it.
+     *
+     * @param ordinal The index of the record within this segment
+     * @return The record
+     * @throws IOException If something goes wrong
+     */
+    byte[] record(int ordinal) throws IOException {
+        if (ordinal < 0 || ordinal >= recordCount) {
+            throw new IndexOutOfBoundsException(ordinal + " of " + recordCount);
+        }
+        int blockIndex = -1;
+        int lo = 0;
+        int hi = firstRecords.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (firstRecords[mid] <= ordinal) {
+                blockIndex = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return block(blockIndex).get(ordinal - firstRecords[blockIndex]);
+    }
+
+    Stream<byte[]> records() {
+        return records(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Stream the records in blocks whose time span overlaps a range; the
+     * result may include records outside the range, but only blocks which
+     * can contain records in it are decompressed.
+     *
+     * @param from The start of the range, inclusive
+     * @param to The end of the range, exclusive
+     * @return A stream
+     */
+    Stream<byte[]> records(long from, long to) {
+        return IntStream.range(0, blockOffsets.length)
+                .filter(block -> spanStarts[block] < to && spanEnds[block] > from)
+                .mapToObj(this::blockOrChuck)
+                .flatMap(List::stream);
+    }
+
+    /**
+     * Stream the records at selected positions, decompressing only the
+     * blocks which hold at least one of them.
+     *
+     * @param next Given a position, returns the first selected position at
+     * or after it, or Integer.MAX_VALUE if there are none
+     * @return A stream
+     */
+    Stream<byte[]> records(IntUnaryOperator next) {
+        return IntStream.range(0, blockOffsets.length)
+                .filter(block -> next.applyAsInt(firstRecords[block]) < blockEnd(block))
+                .mapToObj(block -> {
+                    List<byte[]> all = blockOrChuck(block);
+                    int first = firstRecords[block];
+                    List<byte[]> result = new ArrayList<>();
+                    for (int pos = next.applyAsInt(first); pos < first + all.size(); pos = next.applyAsInt(pos + 1)) {
+                        result.add(all.get(pos - first));
+                    }
+                    return result;
+                }).flatMap(List::stream);
+    }
+
+    private int blockEnd(int block) {
+        return block + 1 < firstRecords.length ? firstRecords[block + 1] : recordCount;
+    }
+
+    /**
+     * Stream the records of a segment, closing it when the stream is closed.
+     *
+     * @param file The segment
+     * @return A stream
+     */
+    static Stream<byte[]> records(Path file) {
+        return records(file, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    static Stream<byte[]> records(Path file, long from, long to) {
+        try {
+            CompactedSegment seg = new CompactedSegment(file);
+            return seg.records(from, to).onClose(seg::closeQuietly);
+        } catch (IOException ex) {
+            return Exceptions.chuck(ex);
+        }
+    }
+
+    static Stream<byte[]> records(Path file, IntUnaryOperator next) {
+        try {
+            CompactedSegment seg = new CompactedSegment(file);
+            return seg.records(next).onClose(seg::closeQuietly);
+        } catch (IOException ex) {
+            return Exceptions.chuck(ex);
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException ex) {
+            Exceptions.chuck(ex);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Write a compacted segment of records with no known time span. The file
+     * appears under its final name only once it is completely written and
+     * synced.
+     *
+     * @param target The file to create
+     * @param records The records
+     * @return The number of records written
+     * @throws IOException If something goes wrong
+     */
+    static int write(Path target, Iterator<byte[]> records) throws IOException {
+        try (Writer writer = new Writer(target)) {
+            writer.span(Long.MIN_VALUE, Long.MAX_VALUE);
+            while (records.hasNext()) {
+                writer.add(records.next());
+            }
+            return writer.commit();
+        }
+    }
+
+    /**
+     * Writes a compacted segment to a temporary file, moving it to its final
+     * name on commit; if closed without committing, the temporary file is
+     * deleted.
+     */
+    static final class Writer implements Closeable {
+
+        private final Path target;
+        private final Path tmp;
+        private final DataOutputStream data;
+        private final ByteArrayOutputStream blockBytes = new ByteArrayOutputStream(BLOCK_SIZE + 4096);
+        private final DataOutputStream block = new DataOutputStream(blockBytes);
+        private final Deflater deflater = new Deflater();
+        private final byte[] deflated = new byte[BLOCK_SIZE];
+        private final ByteArrayOutputStream compressed = new ByteArrayOutputStream(BLOCK_SIZE);
+        private final CRC32 crc = new CRC32();
+        private final List<long[]> index = new ArrayList<>();
+        private long position = HEADER_LENGTH;
+        private int count;
+        private int blockFirst;
+        private long spanStart = Long.MIN_VALUE;
+        private long spanEnd = Long.MAX_VALUE;
+        private boolean committed;
+
+        Writer(Path target) throws IOException {
+            this.target = target;
+            // Unique, since another node sharing the store may be compacting
+            // the same session
+            tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+            data = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), BLOCK_SIZE));
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeInt(0); // record count, patched on commit
+        }
+
+        /**
+         * Start a new time span; subsequent records are written to blocks
+         * labelled with it.
+         *
+         * @param from The start of the span, inclusive
+         * @param to The end of the span, exclusive
+         * @throws IOException If something goes wrong
+         */
+        void span(long from, long to) throws IOException {
+            flushBlock();
+            spanStart = from;
+            spanEnd = to;
+        }
+
+        void add(byte[] record) throws IOException {
+            block.writeInt(record.length);
+            block.write(record);
+            count++;
+            if (blockBytes.size() >= BLOCK_SIZE) {
+                flushBlock();
+            }
+        }
+
+        private void flushBlock() throws IOException {
+            if (blockBytes.size() == 0) {
+                return;
+            }
+            index.add(new long[]{position, blockFirst, spanStart, spanEnd});
+            byte[] raw = blockBytes.toByteArray();
+            crc.reset();
+            crc.update(raw, 0, raw.length);
+            deflater.reset();
+            deflater.setInput(raw);
+            deflater.finish();
+            compressed.reset();
+            while (!deflater.finished()) {
+                int len = deflater.deflate(deflated);
+                compressed.write(deflated, 0, len);
+            }
+            data.writeInt(compressed.size());
+            data.writeInt(raw.length);
+            data.writeInt((int) crc.getValue());
+            compressed.writeTo(data);
+            position += BLOCK_HEADER_LENGTH + compressed.size();
+            blockBytes.reset();
+            blockFirst = count;
+        }
+
+        /**
+         * Finish the file, sync it and move it into place.
+         *
+         * @return The number of records written
+         * @throws IOException If something goes wrong
+         */
+        int commit() throws IOException {
+            flushBlock();
+            long indexOffset = position;
+            for (long[] entry : index) {
+                data.writeLong(entry[0]);
+                data.writeInt((int) entry[1]);
+                data.writeLong(entry[2]);
+                data.writeLong(entry[3]);
+            }
+            data.writeInt(index.size());
+            data.writeLong(indexOffset);
+            data.writeInt(MAGIC);
+            data.close();
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                ByteBuffer countBytes = ByteBuffer.allocate(Integer.BYTES).putInt(0, count);
+                ch.write(countBytes, Integer.BYTES * 2);
+                ch.force(true);
+            }
+            try {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp, target);
+            }
+            // The session directory is deleted once this exists, so the
+            // rename must be durable first
+            Directories.sync(target.getParent());
+            committed = true;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            deflater.end();
+            if (!committed) {
+                data.close();
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+}
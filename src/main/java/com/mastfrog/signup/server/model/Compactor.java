@@ -0,0 +1,111 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Merges the files of closed sessions into compacted segments. A session's
+ * directory is only deleted on the pass <i>after</i> the one that compacted
+ * it, so a listing which started reading the directory before the compacted
+ * segment appeared can finish undisturbed.
+ *
+ * @author Tim Boudreau
+ */
+final class Compactor implements Runnable {
+
+    private static final Logger LOG = Logger.getLogger(Compactor.class.getName());
+    private final StoreLayout layout;
+    private final long currentLaunch;
+    private final long minIdleMillis;
+
+    /**
+     * Create a compactor.
+     *
+     * @param layout The store
+     * @param currentLaunch The session being written by this process, which
+     * is never compacted
+     * @param minIdleMillis How long a session must have gone without writes
+     * before it is considered closed
+     */
+    Compactor(StoreLayout layout, long currentLaunch, long minIdleMillis) {
+        this.layout = layout;
+        this.currentLaunch = currentLaunch;
+        this.minIdleMillis = minIdleMillis;
+    }
+
+    @Override
+    public void run() {
+        try {
+            compact();
+        } catch (IOException | RuntimeException ex) {
+            LOG.log(Level.WARNING, "Compaction failed", ex);
+        }
+    }
+
+    /**
+     * Run one compaction pass.
+     *
+     * @return The number of sessions compacted
+     * @throws IOException If something goes wrong
+     */
+    int compact() throws IOException {
+        int result = 0;
+        for (long launch : layout.launches()) {
+            if (launch == currentLaunch || !layout.hasSessionDir(launch)) {
+                continue;
+            }
+            if (layout.isCompacted(launch)) {
+                layout.deleteSessionDir(launch);
+                continue;
+            }
+            List<StoreLayout.Bucket> buckets = layout.buckets(launch);
+            if (!StoreLayout.isIdle(buckets, System.currentTimeMillis() - minIdleMillis)) {
+                continue;
+            }
+            Directories.create(layout.compactedSegment(launch).getParent());
+            long start = System.currentTimeMillis();
+            int count;
+            try (CompactedSegment.Writer writer = new CompactedSegment.Writer(layout.compactedSegment(launch))) {
+                for (StoreLayout.Bucket bucket : buckets) {
+                    writer.span(bucket.from, bucket.to);
+                    try (Stream<byte[]> records = StoreLayout.records(bucket.files.stream())) {
+                        for (byte[] record : (Iterable<byte[]>) records::iterator) {
+                            writer.add(record);
+                        }
+                    }
+                }
+                count = writer.commit();
+            }
+            LOG.log(Level.INFO, "Compacted {0} records from {1} buckets of session {2} in {3}ms",
+                    new Object[]{count, buckets.size(), launch, System.currentTimeMillis() - start});
+            result++;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import com.mastfrog.util.preconditions.ConfigurationError;
+
+/**
+ * When a signup is considered safely written, and so when the client gets its
+ * response.
+ *
+ * @author Tim Boudreau
+ */
+public enum Durability {
+    /**
+     * Never fsync; rely on the OS to flush eventually.
+     */
+    NONE,
+    /**
+     * Requests arriving within a short window share a single fsync, and are
+     * answered once it completes. For file-per-record storage, where there is
+     * no shared file to sync, this behaves like SYNC.
+     */
+    GROUP,
+    /**
+     * Fsync after every record.
+     */
+    SYNC;
+
+    public static Durability parse(String s) {
+        for (Durability d : values()) {
+            if (d.name().equalsIgnoreCase(s.trim())) {
+                return d;
+            }
+        }
+        throw new ConfigurationError("Unknown durability '" + s + "'");
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Maps email addresses to record ordinals without holding the addresses
+ * themselves: each address is reduced to a 64-bit hash, and hashes and
+ * ordinals live in parallel primitive arrays using open addressing, so a
+ * million addresses cost tens of megabytes rather than a HashMap's hundreds.
+ * The chance of two distinct addresses colliding at that size is on the order
+ * of one in ten million.
+ *
+ * @author Tim Boudreau
+ */
+final class EmailIndex {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+    private static final long EMPTY = 0;
+    private static final float LOAD_FACTOR = 0.6F;
+    private long[] keys;
+    private int[] ordinals;
+    private int size;
+    private int threshold;
+
+    EmailIndex(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        ordinals = new int[capacity];
+        threshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    static String normalize(String email) {
+        return email.trim().toLowerCase(Locale.ROOT);
+    }
+
+    static long hash(String email) {
+        long result = HASH.hashString(normalize(email), StandardCharsets.UTF_8).asLong();
+        return result == EMPTY ? 1 : result;
+    }
+
+    private int slot(long[] keys, long hash) {
+        int mask = keys.length - 1;
+        int ix = (int) (hash ^ (hash >>> 32)) & mask;
+        while (keys[ix] != EMPTY && keys[ix] != hash) {
+            ix = (ix + 1) & mask;
+        }
+        return ix;
+    }
+
+    synchronized boolean contains(long hash) {
+        return keys[slot(keys, hash)] == hash;
+    }
+
+    /**
+     * Get the ordinal of the record for an address.
+     *
+     * @param hash The hash of the address
+     * @return The ordinal, or -1 if not present
+     */
+    synchronized int get(long hash) {
+        int ix = slot(keys, hash);
+        return keys[ix] == hash ? ordinals[ix] : -1;
+    }
+
+    /**
+     * Add an address, if it is not already present.
+     *
+     * @param hash The hash of the address
+     * @param ordinal The record ordinal
+     * @return false if the address was already present
+     */
+    synchronized boolean put(long hash, int ordinal) {
+        int ix = slot(keys, hash);
+        if (keys[ix] == hash) {
+            return false;
+        }
+        keys[ix] = hash;
+        ordinals[ix] = ordinal;
+        if (++size > threshold) {
+            grow();
+        }
+        return true;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Visit every entry whose ordinal is below a limit.
+     *
+     * @param ordinalLimit The limit
+     * @param consumer A consumer
+     * @throws IOException If the consumer throws
+     */
+    synchronized void each(int ordinalLimit, EntryConsumer consumer) throws IOException {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY && ordinals[i] < ordinalLimit) {
+                consumer.accept(keys[i], ordinals[i]);
+            }
+        }
+    }
+
+    interface EntryConsumer {
+
+        void accept(long hash, int ordinal) throws IOException;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldOrdinals = ordinals;
+        allocate(oldKeys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int ix = slot(keys, oldKeys[i]);
+                keys[ix] = oldKeys[i];
+                ordinals[ix] = oldOrdinals[i];
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "EmailIndex(" + size + " of " + keys.length + ")";
+    }
+}
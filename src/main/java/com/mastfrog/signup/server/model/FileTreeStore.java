@@ -0,0 +1,69 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.mastfrog.settings.Settings;
+import static com.mastfrog.signup.server.SignupServer.GUICE_BINDING_ATOMIC_MOVES;
+import static com.mastfrog.signup.server.SignupServer.GUICE_BINDING_LAUNCH_TIMESTAMP;
+import static com.mastfrog.signup.server.SignupServer.GUICE_BINDING_STORAGE_DIR;
+import static com.mastfrog.signup.server.SignupServer.GUICE_BINDING_TEMP_FOLDER;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The original storage engine - one file per signup. Group commit is not
+ * possible with separate files, so GROUP durability syncs each file as SYNC
+ * does.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class FileTreeStore extends SessionStore {
+
+    private final FileTreeWriter files;
+
+    @Inject
+    FileTreeStore(@Named(GUICE_BINDING_LAUNCH_TIMESTAMP) long launch, @Named(GUICE_BINDING_STORAGE_DIR) Path store,
+            @Named(GUICE_BINDING_TEMP_FOLDER) Path tmp, @Named(GUICE_BINDING_ATOMIC_MOVES) boolean atomicMoves,
+            Settings settings) throws IOException {
+        super(launch, store, settings);
+        files = new FileTreeWriter(sessionDir, tmp, atomicMoves, durability != Durability.NONE);
+    }
+
+    @Override
+    public CompletableFuture<Void> append(byte[] record, long id) throws IOException {
+        // Ids are unique across nodes and sort in the order they were issued
+        String name = SignupIds.toString(id) + FileTreeWriter.SIGNUP_SUFFIX;
+        long start = System.nanoTime();
+        files.saveFile(bucket(SignupIds.timestamp(id)), name, record);
+        if (durability != Durability.NONE) {
+            commitStats.onCommit(1, System.nanoTime() - start);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The original storage layout - one <code>.signup</code> file per record,
+ * written to a temp folder and moved into place if atomic moves are
+ * supported.
+ *
+ * @author Tim Boudreau
+ */
+final class FileTreeWriter {
+
+    static final String SIGNUP_SUFFIX = ".signup";
+    private final Path fld;
+    private final Path tmp;
+    private final boolean atomicMove;
+    private final boolean sync;
+    private Path lastCreated;
+
+    FileTreeWriter(Path fld, Path tmp, boolean atomicMove, boolean sync) {
+        this.fld = fld;
+        this.tmp = tmp;
+        this.atomicMove = atomicMove;
+        this.sync = sync;
+    }
+
+    Path saveFile(String name, byte[] signup) throws IOException {
+        return saveFile(fld, name, signup);
+    }
+
+    /**
+     * Save a record into a subdirectory, creating it if necessary.
+     *
+     * @param subdir The subdirectory name
+     * @param name The file name
+     * @param signup The record
+     * @return The file
+     * @throws IOException If something goes wrong
+     */
+    Path saveFile(String subdir, String name, byte[] signup) throws IOException {
+        Path dir = fld.resolve(subdir);
+        if (!dir.equals(lastCreated)) {
+            if (sync) {
+                Directories.create(dir);
+            } else {
+                Files.createDirectories(dir);
+            }
+            lastCreated = dir;
+        }
+        return saveFile(dir, name, signup);
+    }
+
+    private Path saveFile(Path dir, String name, byte[] signup) throws IOException {
+        Path nue = dir.resolve(name);
+        if (atomicMove) {
+            Path tempNue = tmp.resolve(name);
+            saveTo(tempNue, signup);
+            Files.move(tempNue, nue, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            saveTo(nue, signup);
+        }
+        if (sync) {
+            // The file's contents were forced, but not its name
+            Directories.sync(dir);
+        }
+        return nue;
+    }
+
+    private void saveTo(Path nue, byte[] signup) throws IOException {
+        try (FileChannel out = FileChannel.open(nue, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            ByteBuffer buf = ByteBuffer.wrap(signup);
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+            if (sync) {
+                out.force(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets concurrent writers share one fsync: each writer enqueues after its
+ * record is written, and a single thread waits out a short window (or until
+ * the batch is full), forces the log and completes every future in the
+ * batch.
+ *
+ * @author Tim Boudreau
+ */
+final class GroupCommit implements Runnable, AutoCloseable {
+
+    private final Object lock = new Object();
+    private final SignupLog log;
+    private final long windowNanos;
+    private final int maxBatch;
+    private final CommitStats stats;
+    private final Thread thread;
+    private List<CompletableFuture<Void>> pending = new ArrayList<>();
+    private boolean closed;
+
+    GroupCommit(SignupLog log, long windowMillis, int maxBatch, CommitStats stats) {
+        this.log = log;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.maxBatch = Math.max(1, maxBatch);
+        this.stats = stats;
+        thread = new Thread(this, "signup-group-commit");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Wait for everything written so far to be durable.
+     *
+     * @return A future which completes after the next fsync
+     */
+    CompletableFuture<Void> enqueue() {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        synchronized (lock) {
+            if (closed) {
+                result.completeExceptionally(new IOException("Closed"));
+                return result;
+            }
+            pending.add(result);
+            if (pending.size() == 1 || pending.size() >= maxBatch) {
+                lock.notifyAll();
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void run() {
+        for (;;) {
+            List<CompletableFuture<Void>> batch;
+            synchronized (lock) {
+                try {
+                    while (pending.isEmpty() && !closed) {
+                        lock.wait();
+                    }
+                    long deadline = System.nanoTime() + windowNanos;
+                    long remaining;
+                    while (!closed && pending.size() < maxBatch && (remaining = deadline - System.nanoTime()) > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                    }
+                } catch (InterruptedException ex) {
+                    closed = true;
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                pending = new ArrayList<>(batch.size());
+            }
+            commit(batch);
+        }
+    }
+
+    private void commit(List<CompletableFuture<Void>> batch) {
+        long start = System.nanoTime();
+        try {
+            log.force();
+            stats.onCommit(batch.size(), System.nanoTime() - start);
+            for (CompletableFuture<Void> f : batch) {
+                f.complete(null);
+            }
+        } catch (IOException | RuntimeException ex) {
+            for (CompletableFuture<Void> f : batch) {
+                f.completeExceptionally(ex);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        thread.join();
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import com.google.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+/**
+ * Keeps records in memory only, for tests and load testing the HTTP layer
+ * without a disk in the way.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class InMemoryStore implements SignupStore {
+
+    private final List<byte[]> records = new ArrayList<>();
+    private final List<Long> times = new ArrayList<>();
+    private volatile long lastModified;
+
+    @Override
+    public CompletableFuture<Void> append(byte[] record, long id) {
+        synchronized (records) {
+            records.add(record);
+            times.add(SignupIds.timestamp(id));
+        }
+        lastModified = System.currentTimeMillis();
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public List<Partition> partitions() {
+        return Collections.singletonList(new Partition() {
+            @Override
+            public long key() {
+                return 0;
+            }
+
+            @Override
+            public boolean isClosed() {
+                return false;
+            }
+
+            @Override
+            public Stream<byte[]> records() {
+                return InMemoryStore.this.records();
+            }
+
+            @Override
+            public Stream<byte[]> records(long from, long to) {
+                return InMemoryStore.this.records(from, to);
+            }
+        });
+    }
+
+    @Override
+    public Stream<byte[]> records() {
+        List<byte[]> snapshot;
+        synchronized (records) {
+            snapshot = new ArrayList<>(records);
+        }
+        return snapshot.stream();
+    }
+
+    @Override
+    public Stream<byte[]> records(long from, long to) {
+        List<byte[]> snapshot = new ArrayList<>();
+        synchronized (records) {
+            for (int i = 0; i < records.size(); i++) {
+                long when = times.get(i);
+                if (when >= from && when < to) {
+                    snapshot.add(records.get(i));
+                }
+            }
+        }
+        return snapshot.stream();
+    }
+
+    @Override
+    public long currentPartition() {
+        return 0;
+    }
+
+    @Override
+    public long lastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public Map<String, Object> metrics() {
+        synchronized (records) {
+            return Collections.singletonMap("records", records.size());
+        }
+    }
+
+    @Override
+    public void close() {
+        // do nothing
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Snapshot of the email and category indexes covering every session up to a
+ * high-water mark, so startup only needs to scan sessions newer than that.
+ * Each covered session's record count is saved too, since category ordinals
+ * are assigned to sessions in contiguous runs, as is the newest record's
+ * timestamp, so the store's last write time is known without a scan.
+ *
+ * @author Tim Boudreau
+ */
+final class IndexCheckpoint {
+
+    static final String CHECKPOINT_FILE = "index.checkpoint";
+    private static final int MAGIC = 0x5349_4778;
+    private static final int VERSION = 3;
+    final long highWaterMark;
+    final int ordinalCount;
+    final long lastModified;
+    final EmailIndex emails;
+    final CategoryIndex categories;
+    final Map<Long, Integer> partitionCounts;
+
+    IndexCheckpoint(long highWaterMark, int ordinalCount, EmailIndex emails) {
+        this(highWaterMark, ordinalCount, 0, emails, new CategoryIndex(), new LinkedHashMap<>());
+    }
+
+    IndexCheckpoint(long highWaterMark, int ordinalCount, long lastModified, EmailIndex emails,
+            CategoryIndex categories, Map<Long, Integer> partitionCounts) {
+        this.highWaterMark = highWaterMark;
+        this.ordinalCount = ordinalCount;
+        this.lastModified = lastModified;
+        this.emails = emails;
+        this.categories = categories;
+        this.partitionCounts = partitionCounts;
+    }
+
+    /**
+     * Load a checkpoint; if it is missing, from an older version or
+     * corrupted, returns an empty checkpoint so that everything is
+     * rescanned.
+     *
+     * @param file The checkpoint file
+     * @return A checkpoint
+     */
+    static IndexCheckpoint load(Path file) {
+        if (Files.exists(file)) {
+            try (InputStream raw = Files.newInputStream(file)) {
+                CRC32 crc = new CRC32();
+                BufferedInputStream buffered = new BufferedInputStream(raw);
+                DataInputStream in = new DataInputStream(new CheckedInputStream(buffered, crc));
+                if (in.readInt() == MAGIC && in.readInt() == VERSION) {
+                    long highWaterMark = in.readLong();
+                    int ordinalCount = in.readInt();
+                    long lastModified = in.readLong();
+                    int count = in.readInt();
+                    EmailIndex emails = new EmailIndex(count + 1024);
+                    for (int i = 0; i < count; i++) {
+                        emails.put(in.readLong(), in.readInt());
+                    }
+                    int partitions = in.readInt();
+                    Map<Long, Integer> partitionCounts = new LinkedHashMap<>();
+                    for (int i = 0; i < partitions; i++) {
+                        partitionCounts.put(in.readLong(), in.readInt());
+                    }
+                    CategoryIndex categories = CategoryIndex.read(in);
+                    long expected = crc.getValue();
+                    if (new DataInputStream(buffered).readLong() == expected) {
+                        return new IndexCheckpoint(highWaterMark, ordinalCount, lastModified, emails,
+                                categories, partitionCounts);
+                    }
+                }
+                Logger.getLogger(IndexCheckpoint.class.getName()).log(Level.WARNING,
+                        "Ignoring invalid index checkpoint {0}", file);
+            } catch (IOException ex) {
+                Logger.getLogger(IndexCheckpoint.class.getName()).log(Level.WARNING,
+                        "Ignoring unreadable index checkpoint " + file, ex);
+            }
+        }
+        return empty();
+    }
+
+    static IndexCheckpoint empty() {
+        return new IndexCheckpoint(Long.MIN_VALUE, 0, new EmailIndex(1024));
+    }
+
+    /**
+     * Write a checkpoint, replacing any existing one once the new one is
+     * completely written.
+     *
+     * @param file The target file
+     * @throws IOException If something goes wrong
+     */
+    void save(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream raw = Files.newOutputStream(tmp)) {
+            CRC32 crc = new CRC32();
+            BufferedOutputStream buffered = new BufferedOutputStream(raw);
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(buffered, crc));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(highWaterMark);
+            out.writeInt(ordinalCount);
+            out.writeLong(lastModified);
+            int[] count = new int[1];
+            emails.each(ordinalCount, (hash, ordinal) -> count[0]++);
+            out.writeInt(count[0]);
+            emails.each(ordinalCount, (hash, ordinal) -> {
+                out.writeLong(hash);
+                out.writeInt(ordinal);
+            });
+            out.writeInt(partitionCounts.size());
+            for (Map.Entry<Long, Integer> e : partitionCounts.entrySet()) {
+                out.writeLong(e.getKey());
+                out.writeInt(e.getValue());
+            }
+            categories.below(ordinalCount).write(out);
+            out.flush();
+            new DataOutputStream(buffered).writeLong(crc.getValue());
+            buffered.flush();
+        }
+        try {
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
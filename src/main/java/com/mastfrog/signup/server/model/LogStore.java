@@ -0,0 +1,106 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.mastfrog.settings.Settings;
+import static com.mastfrog.signup.server.SignupServer.DEFAULT_GROUP_COMMIT_MAX_BATCH;
+import static com.mastfrog.signup.server.SignupServer.DEFAULT_GROUP_COMMIT_WINDOW_MILLIS;
+import static com.mastfrog.signup.server.SignupServer.DEFAULT_LOG_SEGMENT_SIZE;
+import static com.mastfrog.signup.server.SignupServer.GUICE_BINDING_LAUNCH_TIMESTAMP;
+import static com.mastfrog.signup.server.SignupServer.GUICE_BINDING_STORAGE_DIR;
+import static com.mastfrog.signup.server.SignupServer.SETTINGS_KEY_GROUP_COMMIT_MAX_BATCH;
+import static com.mastfrog.signup.server.SignupServer.SETTINGS_KEY_GROUP_COMMIT_WINDOW_MILLIS;
+import static com.mastfrog.signup.server.SignupServer.SETTINGS_KEY_LOG_SEGMENT_SIZE;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Appends length-prefixed records to rolling segment files, optionally
+ * syncing batches of them together.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class LogStore extends SessionStore {
+
+    private final SignupLog log;
+    private final GroupCommit groupCommit;
+
+    @Inject
+    LogStore(@Named(GUICE_BINDING_LAUNCH_TIMESTAMP) long launch, @Named(GUICE_BINDING_STORAGE_DIR) Path store,
+            Settings settings, SignupIds ids) throws IOException {
+        super(launch, store, settings);
+        // Tag segments with the node, so nodes sharing a directory never
+        // contend for the same segment name
+        log = new SignupLog(sessionDir, settings.getLong(SETTINGS_KEY_LOG_SEGMENT_SIZE, DEFAULT_LOG_SEGMENT_SIZE),
+                String.format("n%04d-", ids.node()));
+        groupCommit = durability != Durability.GROUP ? null : new GroupCommit(log,
+                settings.getLong(SETTINGS_KEY_GROUP_COMMIT_WINDOW_MILLIS, DEFAULT_GROUP_COMMIT_WINDOW_MILLIS),
+                settings.getInt(SETTINGS_KEY_GROUP_COMMIT_MAX_BATCH, DEFAULT_GROUP_COMMIT_MAX_BATCH),
+                commitStats);
+    }
+
+    @Override
+    public CompletableFuture<Void> append(byte[] record, long id) throws IOException {
+        // Moving to a new bucket syncs and closes the previous segment, so
+        // records awaiting group commit there are already durable
+        log.moveTo(sessionDir.resolve(bucket(SignupIds.timestamp(id))));
+        log.append(record);
+        switch (durability) {
+            case GROUP:
+                return groupCommit.enqueue();
+            case SYNC:
+                long start = System.nanoTime();
+                log.force();
+                commitStats.onCommit(1, System.nanoTime() - start);
+                break;
+            default:
+                break;
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (groupCommit != null) {
+                groupCommit.close();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for group commit");
+        } finally {
+            try {
+                log.close();
+            } finally {
+                super.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,512 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A compressed set of non-negative ints, in the style of Roaring bitmaps:
+ * values are grouped by their high 16 bits, and each group is kept as a
+ * sorted array while it is sparse, or as a 65536-bit bitmap once it holds
+ * more than 4096 values. Adding values in increasing order - as ordinals
+ * are assigned - only ever touches the last group. Not thread-safe.
+ *
+ * @author Tim Boudreau
+ */
+final class OrdinalBitmap {
+
+    private static final int ARRAY_MAX = 4096;
+    private static final int WORDS = 1 << 10;
+    private static final byte ARRAY = 0;
+    private static final byte BITMAP = 1;
+    private char[] keys;
+    private Container[] containers;
+    private int size;
+
+    OrdinalBitmap() {
+        this(4);
+    }
+
+    private OrdinalBitmap(int capacity) {
+        keys = new char[Math.max(1, capacity)];
+        containers = new Container[Math.max(1, capacity)];
+    }
+
+    void add(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative: " + value);
+        }
+        char key = (char) (value >>> 16);
+        int ix = indexOf(key);
+        if (ix < 0) {
+            ix = -ix - 1;
+            insert(ix, key, new ArrayContainer());
+        }
+        containers[ix] = containers[ix].add((char) value);
+    }
+
+    boolean contains(int value) {
+        if (value < 0) {
+            return false;
+        }
+        int ix = indexOf((char) (value >>> 16));
+        return ix >= 0 && containers[ix].contains((char) value);
+    }
+
+    int cardinality() {
+        int result = 0;
+        for (int i = 0; i < size; i++) {
+            result += containers[i].cardinality();
+        }
+        return result;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Find the smallest value in the set greater than or equal to a value.
+     *
+     * @param from The value
+     * @return A value, or -1 if there is none
+     */
+    int nextSetBit(int from) {
+        if (from < 0) {
+            from = 0;
+        }
+        char key = (char) (from >>> 16);
+        int ix = indexOf(key);
+        if (ix >= 0) {
+            int low = containers[ix].next(from & 0xFFFF);
+            if (low >= 0) {
+                return (key << 16) | low;
+            }
+            ix++;
+        } else {
+            ix = -ix - 1;
+        }
+        // Containers are never left empty, so the next one has a value
+        return ix < size ? (keys[ix] << 16) | containers[ix].next(0) : -1;
+    }
+
+    /**
+     * Intersect with another bitmap, leaving both unchanged.
+     *
+     * @param other Another bitmap
+     * @return A new bitmap
+     */
+    OrdinalBitmap and(OrdinalBitmap other) {
+        OrdinalBitmap result = new OrdinalBitmap(Math.min(size, other.size));
+        int i = 0;
+        int j = 0;
+        while (i < size && j < other.size) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                Container c = containers[i].and(other.containers[j]);
+                if (c != null) {
+                    result.insert(result.size, keys[i], c);
+                }
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Copy the values below a limit.
+     *
+     * @param limit The limit, exclusive
+     * @return A new bitmap
+     */
+    OrdinalBitmap below(int limit) {
+        OrdinalBitmap result = new OrdinalBitmap(size);
+        for (int i = 0; i < size; i++) {
+            int base = keys[i] << 16;
+            if (base >= limit) {
+                break;
+            }
+            Container c = base + 0xFFFF < limit ? containers[i].copy()
+                    : containers[i].below(limit - base);
+            if (c != null) {
+                result.insert(result.size, keys[i], c);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Add every value in another bitmap, plus an offset.
+     *
+     * @param other Another bitmap
+     * @param offset The offset
+     */
+    void addAll(OrdinalBitmap other, int offset) {
+        for (int v = other.nextSetBit(0); v >= 0; v = other.nextSetBit(v + 1)) {
+            add(v + offset);
+        }
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeChar(keys[i]);
+            containers[i].write(out);
+        }
+    }
+
+    static OrdinalBitmap read(DataInput in) throws IOException {
+        int size = in.readInt();
+        if (size < 0 || size > 1 << 16) {
+            throw new IOException("Bad container count " + size);
+        }
+        OrdinalBitmap result = new OrdinalBitmap(size);
+        for (int i = 0; i < size; i++) {
+            char key = in.readChar();
+            if (i > 0 && key <= result.keys[i - 1]) {
+                throw new IOException("Containers out of order at " + i);
+            }
+            byte type = in.readByte();
+            Container c;
+            switch (type) {
+                case ARRAY:
+                    c = ArrayContainer.read(in);
+                    break;
+                case BITMAP:
+                    c = BitmapContainer.read(in);
+                    break;
+                default:
+                    throw new IOException("Unknown container type " + type);
+            }
+            result.insert(i, key, c);
+        }
+        return result;
+    }
+
+    private int indexOf(char key) {
+        // Appends in increasing order nearly always hit the last container
+        if (size > 0 && keys[size - 1] == key) {
+            return size - 1;
+        }
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    private void insert(int ix, char key, Container container) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+        System.arraycopy(keys, ix, keys, ix + 1, size - ix);
+        System.arraycopy(containers, ix, containers, ix + 1, size - ix);
+        keys[ix] = key;
+        containers[ix] = container;
+        size++;
+    }
+
+    private abstract static class Container {
+
+        abstract Container add(char value);
+
+        abstract boolean contains(char value);
+
+        abstract int cardinality();
+
+        abstract int next(int from);
+
+        /**
+         * Intersect, returning null if the result is empty.
+         */
+        abstract Container and(Container other);
+
+        /**
+         * Copy the values below a limit, returning null if there are none.
+         */
+        abstract Container below(int limit);
+
+        abstract Container copy();
+
+        abstract void write(DataOutput out) throws IOException;
+    }
+
+    private static final class ArrayContainer extends Container {
+
+        private char[] values;
+        private int count;
+
+        ArrayContainer() {
+            this(new char[4], 0);
+        }
+
+        ArrayContainer(char[] values, int count) {
+            this.values = values;
+            this.count = count;
+        }
+
+        @Override
+        Container add(char value) {
+            int ix;
+            if (count == 0 || values[count - 1] < value) {
+                ix = count;
+            } else {
+                ix = Arrays.binarySearch(values, 0, count, value);
+                if (ix >= 0) {
+                    return this;
+                }
+                ix = -ix - 1;
+            }
+            if (count == ARRAY_MAX) {
+                return toBitmap().add(value);
+            }
+            if (count == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, count * 2));
+            }
+            System.arraycopy(values, ix, values, ix + 1, count - ix);
+            values[ix] = value;
+            count++;
+            return this;
+        }
+
+        private BitmapContainer toBitmap() {
+            BitmapContainer result = new BitmapContainer();
+            for (int i = 0; i < count; i++) {
+                result.add(values[i]);
+            }
+            return result;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return Arrays.binarySearch(values, 0, count, value) >= 0;
+        }
+
+        @Override
+        int cardinality() {
+            return count;
+        }
+
+        @Override
+        int next(int from) {
+            int ix = Arrays.binarySearch(values, 0, count, (char) from);
+            if (ix < 0) {
+                ix = -ix - 1;
+            }
+            return ix < count ? values[ix] : -1;
+        }
+
+        @Override
+        Container and(Container other) {
+            char[] result = new char[Math.min(count, other.cardinality())];
+            int n = 0;
+            if (other instanceof ArrayContainer) {
+                ArrayContainer o = (ArrayContainer) other;
+                int i = 0;
+                int j = 0;
+                while (i < count && j < o.count) {
+                    if (values[i] < o.values[j]) {
+                        i++;
+                    } else if (values[i] > o.values[j]) {
+                        j++;
+                    } else {
+                        result[n++] = values[i];
+                        i++;
+                        j++;
+                    }
+                }
+            } else {
+                for (int i = 0; i < count; i++) {
+                    if (other.contains(values[i])) {
+                        result[n++] = values[i];
+                    }
+                }
+            }
+            return n == 0 ? null : new ArrayContainer(result, n);
+        }
+
+        @Override
+        Container below(int limit) {
+            int ix = Arrays.binarySearch(values, 0, count, (char) limit);
+            if (ix < 0) {
+                ix = -ix - 1;
+            }
+            return ix == 0 ? null : new ArrayContainer(Arrays.copyOf(values, ix), ix);
+        }
+
+        @Override
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(values, count), count);
+        }
+
+        @Override
+        void write(DataOutput out) throws IOException {
+            out.writeByte(ARRAY);
+            out.writeShort(count - 1);
+            for (int i = 0; i < count; i++) {
+                out.writeChar(values[i]);
+            }
+        }
+
+        static ArrayContainer read(DataInput in) throws IOException {
+            int count = in.readUnsignedShort() + 1;
+            if (count > ARRAY_MAX) {
+                throw new IOException("Array container too large: " + count);
+            }
+            char[] values = new char[count];
+            for (int i = 0; i < count; i++) {
+                values[i] = in.readChar();
+                if (i > 0 && values[i] <= values[i - 1]) {
+                    throw new IOException("Values out of order at " + i);
+                }
+            }
+            return new ArrayContainer(values, count);
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+
+        private final long[] words;
+        private int count;
+
+        BitmapContainer() {
+            this(new long[WORDS], 0);
+        }
+
+        BitmapContainer(long[] words, int count) {
+            this.words = words;
+            this.count = count;
+        }
+
+        @Override
+        Container add(char value) {
+            long bit = 1L << value;
+            int ix = value >>> 6;
+            if ((words[ix] & bit) == 0) {
+                words[ix] |= bit;
+                count++;
+            }
+            return this;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        int cardinality() {
+            return count;
+        }
+
+        @Override
+        int next(int from) {
+            int ix = from >>> 6;
+            if (ix >= WORDS) {
+                return -1;
+            }
+            long word = words[ix] & (-1L << from);
+            while (word == 0) {
+                if (++ix == WORDS) {
+                    return -1;
+                }
+                word = words[ix];
+            }
+            return (ix << 6) + Long.numberOfTrailingZeros(word);
+        }
+
+        @Override
+        Container and(Container other) {
+            if (other instanceof ArrayContainer) {
+                return other.and(this);
+            }
+            long[] o = ((BitmapContainer) other).words;
+            long[] result = new long[WORDS];
+            int n = 0;
+            for (int i = 0; i < WORDS; i++) {
+                result[i] = words[i] & o[i];
+                n += Long.bitCount(result[i]);
+            }
+            return compact(result, n);
+        }
+
+        @Override
+        Container below(int limit) {
+            long[] result = Arrays.copyOf(words, WORDS);
+            int ix = limit >>> 6;
+            result[ix] &= ~(-1L << limit);
+            Arrays.fill(result, ix + 1, WORDS, 0);
+            int n = 0;
+            for (int i = 0; i <= ix; i++) {
+                n += Long.bitCount(result[i]);
+            }
+            return compact(result, n);
+        }
+
+        private static Container compact(long[] words, int count) {
+            if (count == 0) {
+                return null;
+            } else if (count > ARRAY_MAX) {
+                return new BitmapContainer(words, count);
+            }
+            char[] values = new char[count];
+            int n = 0;
+            for (int i = 0; i < WORDS; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    values[n++] = (char) ((i << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return new ArrayContainer(values, count);
+        }
+
+        @Override
+        Container copy() {
+            return new BitmapContainer(Arrays.copyOf(words, WORDS), count);
+        }
+
+        @Override
+        void write(DataOutput out) throws IOException {
+            out.writeByte(BITMAP);
+            for (long word : words) {
+                out.writeLong(word);
+            }
+        }
+
+        static BitmapContainer read(DataInput in) throws IOException {
+            long[] words = new long[WORDS];
+            int count = 0;
+            for (int i = 0; i < WORDS; i++) {
+                words[i] = in.readLong();
+                count += Long.bitCount(words[i]);
+            }
+            return new BitmapContainer(words, count);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import com.mastfrog.util.preconditions.Exceptions;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * The raw export format, which lets stored records be sent without being
+ * read into memory: a sequence of blocks, each an eight byte big-endian
+ * length followed by that many bytes in the log segment format (four byte
+ * length, record, repeated). A log segment on disk is sent as a single
+ * block, verbatim; a <code>.signup</code> file is a block of one record.
+ * A block may end in a partial record (a segment still being written, or
+ * cut short by a crash), which readers skip.
+ * <p>
+ * Records are exactly as stored - binary as written by {@link SignupCodec},
+ * or JSON if written by older versions.
+ *
+ * @author Tim Boudreau
+ */
+public final class RawExport {
+
+    static final int BATCH_SIZE = 64 * 1024;
+
+    private RawExport() {
+        throw new AssertionError();
+    }
+
+    /**
+     * One piece of an export: some bytes, then optionally a region of a file
+     * to send after them.
+     */
+    public static final class Chunk {
+
+        public final byte[] prefix;
+        public final Path file;
+        public final long count;
+
+        Chunk(byte[] prefix, Path file, long count) {
+            this.prefix = prefix;
+            this.file = file;
+            this.count = count;
+        }
+
+        public long length() {
+            return prefix.length + count;
+        }
+    }
+
+    static Chunk logSegment(Path segment) throws IOException {
+        // Freeze the length now, so a segment which is still being
+        // appended to cannot outgrow its block header
+        long size = Files.size(segment);
+        return new Chunk(ByteBuffer.allocate(Long.BYTES).putLong(size).array(), segment, size);
+    }
+
+    static Chunk recordFile(Path file) throws IOException {
+        long size = Files.size(file);
+        return new Chunk(ByteBuffer.allocate(Long.BYTES + Integer.BYTES)
+                .putLong(size + Integer.BYTES).putInt((int) size).array(), file, size);
+    }
+
+    static Chunk chunk(Path file) throws IOException {
+        return SignupLog.isSegment(file) ? logSegment(file) : recordFile(file);
+    }
+
+    /**
+     * Frame records which are only available in memory into blocks.
+     *
+     * @param stream Some records
+     * @return A stream of chunks with no file regions, which closes the
+     * passed stream when closed
+     */
+    static Stream<Chunk> framed(Stream<byte[]> stream) {
+        Iterator<byte[]> records = stream.iterator();
+        Iterator<Chunk> chunks = new Iterator<Chunk>() {
+            @Override
+            public boolean hasNext() {
+                return records.hasNext();
+            }
+
+            @Override
+            public Chunk next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                List<byte[]> batch = new ArrayList<>();
+                long size = 0;
+                while (records.hasNext() && size < BATCH_SIZE) {
+                    byte[] record = records.next();
+                    batch.add(record);
+                    size += Integer.BYTES + record.length;
+                }
+                ByteBuffer buf = ByteBuffer.allocate((int) (Long.BYTES + size)).putLong(size);
+                for (byte[] record : batch) {
+                    buf.putInt(record.length).put(record);
+                }
+                return new Chunk(buf.array(), null, 0);
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(chunks, Spliterator.ORDERED), false)
+                .onClose(stream::close);
+    }
+
+    /**
+     * Read the records from an export.
+     *
+     * @param in A stream of the raw export format
+     * @return An iterator of records, which throws IOExceptions unchecked
+     */
+    public static Iterator<byte[]> read(InputStream in) {
+        DataInputStream data = new DataInputStream(in);
+        return new Iterator<byte[]>() {
+            private long remaining;
+            private byte[] next;
+            private boolean done;
+
+            private byte[] readNext() throws IOException {
+                for (;;) {
+                    if (remaining == 0) {
+                        int first = data.read();
+                        if (first < 0) {
+                            return null;
+                        }
+                        remaining = first;
+                        for (int i = 1; i < Long.BYTES; i++) {
+                            remaining = (remaining << 8) | data.readUnsignedByte();
+                        }
+                        if (remaining < 0) {
+                            throw new IOException("Bad block length " + remaining);
+                        }
+                        continue;
+                    }
+                    if (remaining < Integer.BYTES) {
+                        skip(remaining);
+                        remaining = 0;
+                        continue;
+                    }
+                    int length = data.readInt();
+                    remaining -= Integer.BYTES;
+                    if (length < 0 || length > remaining) {
+                        // Partial record at the end of a block
+                        skip(remaining);
+                        remaining = 0;
+                        continue;
+                    }
+                    byte[] result = new byte[length];
+                    data.readFully(result);
+                    remaining -= length;
+                    if (length > 0) {
+                        return result;
+                    }
+                }
+            }
+
+            private void skip(long bytes) throws IOException {
+                while (bytes > 0) {
+                    long skipped = data.skip(bytes);
+                    if (skipped <= 0) {
+                        throw new EOFException();
+                    }
+                    bytes -= skipped;
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                if (next == null && !done) {
+                    try {
+                        next = readNext();
+                    } catch (IOException ex) {
+                        return Exceptions.chuck(ex);
+                    }
+                    done = next == null;
+                }
+                return next != null;
+            }
+
+            @Override
+            public byte[] next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                byte[] result = next;
+                next = null;
+                return result;
+            }
+        };
+    }
+}
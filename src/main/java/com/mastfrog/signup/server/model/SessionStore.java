@@ -0,0 +1,223 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import com.mastfrog.settings.Settings;
+import static com.mastfrog.signup.server.SignupServer.DEFAULT_COMPACTION_INTERVAL_MINUTES;
+import static com.mastfrog.signup.server.SignupServer.DEFAULT_COMPACTION_MIN_IDLE_MINUTES;
+import static com.mastfrog.signup.server.SignupServer.SETTINGS_KEY_COMPACTION_INTERVAL_MINUTES;
+import static com.mastfrog.signup.server.SignupServer.SETTINGS_KEY_COMPACTION_MIN_IDLE_MINUTES;
+import static com.mastfrog.signup.server.SignupServer.SETTINGS_KEY_DURABILITY;
+import static com.mastfrog.signup.server.SignupServer.SETTINGS_KEY_TIME_PARTITIONING;
+import com.mastfrog.util.preconditions.Exceptions;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.Stream;
+
+/**
+ * Base class for the disk-based stores, which write into a directory per
+ * server launch under <code>sessions/</code>, split into time buckets, and
+ * compact the directories of earlier launches in the background. Several
+ * nodes may share a store; a session is only treated as closed once it has
+ * been idle as long as compaction requires.
+ *
+ * @author Tim Boudreau
+ */
+abstract class SessionStore implements SignupStore {
+
+    protected final long launch;
+    protected final Path sessionDir;
+    protected final Durability durability;
+    protected final CommitStats commitStats = new CommitStats();
+    protected final TimePartitioning partitioning;
+    private long bucketStart = Long.MAX_VALUE;
+    private long bucketEnd = Long.MIN_VALUE;
+    private String bucket;
+    private final Path store;
+    private final StoreLayout layout;
+    private final ScheduledExecutorService compaction;
+    private final long minIdleMillis;
+
+    SessionStore(long launch, Path store, Settings settings) throws IOException {
+        this.launch = launch;
+        this.store = store;
+        this.layout = new StoreLayout(store);
+        this.durability = Durability.parse(settings.getString(SETTINGS_KEY_DURABILITY, Durability.NONE.name()));
+        this.partitioning = TimePartitioning.parse(settings.getString(SETTINGS_KEY_TIME_PARTITIONING,
+                TimePartitioning.DAY.name()));
+        sessionDir = layout.sessionDir(launch);
+        if (!Files.exists(sessionDir)) {
+            Directories.create(sessionDir);
+        }
+        minIdleMillis = TimeUnit.MINUTES.toMillis(settings.getLong(SETTINGS_KEY_COMPACTION_MIN_IDLE_MINUTES,
+                DEFAULT_COMPACTION_MIN_IDLE_MINUTES));
+        long compactionInterval = settings.getLong(SETTINGS_KEY_COMPACTION_INTERVAL_MINUTES,
+                DEFAULT_COMPACTION_INTERVAL_MINUTES);
+        if (compactionInterval > 0) {
+            compaction = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "signup-compaction");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            });
+            Compactor compactor = new Compactor(layout, launch, minIdleMillis);
+            compaction.scheduleWithFixedDelay(compactor, compactionInterval, compactionInterval, TimeUnit.MINUTES);
+        } else {
+            compaction = null;
+        }
+    }
+
+    /**
+     * Get the name of the bucket a record belongs in; called only from the
+     * writer thread.
+     *
+     * @param when The record's timestamp
+     * @return A bucket name
+     */
+    protected final String bucket(long when) {
+        if (when < bucketStart || when >= bucketEnd) {
+            bucket = partitioning.bucket(when);
+            bucketStart = partitioning.bucketStart(when);
+            bucketEnd = partitioning.bucketEnd(when);
+        }
+        return bucket;
+    }
+
+    @Override
+    public List<Partition> partitions() throws IOException {
+        List<Long> launches = layout.launches();
+        List<Partition> result = new ArrayList<>(launches.size());
+        for (long key : launches) {
+            result.add(new SessionPartition(key));
+        }
+        return result;
+    }
+
+    @Override
+    public long lastModified() throws IOException {
+        try (Stream<Path> paths = layout.recordFiles()) {
+            return paths.mapToLong(pth -> {
+                try {
+                    return Files.getLastModifiedTime(pth).toMillis();
+                } catch (IOException ex) {
+                    return Exceptions.chuck(ex);
+                }
+            }).max().orElse(0);
+        }
+    }
+
+    @Override
+    public Stream<RawExport.Chunk> export(long from, long to) throws IOException {
+        // Nothing in a session predates its launch
+        return layout.launches().stream().filter(key -> key < to).flatMap(key -> {
+            try {
+                return layout.export(key, from, to);
+            } catch (IOException ex) {
+                return Exceptions.chuck(ex);
+            }
+        });
+    }
+
+    @Override
+    public long currentPartition() {
+        return launch;
+    }
+
+    @Override
+    public Path indexCheckpoint() {
+        return store.resolve(IndexCheckpoint.CHECKPOINT_FILE);
+    }
+
+    @Override
+    public Map<String, Object> metrics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("durability", durability.name());
+        result.put("commits", commitStats.toMap());
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (compaction != null) {
+            compaction.shutdownNow();
+        }
+    }
+
+    private final class SessionPartition implements Partition {
+
+        private final long key;
+
+        SessionPartition(long key) {
+            this.key = key;
+        }
+
+        @Override
+        public long key() {
+            return key;
+        }
+
+        @Override
+        public boolean isClosed() {
+            if (key == launch) {
+                return false;
+            }
+            // Another node sharing the store may still be writing to a
+            // session other than ours
+            try {
+                return layout.isCompacted(key) || StoreLayout.isIdle(layout.buckets(key),
+                        System.currentTimeMillis() - minIdleMillis);
+            } catch (IOException ex) {
+                return false;
+            }
+        }
+
+        @Override
+        public Stream<byte[]> records() throws IOException {
+            return layout.records(key);
+        }
+
+        @Override
+        public Stream<byte[]> records(long from, long to) throws IOException {
+            // Nothing in a session predates its launch
+            if (key >= to) {
+                return Stream.empty();
+            }
+            return layout.records(key, from, to);
+        }
+
+        @Override
+        public Stream<byte[]> records(IntUnaryOperator next) throws IOException {
+            return layout.records(key, next);
+        }
+    }
+}
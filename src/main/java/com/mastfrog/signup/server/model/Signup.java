@@ -24,6 +24,7 @@
 package com.mastfrog.signup.server.model;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonFormat;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.mastfrog.signup.server.VisitorCookie;
 import com.mastfrog.util.time.TimeUtil;
@@ -35,6 +36,13 @@ import java.util.Objects;
  */
 public class Signup implements Comparable<Signup> {
 
+    /**
+     * Cluster-unique, time-ordered id from {@link SignupIds}; zero for
+     * signups recorded before ids existed. Serialized as a string since it
+     * does not fit in a Javascript number.
+     */
+    @JsonFormat(shape = JsonFormat.Shape.STRING)
+    public final long id;
     public final SignupInfo info;
     public final long when;
     public final VisitorCookie cookie;
@@ -44,13 +52,15 @@ public class Signup implements Comparable<Signup> {
     public final boolean validated;
 
     @JsonCreator
-    public Signup(@JsonProperty(value="info", required=true) SignupInfo info,
+    public Signup(@JsonProperty(value="id") long id,
+            @JsonProperty(value="info", required=true) SignupInfo info,
             @JsonProperty(value="when", required=true) long when,
             @JsonProperty(value="cookie", required=true) VisitorCookie cookie,
             @JsonProperty(value="agent" ) String userAgent,
             @JsonProperty(value="emailed") boolean emailed,
             @JsonProperty(value="validated") boolean validated,
             @JsonProperty("revocationToken") String revocationToken) {
+        this.id = id;
         this.info = info;
         this.when = when;
         this.cookie = cookie;
@@ -69,6 +79,7 @@ public class Signup implements Comparable<Signup> {
     @Override
     public int hashCode() {
         int hash = 7;
+        hash = 67 * hash + (int) (this.id ^ (this.id >>> 32));
         hash = 67 * hash + Objects.hashCode(this.info);
         hash = 67 * hash + (int) (this.when ^ (this.when >>> 32));
         hash = 67 * hash + Objects.hashCode(this.cookie);
@@ -89,6 +100,9 @@ public class Signup implements Comparable<Signup> {
             return false;
         }
         final Signup other = (Signup) obj;
+        if (this.id != other.id) {
+            return false;
+        }
         if (this.when != other.when) {
             return false;
         }
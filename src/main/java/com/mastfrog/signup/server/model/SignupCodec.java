@@ -0,0 +1,621 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import com.mastfrog.signup.server.VisitorCookie;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Compact, versioned binary encoding of a Signup, written and read by hand
+ * with no reflection or intermediate object tree. A record starts with a
+ * marker byte which can never begin a JSON record, so stores containing
+ * records written as JSON by older versions remain readable.
+ * <p>
+ * Version 1 layout: marker, version, flags, when, email address, name,
+ * token, categories, cookie, user agent, revocation token. Integers are
+ * varints; strings are a varint of length + 1 (0 for null) followed by
+ * UTF-8. The signup token is stored as its decoded bytes when it is
+ * canonical base 64, IPv4 addresses as four bytes, the cookie's launch time
+ * as an offset from the signup time, categories in the default set as a bit
+ * mask, and common user agent fragments are replaced by one-byte codes.
+ * The contents of those tables are part of the format - changing them
+ * requires a new version.
+ * <p>
+ * Version 2 adds the signup id: if it is non-zero a flag is set, the id
+ * follows the flags as eight big-endian bytes, and the signup time is stored
+ * as its offset from the id's timestamp (normally zero) rather than in full.
+ * Version 1 records decode with an id of zero.
+ *
+ * @author Tim Boudreau
+ */
+public final class SignupCodec {
+
+    private static final byte MARKER = (byte) 0xB5;
+    private static final byte VERSION_1 = 1;
+    private static final byte VERSION_2 = 2;
+    private static final int FLAG_EMAILED = 1;
+    private static final int FLAG_VALIDATED = 1 << 1;
+    private static final int FLAG_COOKIE = 1 << 2;
+    private static final int FLAG_BINARY_TOKEN = 1 << 3;
+    private static final int FLAG_IPV4_ADDRESS = 1 << 4;
+    private static final int FLAG_ID = 1 << 5;
+    private static final String[] CATEGORIES = {"community", "employment", "invest", "retail"};
+    private static final int ESCAPE = 0;
+    // Codes are the index + 1, so they occupy bytes 0x01-0x1F, which do not
+    // otherwise occur in user agent strings; a literal control character is
+    // preceded by ESCAPE
+    private static final String[] AGENT_FRAGMENTS = {
+        "Mozilla/5.0 (",
+        "Windows NT 10.0; Win64; x64) ",
+        "Windows NT 6.1; Win64; x64) ",
+        "Macintosh; Intel Mac OS X ",
+        "X11; Linux x86_64) ",
+        "iPhone; CPU iPhone OS ",
+        "iPad; CPU OS ",
+        "Linux; Android ",
+        " like Mac OS X) ",
+        "AppleWebKit/537.36 (KHTML, like Gecko) ",
+        "AppleWebKit/605.1.15 (KHTML, like Gecko) ",
+        "AppleWebKit/",
+        " (KHTML, like Gecko) ",
+        "Chrome/",
+        " Safari/537.36",
+        " Safari/",
+        "Version/",
+        "Mobile/",
+        " Mobile",
+        "Gecko/20100101 Firefox/",
+        "Firefox/",
+        " Edge/",
+        "rv:",
+        ".0.",
+        "_",
+        "; ",
+        "curl/",
+        "Googlebot",
+        "bingbot",
+        " (compatible; ",
+        "Opera"
+    };
+    private static final int[][] FRAGMENTS_BY_FIRST_CHAR = new int[128][];
+
+    static {
+        for (int i = 0; i < AGENT_FRAGMENTS.length; i++) {
+            char c = AGENT_FRAGMENTS[i].charAt(0);
+            int[] old = FRAGMENTS_BY_FIRST_CHAR[c];
+            int[] nue = old == null ? new int[1] : Arrays.copyOf(old, old.length + 1);
+            nue[nue.length - 1] = i;
+            FRAGMENTS_BY_FIRST_CHAR[c] = nue;
+        }
+    }
+
+    private SignupCodec() {
+        throw new AssertionError();
+    }
+
+    /**
+     * Determine if a record was written by this codec, rather than as JSON.
+     *
+     * @param record A record
+     * @return true if it is binary
+     */
+    public static boolean isEncoded(byte[] record) {
+        return record.length > 1 && record[0] == MARKER;
+    }
+
+    public static byte[] encode(Signup signup) {
+        Out out = new Out(256);
+        out.bytes[0] = MARKER;
+        out.bytes[1] = VERSION_2;
+        out.pos = 2;
+        byte[] token = canonicalBase64(signup.info.token);
+        long ipv4 = signup.cookie == null ? -1 : ipv4(signup.cookie.addr);
+        int flags = (signup.emailed ? FLAG_EMAILED : 0)
+                | (signup.validated ? FLAG_VALIDATED : 0)
+                | (signup.cookie != null ? FLAG_COOKIE : 0)
+                | (token != null ? FLAG_BINARY_TOKEN : 0)
+                | (ipv4 >= 0 ? FLAG_IPV4_ADDRESS : 0)
+                | (signup.id != 0 ? FLAG_ID : 0);
+        out.write(flags);
+        if (signup.id != 0) {
+            out.writeInt((int) (signup.id >>> 32));
+            out.writeInt((int) signup.id);
+            out.writeZigZag(signup.when - SignupIds.timestamp(signup.id));
+        } else {
+            out.writeVarLong(signup.when);
+        }
+        out.writeString(signup.info.emailAddress);
+        out.writeString(signup.info.name);
+        if (token != null) {
+            out.writeVarLong(token.length);
+            out.write(token, 0, token.length);
+        } else {
+            out.writeString(signup.info.token);
+        }
+        writeCategories(signup.info.signedUpFor, out);
+        if (signup.cookie != null) {
+            VisitorCookie ck = signup.cookie;
+            out.writeString(ck.rs);
+            if (ipv4 >= 0) {
+                out.writeInt((int) ipv4);
+            } else {
+                out.writeString(ck.addr);
+            }
+            // The cookie was issued by a recent launch, so the distance
+            // from the signup time is much smaller than the timestamp
+            out.writeZigZag(signup.when - ck.launch);
+            out.writeZigZag(ck.counter);
+            out.writeZigZag(ck.tsOff);
+        }
+        writeAgent(signup.userAgent, out);
+        out.writeString(signup.revocationToken);
+        return Arrays.copyOf(out.bytes, out.pos);
+    }
+
+    public static Signup decode(byte[] record) throws IOException {
+        In in = open(record);
+        try {
+            int flags = in.read();
+            long id = readId(in, flags);
+            long when = readWhen(in, flags, id);
+            String email = in.readString();
+            String name = in.readString();
+            String token;
+            if ((flags & FLAG_BINARY_TOKEN) != 0) {
+                int len = (int) in.readVarLong();
+                token = Base64.getEncoder().encodeToString(Arrays.copyOfRange(record, in.pos, in.pos + len));
+                in.pos += len;
+            } else {
+                token = in.readString();
+            }
+            Set<String> categories = readCategories(in);
+            VisitorCookie cookie = null;
+            if ((flags & FLAG_COOKIE) != 0) {
+                String rs = in.readString();
+                String addr = (flags & FLAG_IPV4_ADDRESS) != 0 ? ipv4(in.readInt()) : in.readString();
+                cookie = new VisitorCookie(rs, addr, when - in.readZigZag(), in.readZigZag(), in.readZigZag());
+            }
+            String agent = readAgent(in);
+            String revocationToken = in.readString();
+            return new Signup(id, new SignupInfo(email, categories, token, name), when, cookie, agent,
+                    (flags & FLAG_EMAILED) != 0, (flags & FLAG_VALIDATED) != 0, revocationToken);
+        } catch (ArrayIndexOutOfBoundsException | StringIndexOutOfBoundsException ex) {
+            throw new IOException("Truncated record", ex);
+        }
+    }
+
+    /**
+     * Read only the email address from an encoded record, without decoding
+     * the rest of it.
+     *
+     * @param record A record
+     * @return The email address
+     * @throws IOException If the record is not valid
+     */
+    public static String emailAddress(byte[] record) throws IOException {
+        In in = open(record);
+        try {
+            int flags = in.read();
+            readWhen(in, flags, readId(in, flags));
+            return in.readString();
+        } catch (ArrayIndexOutOfBoundsException | StringIndexOutOfBoundsException ex) {
+            throw new IOException("Truncated record", ex);
+        }
+    }
+
+    /**
+     * Read only the signup time from an encoded record.
+     *
+     * @param record A record
+     * @return The signup time
+     * @throws IOException If the record is not valid
+     */
+    public static long when(byte[] record) throws IOException {
+        In in = open(record);
+        try {
+            int flags = in.read();
+            return readWhen(in, flags, readId(in, flags));
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new IOException("Truncated record", ex);
+        }
+    }
+
+    /**
+     * Read only the id from an encoded record.
+     *
+     * @param record A record
+     * @return The id, or zero if the record predates ids
+     * @throws IOException If the record is not valid
+     */
+    public static long id(byte[] record) throws IOException {
+        In in = open(record);
+        try {
+            return readId(in, in.read());
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new IOException("Truncated record", ex);
+        }
+    }
+
+    /**
+     * Determine if an encoded record is signed up for a category, decoding
+     * as little of it as possible.
+     *
+     * @param record A record
+     * @param category A category
+     * @return true if it is
+     * @throws IOException If the record is not valid
+     */
+    public static boolean hasCategory(byte[] record, String category) throws IOException {
+        In in = open(record);
+        try {
+            skipToCategories(in);
+            int mask = (int) in.readVarLong();
+            int ix = Arrays.binarySearch(CATEGORIES, category);
+            if (ix >= 0) {
+                return (mask & (1 << ix)) != 0;
+            }
+            int others = (int) in.readVarLong();
+            for (int i = 0; i < others; i++) {
+                if (category.equals(in.readString())) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (ArrayIndexOutOfBoundsException | StringIndexOutOfBoundsException ex) {
+            throw new IOException("Truncated record", ex);
+        }
+    }
+
+    /**
+     * Read only the categories from an encoded record.
+     *
+     * @param record A record
+     * @return The categories
+     * @throws IOException If the record is not valid
+     */
+    public static Set<String> categories(byte[] record) throws IOException {
+        In in = open(record);
+        try {
+            skipToCategories(in);
+            return readCategories(in);
+        } catch (ArrayIndexOutOfBoundsException | StringIndexOutOfBoundsException ex) {
+            throw new IOException("Truncated record", ex);
+        }
+    }
+
+    private static void skipToCategories(In in) {
+        int flags = in.read();
+        readWhen(in, flags, readId(in, flags));
+        in.skipString(); // email
+        in.skipString(); // name
+        if ((flags & FLAG_BINARY_TOKEN) != 0) {
+            int len = (int) in.readVarLong();
+            in.pos += len;
+        } else {
+            in.skipString();
+        }
+    }
+
+    private static In open(byte[] record) throws IOException {
+        if (!isEncoded(record)) {
+            throw new IOException("Not an encoded signup");
+        }
+        if (record[1] != VERSION_1 && record[1] != VERSION_2) {
+            throw new IOException("Unsupported signup record version " + record[1]);
+        }
+        return new In(record, 2);
+    }
+
+    private static long readId(In in, int flags) {
+        if ((flags & FLAG_ID) == 0) {
+            return 0;
+        }
+        return ((long) in.readInt() << 32) | (in.readInt() & 0xFFFFFFFFL);
+    }
+
+    private static long readWhen(In in, int flags, long id) {
+        return id == 0 ? in.readVarLong() : SignupIds.timestamp(id) + in.readZigZag();
+    }
+
+    private static byte[] canonicalBase64(String token) {
+        if (token == null) {
+            return null;
+        }
+        try {
+            byte[] result = Base64.getDecoder().decode(token);
+            return Base64.getEncoder().encodeToString(result).equals(token) ? result : null;
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Parse a dotted-quad IPv4 address, returning -1 unless formatting the
+     * result would reproduce the same string.
+     */
+    private static long ipv4(String addr) {
+        if (addr == null) {
+            return -1;
+        }
+        long result = 0;
+        int octets = 0;
+        int val = -1;
+        for (int i = 0; i <= addr.length(); i++) {
+            char c = i == addr.length() ? '.' : addr.charAt(i);
+            if (c == '.') {
+                if (val < 0) {
+                    return -1;
+                }
+                result = (result << 8) | val;
+                octets++;
+                val = -1;
+            } else if (c >= '0' && c <= '9') {
+                if (val == 0) {
+                    // leading zero - would not round trip
+                    return -1;
+                }
+                val = (val < 0 ? 0 : val * 10) + (c - '0');
+                if (val > 255) {
+                    return -1;
+                }
+            } else {
+                return -1;
+            }
+        }
+        return octets == 4 ? result : -1;
+    }
+
+    private static String ipv4(int addr) {
+        return new StringBuilder(15).append((addr >>> 24) & 0xFF).append('.')
+                .append((addr >>> 16) & 0xFF).append('.')
+                .append((addr >>> 8) & 0xFF).append('.')
+                .append(addr & 0xFF).toString();
+    }
+
+    private static void writeCategories(Set<String> categories, Out out) {
+        int mask = 0;
+        int others = 0;
+        for (String cat : categories) {
+            int ix = Arrays.binarySearch(CATEGORIES, cat);
+            if (ix >= 0) {
+                mask |= 1 << ix;
+            } else {
+                others++;
+            }
+        }
+        out.writeVarLong(mask);
+        out.writeVarLong(others);
+        if (others > 0) {
+            for (String cat : categories) {
+                if (Arrays.binarySearch(CATEGORIES, cat) < 0) {
+                    out.writeString(cat);
+                }
+            }
+        }
+    }
+
+    private static Set<String> readCategories(In in) {
+        int mask = (int) in.readVarLong();
+        int others = (int) in.readVarLong();
+        Set<String> result = new HashSet<>();
+        for (int i = 0; i < CATEGORIES.length; i++) {
+            if ((mask & (1 << i)) != 0) {
+                result.add(CATEGORIES[i]);
+            }
+        }
+        for (int i = 0; i < others; i++) {
+            result.add(in.readString());
+        }
+        return result;
+    }
+
+    private static void writeAgent(String agent, Out out) {
+        if (agent == null) {
+            out.writeVarLong(0);
+            return;
+        }
+        Out body = new Out(agent.length() + 8);
+        int max = agent.length();
+        int literalStart = 0;
+        outer:
+        for (int i = 0; i < max;) {
+            char c = agent.charAt(i);
+            int[] candidates = c < FRAGMENTS_BY_FIRST_CHAR.length ? FRAGMENTS_BY_FIRST_CHAR[c] : null;
+            if (candidates == null) {
+                i++;
+                continue;
+            }
+            for (int j : candidates) {
+                String frag = AGENT_FRAGMENTS[j];
+                if (agent.startsWith(frag, i)) {
+                    body.writeLiteral(agent, literalStart, i);
+                    body.write(j + 1);
+                    i += frag.length();
+                    literalStart = i;
+                    continue outer;
+                }
+            }
+            i++;
+        }
+        body.writeLiteral(agent, literalStart, max);
+        out.writeVarLong(body.pos + 1);
+        out.write(body.bytes, 0, body.pos);
+    }
+
+    private static String readAgent(In in) {
+        int len = (int) in.readVarLong() - 1;
+        if (len < 0) {
+            return null;
+        }
+        byte[] bytes = in.bytes;
+        int end = in.pos + len;
+        StringBuilder sb = new StringBuilder(len * 3);
+        int literalStart = in.pos;
+        for (int i = in.pos; i < end; i++) {
+            int b = bytes[i] & 0xFF;
+            if (b >= 0x20) {
+                continue;
+            }
+            sb.append(new String(bytes, literalStart, i - literalStart, StandardCharsets.UTF_8));
+            if (b == ESCAPE) {
+                sb.append((char) bytes[++i]);
+            } else {
+                sb.append(AGENT_FRAGMENTS[b - 1]);
+            }
+            literalStart = i + 1;
+        }
+        sb.append(new String(bytes, literalStart, end - literalStart, StandardCharsets.UTF_8));
+        in.pos = end;
+        return sb.toString();
+    }
+
+    private static final class Out {
+
+        byte[] bytes;
+        int pos;
+
+        Out(int size) {
+            bytes = new byte[size];
+        }
+
+        private void ensure(int count) {
+            if (pos + count > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, pos + count));
+            }
+        }
+
+        void write(int b) {
+            ensure(1);
+            bytes[pos++] = (byte) b;
+        }
+
+        void write(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, bytes, pos, len);
+            pos += len;
+        }
+
+        void writeInt(int val) {
+            ensure(4);
+            bytes[pos++] = (byte) (val >>> 24);
+            bytes[pos++] = (byte) (val >>> 16);
+            bytes[pos++] = (byte) (val >>> 8);
+            bytes[pos++] = (byte) val;
+        }
+
+        void writeVarLong(long val) {
+            ensure(10);
+            while ((val & ~0x7FL) != 0) {
+                bytes[pos++] = (byte) ((val & 0x7F) | 0x80);
+                val >>>= 7;
+            }
+            bytes[pos++] = (byte) val;
+        }
+
+        void writeZigZag(long val) {
+            writeVarLong((val << 1) ^ (val >> 63));
+        }
+
+        void writeString(String s) {
+            if (s == null) {
+                writeVarLong(0);
+                return;
+            }
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(b.length + 1);
+            write(b, 0, b.length);
+        }
+
+        void writeLiteral(String s, int start, int end) {
+            if (start == end) {
+                return;
+            }
+            byte[] b = s.substring(start, end).getBytes(StandardCharsets.UTF_8);
+            ensure(b.length * 2);
+            for (byte bt : b) {
+                if ((bt & 0xFF) < 0x20) {
+                    bytes[pos++] = ESCAPE;
+                }
+                bytes[pos++] = bt;
+            }
+        }
+    }
+
+    private static final class In {
+
+        final byte[] bytes;
+        int pos;
+
+        In(byte[] bytes, int pos) {
+            this.bytes = bytes;
+            this.pos = pos;
+        }
+
+        int read() {
+            return bytes[pos++] & 0xFF;
+        }
+
+        int readInt() {
+            return (read() << 24) | (read() << 16) | (read() << 8) | read();
+        }
+
+        long readVarLong() {
+            long result = 0;
+            for (int shift = 0;; shift += 7) {
+                byte b = bytes[pos++];
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+        }
+
+        long readZigZag() {
+            long val = readVarLong();
+            return (val >>> 1) ^ -(val & 1);
+        }
+
+        void skipString() {
+            int len = (int) readVarLong() - 1;
+            if (len > 0) {
+                pos += len;
+            }
+        }
+
+        String readString() {
+            int len = (int) readVarLong() - 1;
+            if (len < 0) {
+                return null;
+            }
+            String result = new String(bytes, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return result;
+        }
+    }
+}
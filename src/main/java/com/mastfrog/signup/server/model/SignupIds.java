@@ -0,0 +1,162 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.mastfrog.settings.Settings;
+import static com.mastfrog.signup.server.SignupServer.SETTINGS_KEY_NODE_ID;
+import com.mastfrog.util.preconditions.ConfigurationError;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Generates 64-bit signup IDs which are unique across every node writing to
+ * a store without any coordination between them, and which sort in the order
+ * they were created. Layout, high bits first: a zero sign bit, 41 bits of
+ * milliseconds since 2018-01-01T00:00Z, a 10 bit node id from the
+ * <code>storage.node.id</code> setting, and a 12 bit per-millisecond
+ * sequence. Every node sharing a store must be configured with its own node
+ * id; if none is set, one is derived from the host name, which is only safe
+ * for a single node, and a warning is logged.
+ * <p>
+ * If the clock goes backwards, IDs continue from the last timestamp issued;
+ * if more than 4096 are requested in one millisecond, the timestamp runs
+ * ahead of the clock until it catches up - either way IDs never repeat or go
+ * backwards.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+public final class SignupIds {
+
+    public static final long EPOCH = 1514764800000L;
+    public static final int NODE_BITS = 10;
+    public static final int SEQUENCE_BITS = 12;
+    public static final int MAX_NODE = (1 << NODE_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final int TIME_SHIFT = NODE_BITS + SEQUENCE_BITS;
+    private final int node;
+    // Milliseconds since the epoch, shifted, plus the sequence
+    private final AtomicLong last = new AtomicLong();
+
+    @Inject
+    SignupIds(Settings settings) {
+        this(nodeId(settings));
+    }
+
+    public SignupIds(int node) {
+        if (node < 0 || node > MAX_NODE) {
+            throw new ConfigurationError("Node id must be between 0 and " + MAX_NODE + ": " + node);
+        }
+        this.node = node;
+    }
+
+    private static int nodeId(Settings settings) {
+        Integer configured = settings.getInt(SETTINGS_KEY_NODE_ID);
+        if (configured != null) {
+            return configured;
+        }
+        // Fine for a single node; two hosts whose names hash to the same
+        // id would issue colliding IDs into a shared store
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException ex) {
+            host = "localhost";
+        }
+        int result = (host.hashCode() & 0x7FFFFFFF) % (MAX_NODE + 1);
+        Logger.getLogger(SignupIds.class.getName()).log(Level.WARNING,
+                "No {0} set; using {1} derived from host name {2}. If more "
+                + "than one node writes to this store, set {0} to a distinct "
+                + "value between 0 and {3} on each, or IDs may collide.",
+                new Object[]{SETTINGS_KEY_NODE_ID, result, host, MAX_NODE});
+        return result;
+    }
+
+    public int node() {
+        return node;
+    }
+
+    /**
+     * Get a new ID.
+     *
+     * @return An ID
+     */
+    public long next() {
+        for (;;) {
+            long prev = last.get();
+            long now = (System.currentTimeMillis() - EPOCH) << SEQUENCE_BITS;
+            // Same millisecond, or the clock went backwards:  bump the
+            // sequence, carrying into the timestamp if it overflows
+            long next = Math.max(now, prev + 1);
+            if (last.compareAndSet(prev, next)) {
+                return ((next >>> SEQUENCE_BITS) << TIME_SHIFT)
+                        | ((long) node << SEQUENCE_BITS)
+                        | (next & SEQUENCE_MASK);
+            }
+        }
+    }
+
+    /**
+     * Build an ID from its parts.
+     *
+     * @param timestamp A unix timestamp, on or after {@link #EPOCH}
+     * @param node A node id
+     * @param sequence A sequence number
+     * @return An ID
+     */
+    public static long id(long timestamp, int node, int sequence) {
+        return ((timestamp - EPOCH) << TIME_SHIFT) | ((long) node << SEQUENCE_BITS) | (sequence & SEQUENCE_MASK);
+    }
+
+    /**
+     * Get the unix timestamp an ID was created at.
+     *
+     * @param id An ID
+     * @return A timestamp
+     */
+    public static long timestamp(long id) {
+        return (id >>> TIME_SHIFT) + EPOCH;
+    }
+
+    public static int node(long id) {
+        return (int) ((id >>> SEQUENCE_BITS) & MAX_NODE);
+    }
+
+    /**
+     * Format an ID as fixed-width hexadecimal, which sorts the same way as
+     * the ID itself.
+     *
+     * @param id An ID
+     * @return A string
+     */
+    public static String toString(long id) {
+        String hex = Long.toHexString(id);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import com.mastfrog.util.preconditions.Exceptions;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Append-only storage for signup records: each record is written as a four
+ * byte big-endian length followed by the record bytes, into numbered segment
+ * files which are rolled over once they pass a size threshold. A session
+ * directory can hold any number of segments, alongside (or instead of)
+ * individual <code>.signup</code> files. Segment names may carry a prefix
+ * (the node id), so several nodes can log into the same directory without
+ * colliding.
+ *
+ * @author Tim Boudreau
+ */
+final class SignupLog implements Closeable {
+
+    static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER_LENGTH = Integer.BYTES;
+    private Path dir;
+    private final long maxSegmentSize;
+    private final String prefix;
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+    private FileChannel channel;
+    private Path segment;
+    private int segmentIndex;
+    private long segmentSize;
+
+    SignupLog(Path dir, long maxSegmentSize) throws IOException {
+        this(dir, maxSegmentSize, "");
+    }
+
+    SignupLog(Path dir, long maxSegmentSize, String prefix) throws IOException {
+        if (maxSegmentSize <= HEADER_LENGTH) {
+            throw new IllegalArgumentException("Segment size too small: " + maxSegmentSize);
+        }
+        this.dir = dir;
+        this.maxSegmentSize = maxSegmentSize;
+        this.prefix = prefix;
+        segmentIndex = lastSegmentNumber(dir, prefix);
+    }
+
+    private static int lastSegmentNumber(Path dir, String prefix) throws IOException {
+        // Never append to a segment left by a previous run - it may end with
+        // a partially written record
+        try (Stream<Path> existing = Files.list(dir)) {
+            return existing.filter(SignupLog::isSegment)
+                    .mapToInt(pth -> segmentNumber(pth, prefix))
+                    .max().orElse(0);
+        }
+    }
+
+    /**
+     * Continue the log in a different directory; the current segment is
+     * synced and closed, and the next append starts a new segment there.
+     *
+     * @param newDir The directory
+     * @throws IOException If something goes wrong
+     */
+    synchronized void moveTo(Path newDir) throws IOException {
+        if (newDir.equals(dir)) {
+            return;
+        }
+        Directories.create(newDir);
+        close();
+        dir = newDir;
+        segmentIndex = lastSegmentNumber(newDir, prefix);
+        segmentSize = 0;
+    }
+
+    static boolean isSegment(Path path) {
+        return path.getFileName().toString().endsWith(SEGMENT_SUFFIX);
+    }
+
+    private static int segmentNumber(Path path, String prefix) {
+        String name = path.getFileName().toString();
+        if (!name.startsWith(prefix)) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(name.substring(prefix.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * Append a record.
+     *
+     * @param record The record bytes
+     * @return The segment the record was written to
+     * @throws IOException If something goes wrong
+     */
+    synchronized Path append(byte[] record) throws IOException {
+        long length = HEADER_LENGTH + record.length;
+        if (channel == null || (segmentSize > 0 && segmentSize + length > maxSegmentSize)) {
+            roll();
+        }
+        header.clear();
+        header.putInt(record.length);
+        header.flip();
+        ByteBuffer[] buffers = new ByteBuffer[]{header, ByteBuffer.wrap(record)};
+        long remaining = length;
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+        segmentSize += length;
+        return segment;
+    }
+
+    synchronized Path currentSegment() {
+        return segment;
+    }
+
+    /**
+     * Fsync everything appended so far. Does not block appends while the
+     * sync is in progress.
+     *
+     * @throws IOException If something goes wrong
+     */
+    void force() throws IOException {
+        FileChannel ch;
+        synchronized (this) {
+            ch = channel;
+        }
+        if (ch != null) {
+            try {
+                ch.force(false);
+            } catch (ClosedChannelException ex) {
+                // Rolled over or closed concurrently - either way it was
+                // forced before being closed
+            }
+        }
+    }
+
+    private void roll() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+            channel.close();
+        }
+        segment = dir.resolve(prefix + String.format("%08d", ++segmentIndex) + SEGMENT_SUFFIX);
+        channel = FileChannel.open(segment, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        segmentSize = 0;
+        // Forcing the channel later syncs what is appended, but not the new
+        // segment's name in the directory
+        Directories.sync(dir);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Read the records in a segment. A truncated record at the tail of the
+     * segment (such as one interrupted by a crash) is ignored.
+     *
+     * @param segment A segment file
+     * @return A stream of records
+     */
+    static Stream<byte[]> records(Path segment) {
+        try {
+            SegmentIterator iter = new SegmentIterator(FileChannel.open(segment, StandardOpenOption.READ));
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iter,
+                    Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(iter::close);
+        } catch (IOException ex) {
+            return Exceptions.chuck(ex);
+        }
+    }
+
+    /**
+     * Read the records at selected positions in a segment, seeking past the
+     * bodies of the others. Positions count the non-empty records before
+     * this segment's, so selections can span several segments.
+     *
+     * @param segment A segment file
+     * @param position The position of the segment's first record
+     * @param next Given a position, returns the first selected position at
+     * or after it, or Integer.MAX_VALUE if there are none
+     * @param into Receives the selected records
+     * @return The position following the segment's last record, or of the
+     * first record after which nothing is selected
+     * @throws IOException If something goes wrong
+     */
+    static int records(Path segment, int position, IntUnaryOperator next, Consumer<byte[]> into) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            long size = channel.size();
+            long offset = 0;
+            int wanted = next.applyAsInt(position);
+            while (wanted != Integer.MAX_VALUE && offset + HEADER_LENGTH <= size) {
+                header.clear();
+                while (header.hasRemaining()) {
+                    if (channel.read(header, offset + header.position()) < 0) {
+                        return position;
+                    }
+                }
+                header.flip();
+                int length = header.getInt();
+                offset += HEADER_LENGTH;
+                if (length < 0 || length > size - offset) {
+                    // Torn tail
+                    break;
+                }
+                if (length > 0) {
+                    if (position == wanted) {
+                        ByteBuffer body = ByteBuffer.allocate(length);
+                        while (body.hasRemaining()) {
+                            if (channel.read(body, offset + body.position()) < 0) {
+                                return position;
+                            }
+                        }
+                        into.accept(body.array());
+                        wanted = next.applyAsInt(position + 1);
+                    }
+                    position++;
+                }
+                offset += length;
+            }
+            return position;
+        }
+    }
+
+    static final class SegmentIterator implements Iterator<byte[]>, Closeable {
+
+        private final FileChannel channel;
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        private byte[] next;
+        private boolean done;
+
+        SegmentIterator(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        private byte[] readNext() throws IOException {
+            header.clear();
+            if (!readFully(header)) {
+                return null;
+            }
+            header.flip();
+            int length = header.getInt();
+            if (length < 0 || length > channel.size() - channel.position()) {
+                return null;
+            }
+            ByteBuffer body = ByteBuffer.allocate(length);
+            if (!readFully(body)) {
+                return null;
+            }
+            return body.array();
+        }
+
+        private boolean readFully(ByteBuffer buf) throws IOException {
+            while (buf.hasRemaining()) {
+                if (channel.read(buf) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !done) {
+                try {
+                    next = readNext();
+                } catch (IOException ex) {
+                    close();
+                    return Exceptions.chuck(ex);
+                }
+                if (next == null) {
+                    close();
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public byte[] next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            byte[] result = next;
+            next = null;
+            return result;
+        }
+
+        @Override
+        public void close() {
+            done = true;
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                Exceptions.chuck(ex);
+            }
+        }
+    }
+}
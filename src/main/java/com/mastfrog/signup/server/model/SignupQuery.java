@@ -0,0 +1,100 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * A request for one page of signups, newest first. The cursor is the sort
+ * key of the last signup on the previous page - signup ids order by time,
+ * so signups appended after the first page was fetched can never shift the
+ * pages which follow it.
+ *
+ * @author Tim Boudreau
+ */
+public final class SignupQuery {
+
+    public static final long NO_CURSOR = Long.MAX_VALUE;
+    public final long from;
+    public final long to;
+    public final Set<String> categories;
+    public final int limit;
+    public final long cursor;
+
+    /**
+     * Create a query.
+     *
+     * @param from The start of the time range, inclusive
+     * @param to The end of the time range, exclusive
+     * @param categories Categories signups must be signed up for all of;
+     * empty for any
+     * @param limit The maximum number of signups to return
+     * @param cursor Return only signups older than this, or NO_CURSOR
+     */
+    public SignupQuery(long from, long to, Set<String> categories, int limit, long cursor) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive: " + limit);
+        }
+        this.from = from;
+        this.to = to;
+        this.categories = Collections.unmodifiableSet(categories);
+        this.limit = limit;
+        this.cursor = cursor;
+    }
+
+    /**
+     * Make the opaque form of a cursor that is handed to clients.
+     *
+     * @param key A sort key
+     * @return A string
+     */
+    public static String formatCursor(long key) {
+        return Long.toString(key, 36);
+    }
+
+    /**
+     * Parse a cursor handed back by a client.
+     *
+     * @param cursor A cursor
+     * @return The sort key it encodes
+     * @throws IllegalArgumentException if it is not a cursor
+     */
+    public static long parseCursor(String cursor) {
+        try {
+            long result = Long.parseLong(cursor, 36);
+            if (result <= 0) {
+                throw new IllegalArgumentException("Bad cursor '" + cursor + "'");
+            }
+            return result;
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Bad cursor '" + cursor + "'");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return from + "-" + to + " " + categories + " " + limit + " before " + cursor;
+    }
+}
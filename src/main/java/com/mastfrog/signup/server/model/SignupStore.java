@@ -0,0 +1,211 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import com.mastfrog.util.preconditions.Exceptions;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.Stream;
+
+/**
+ * A storage engine for signup records. Records are opaque byte arrays
+ * (encoded by {@link SignupCodec}, or JSON written by older versions);
+ * nothing outside the store knows how or where they are kept. The engine is
+ * selected with the <code>storage.mode</code> setting.
+ *
+ * @author Tim Boudreau
+ */
+public interface SignupStore extends Closeable {
+
+    /**
+     * Append a record. Only ever called from a single thread.
+     *
+     * @param record The record
+     * @param id The signup's id from {@link SignupIds}, whose timestamp
+     * determines the time bucket the record is stored in
+     * @return A future which completes once the record is as durable as the
+     * store is configured to make it
+     * @throws IOException If the write fails
+     */
+    CompletableFuture<Void> append(byte[] record, long id) throws IOException;
+
+    /**
+     * The store's records as a sequence of partitions, in the order the
+     * records were written, oldest first.
+     *
+     * @return A list of partitions
+     * @throws IOException If something goes wrong
+     */
+    List<Partition> partitions() throws IOException;
+
+    /**
+     * The key of the partition {@link #append(byte[], long)} adds records
+     * to.
+     *
+     * @return A partition key
+     */
+    long currentPartition();
+
+    /**
+     * Get the time of the last write.
+     *
+     * @return A unix timestamp, or 0 if nothing is stored
+     * @throws IOException If something goes wrong
+     */
+    long lastModified() throws IOException;
+
+    /**
+     * Stream every record, oldest first.
+     *
+     * @return A stream, which must be closed
+     * @throws IOException If something goes wrong
+     */
+    default Stream<byte[]> records() throws IOException {
+        return partitions().stream().flatMap(partition -> {
+            try {
+                return partition.records();
+            } catch (IOException ex) {
+                return Exceptions.chuck(ex);
+            }
+        });
+    }
+
+    /**
+     * Stream records in a time range, oldest first, skipping partitions and
+     * buckets which cannot contain any. Records outside the range may be
+     * included; callers needing an exact range must filter.
+     *
+     * @param from The start of the range, inclusive
+     * @param to The end of the range, exclusive
+     * @return A stream, which must be closed
+     * @throws IOException If something goes wrong
+     */
+    default Stream<byte[]> records(long from, long to) throws IOException {
+        return partitions().stream().flatMap(partition -> {
+            try {
+                return partition.records(from, to);
+            } catch (IOException ex) {
+                return Exceptions.chuck(ex);
+            }
+        });
+    }
+
+    /**
+     * Stream records in a time range in the {@link RawExport} format.
+     * Stores which keep records in files send them without reading them;
+     * as with {@link #records(long, long)}, records outside the range may be
+     * included.
+     *
+     * @param from The start of the range, inclusive
+     * @param to The end of the range, exclusive
+     * @return A stream, which must be closed
+     * @throws IOException If something goes wrong
+     */
+    default Stream<RawExport.Chunk> export(long from, long to) throws IOException {
+        return RawExport.framed(records(from, to));
+    }
+
+    /**
+     * A file the email index can be checkpointed to, so startup only needs
+     * to scan partitions newer than the checkpoint.
+     *
+     * @return A path, or null if the store is not persistent
+     */
+    default Path indexCheckpoint() {
+        return null;
+    }
+
+    /**
+     * Engine-specific statistics for the metrics endpoint.
+     *
+     * @return A map
+     */
+    default Map<String, Object> metrics() {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * A run of records which can be read independently of the others - for
+     * the disk-based stores, the records written by one server launch.
+     */
+    interface Partition {
+
+        /**
+         * A key which increases with each partition.
+         *
+         * @return The key
+         */
+        long key();
+
+        /**
+         * Determine if no more records will be added to this partition.
+         *
+         * @return true if it is closed
+         */
+        boolean isClosed();
+
+        Stream<byte[]> records() throws IOException;
+
+        /**
+         * Stream the records which may fall in a time range.
+         *
+         * @param from The start of the range, inclusive
+         * @param to The end of the range, exclusive
+         * @return A stream
+         * @throws IOException If something goes wrong
+         */
+        default Stream<byte[]> records(long from, long to) throws IOException {
+            return records();
+        }
+
+        /**
+         * Stream the records at selected positions, where position n is the
+         * nth record {@link #records()} returns, reading as little of the
+         * partition as the store allows. This default reads everything.
+         *
+         * @param next Given a position, returns the first selected position
+         * at or after it, or Integer.MAX_VALUE if there are none
+         * @return A stream
+         * @throws IOException If something goes wrong
+         */
+        default Stream<byte[]> records(IntUnaryOperator next) throws IOException {
+            int[] position = new int[1];
+            int[] wanted = {next.applyAsInt(0)};
+            return records().filter(record -> {
+                int pos = position[0]++;
+                if (pos != wanted[0]) {
+                    return false;
+                }
+                wanted[0] = next.applyAsInt(pos + 1);
+                return true;
+            });
+        }
+    }
+}
@@ -26,43 +26,63 @@ package com.mastfrog.signup.server.model;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
-import com.google.inject.name.Named;
 import com.mastfrog.acteur.HttpEvent;
 import com.mastfrog.acteur.headers.Headers;
-import com.mastfrog.giulius.DeploymentMode;
+import com.mastfrog.giulius.ShutdownHookRegistry;
 import com.mastfrog.settings.Settings;
 import static com.mastfrog.signup.server.SignupServer.DEFAULT_REVOCATION_TOKEN_STAMP_SUBTRACT;
-import static com.mastfrog.signup.server.SignupServer.GUICE_BINDING_ATOMIC_MOVES;
-import static com.mastfrog.signup.server.SignupServer.GUICE_BINDING_LAUNCH_TIMESTAMP;
-import static com.mastfrog.signup.server.SignupServer.GUICE_BINDING_STORAGE_DIR;
-import static com.mastfrog.signup.server.SignupServer.GUICE_BINDING_TEMP_FOLDER;
+import static com.mastfrog.signup.server.SignupServer.DEFAULT_WRITER_QUEUE_SIZE;
+import static com.mastfrog.signup.server.SignupServer.SETTINGS_KEY_INDEX_THREADS;
 import static com.mastfrog.signup.server.SignupServer.SETTINGS_KEY_REVOCATION_TOKEN_STAMP_SUBTRACT;
+import static com.mastfrog.signup.server.SignupServer.SETTINGS_KEY_STORAGE_MODE;
+import static com.mastfrog.signup.server.SignupServer.SETTINGS_KEY_WRITER_QUEUE_SIZE;
 import com.mastfrog.signup.server.VisitorCookie;
 import com.mastfrog.signup.server.token.TokenGenerator;
 import com.mastfrog.util.preconditions.Exceptions;
 import com.mastfrog.util.strings.RandomStrings;
-import com.mastfrog.util.time.TimeUtil;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
-import java.nio.file.StandardOpenOption;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
 import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.stream.Stream;
 
 /**
+ * Signups, independent of how they are stored: creates and encodes new
+ * signups, rejects duplicate email addresses, and iterates stored signups
+ * as objects or as JSON. Persistence is delegated to whichever
+ * {@link SignupStore} is bound.
  *
  * @author Tim Boudreau
  */
 @Singleton
-public class Signups implements Iterable<Path> {
+public class Signups implements Iterable<byte[]> {
 
-    private final Path fld;
-    private final AtomicLong index = new AtomicLong();
+    private static final long PAGE_WINDOW_MILLIS = TimeUnit.HOURS.toMillis(1);
     private final ObjectMapper mapper;
     private final Random random;
     private final RandomStrings strings;
@@ -70,59 +90,267 @@ public class Signups implements Iterable<Path> {
     private final long subtract;
     private static final int VER = 1;
     private static final char DELIM = '$';
-    private final Path tmp;
-    private boolean atomicMove;
-    private final Path store;
+    private final SignupStore store;
+    private final SignupIds ids;
+    private final StorageMode mode;
+    private final ExecutorService writer;
+    private final EmailIndex emails;
+    private final CategoryIndex categories;
+    private final Set<Long> inFlight = ConcurrentHashMap.newKeySet();
+    // The run of ordinals assigned to each partition's records
+    private final Map<Long, Range> ranges = new ConcurrentHashMap<>();
+    private final Range current;
+    private final AtomicLong generation;
+    private final List<LongConsumer> changeListeners = new CopyOnWriteArrayList<>();
+    private volatile long lastModified;
 
     @Inject
-    Signups(@Named(GUICE_BINDING_LAUNCH_TIMESTAMP) long launch, @Named(GUICE_BINDING_STORAGE_DIR) java.nio.file.Path store,
-            ObjectMapper mapper, Random random, RandomStrings strings, TokenGenerator tokConfig, Settings settings,
-            DeploymentMode mode, @Named(GUICE_BINDING_TEMP_FOLDER) Path tmp, @Named(GUICE_BINDING_ATOMIC_MOVES) boolean atomicMoves) throws IOException {
+    Signups(SignupStore store, SignupIds ids, ObjectMapper mapper, Random random, RandomStrings strings, TokenGenerator tokConfig,
+            Settings settings, ShutdownHookRegistry onShutdown) throws IOException {
         this.store = store;
-        java.nio.file.Path sess = store.resolve("sessions/" + launch);
-        if (!Files.exists(sess)) {
-            Files.createDirectories(sess);
-        }
-        assert Files.exists(sess) && Files.isDirectory(sess);
-        this.fld = sess;
+        this.ids = ids;
         this.mapper = mapper;
         this.random = random;
         this.strings = strings;
         this.tokConfig = tokConfig;
         this.subtract = settings.getLong(SETTINGS_KEY_REVOCATION_TOKEN_STAMP_SUBTRACT,
                 DEFAULT_REVOCATION_TOKEN_STAMP_SUBTRACT);
-        atomicMove = atomicMoves;
-        this.tmp = tmp;
+        this.mode = StorageMode.parse(settings.getString(SETTINGS_KEY_STORAGE_MODE, StorageMode.FILES.name()));
+        IndexCheckpoint indexes = buildIndexes(settings.getInt(SETTINGS_KEY_INDEX_THREADS,
+                Runtime.getRuntime().availableProcessors()));
+        emails = indexes.emails;
+        categories = indexes.categories;
+        current = ranges.get(store.currentPartition());
+        // Start from the record count, so a restart over the same records
+        // resumes the same generation
+        generation = new AtomicLong(indexes.ordinalCount);
+        lastModified = indexes.lastModified;
+        // All serialization and disk I/O happens on a single writer thread, so
+        // a slow disk never stalls an event loop; if the queue fills up,
+        // requests are rejected rather than piling up in memory
+        writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(settings.getInt(SETTINGS_KEY_WRITER_QUEUE_SIZE, DEFAULT_WRITER_QUEUE_SIZE)),
+                r -> {
+                    Thread t = new Thread(r, "signup-writer");
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        Runnable shutdown = () -> {
+            try {
+                writer.shutdown();
+                writer.awaitTermination(30, TimeUnit.SECONDS);
+                store.close();
+            } catch (IOException | InterruptedException ex) {
+                Logger.getLogger(Signups.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        };
+        onShutdown.add(shutdown);
     }
 
-    public Path add(SignupInfo info, VisitorCookie vk, HttpEvent evt) throws IOException {
+    /**
+     * Store a signup.
+     *
+     * @param info The signup
+     * @param vk The visitor cookie
+     * @param evt The request
+     * @return A future which completes once the signup is as durable as the
+     * store is configured to make it; fails with a RejectedExecutionException
+     * if the writer is too far behind to accept more work, or a
+     * DuplicateSignupException if the email address is already signed up
+     */
+    public CompletableFuture<Void> add(SignupInfo info, VisitorCookie vk, HttpEvent evt) {
+        long emailHash = EmailIndex.hash(info.emailAddress);
+        // Reserve the address before checking the index, so a concurrent
+        // write of the same address cannot slip in between
+        if (!inFlight.add(emailHash)) {
+            return failed(new DuplicateSignupException(info.emailAddress));
+        }
+        if (emails.contains(emailHash)) {
+            inFlight.remove(emailHash);
+            return failed(new DuplicateSignupException(info.emailAddress));
+        }
         CharSequence ua = evt.header(Headers.USER_AGENT);
-        long now = System.currentTimeMillis();
-        Signup signup = new Signup(info, now, vk, ua == null ? "none" : ua.toString(),
-                false, false, newRevocationToken(now));
+        String agent = ua == null ? "none" : ua.toString();
+        CompletableFuture<Integer> result;
+        try {
+            result = CompletableFuture.supplyAsync(() -> write(info, vk, agent, emailHash), writer)
+                    .thenCompose(f -> f);
+        } catch (RejectedExecutionException ex) {
+            inFlight.remove(emailHash);
+            return failed(ex);
+        }
+        // The address is indexed by write() once the record is stored
+        return result.whenComplete((ordinal, thrown) -> {
+            inFlight.remove(emailHash);
+        }).thenApply(ordinal -> null);
+    }
 
-        String name = TimeUtil.toSortableStringFormat(TimeUtil.fromUnixTimestamp(now)) 
-                + "-" + index.getAndIncrement() + ".signup";
+    /**
+     * Determine if an email address has already been used to sign up,
+     * without touching the disk.
+     *
+     * @param emailAddress An email address
+     * @return true if it is stored or being stored
+     */
+    public boolean isSignedUp(String emailAddress) {
+        long emailHash = EmailIndex.hash(emailAddress);
+        return emails.contains(emailHash) || inFlight.contains(emailHash);
+    }
 
-        return saveFile(name, signup);
+    /**
+     * Load the last index checkpoint, if the store supports one, scan any
+     * partitions newer than it in parallel, and write a new checkpoint
+     * covering every closed partition. Each partition's records get a
+     * contiguous run of ordinals, with the partition appends go to last, so
+     * its run can grow.
+     */
+    private IndexCheckpoint buildIndexes(int threads) throws IOException {
+        Path checkpointFile = store.indexCheckpoint();
+        IndexCheckpoint checkpoint = checkpointFile == null ? IndexCheckpoint.empty()
+                : IndexCheckpoint.load(checkpointFile);
+        EmailIndex emailIndex = checkpoint.emails;
+        CategoryIndex categoryIndex = checkpoint.categories;
+        Map<Long, Integer> covered = new LinkedHashMap<>(checkpoint.partitionCounts);
+        int ordinal = 0;
+        for (Map.Entry<Long, Integer> e : covered.entrySet()) {
+            ranges.put(e.getKey(), new Range(ordinal, e.getValue()));
+            ordinal += e.getValue();
+        }
+        long currentKey = store.currentPartition();
+        List<SignupStore.Partition> newer = new ArrayList<>();
+        SignupStore.Partition currentPartition = null;
+        for (SignupStore.Partition partition : store.partitions()) {
+            if (partition.key() == currentKey) {
+                currentPartition = partition;
+            } else if (partition.key() > checkpoint.highWaterMark) {
+                newer.add(partition);
+            }
+        }
+        if (currentPartition != null) {
+            newer.add(currentPartition);
+        }
+        long highWaterMark = checkpoint.highWaterMark;
+        int closedOrdinals = checkpoint.ordinalCount;
+        long lastModified = checkpoint.lastModified;
+        long closedLastModified = checkpoint.lastModified;
+        boolean allClosed = true;
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+        try {
+            List<ForkJoinTask<PartitionScan>> scans = new ArrayList<>(newer.size());
+            for (SignupStore.Partition partition : newer) {
+                scans.add(pool.submit(() -> scan(partition)));
+            }
+            // Merge in partition order, so ordinals are the same no matter
+            // which scan finishes first
+            for (int i = 0; i < newer.size(); i++) {
+                PartitionScan scan = scans.get(i).join();
+                int base = ordinal;
+                for (int j = 0; j < scan.count; j++) {
+                    emailIndex.put(scan.hashes[j], base + j);
+                }
+                scan.categories.forEach((category, positions) -> categoryIndex.addAll(category, positions, base));
+                long key = newer.get(i).key();
+                ranges.put(key, new Range(base, scan.count));
+                ordinal += scan.count;
+                lastModified = Math.max(lastModified, scan.lastModified);
+                // The checkpoint may only cover an unbroken run of closed
+                // partitions
+                allClosed &= newer.get(i).isClosed();
+                if (allClosed) {
+                    highWaterMark = key;
+                    closedOrdinals = ordinal;
+                    closedLastModified = lastModified;
+                    covered.put(key, scan.count);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        ranges.putIfAbsent(currentKey, new Range(ordinal, 0));
+        if (checkpointFile != null && highWaterMark != checkpoint.highWaterMark) {
+            new IndexCheckpoint(highWaterMark, closedOrdinals, closedLastModified, emailIndex, categoryIndex,
+                    covered).save(checkpointFile);
+        }
+        return new IndexCheckpoint(highWaterMark, ordinal, lastModified, emailIndex, categoryIndex, covered);
     }
 
-    private Path saveFile(String name, Signup signup) throws IOException {
-        Path nue = fld.resolve(name);
-        if (atomicMove) {
-            Path tempNue = tmp.resolve(name);
-            saveTo(tempNue, signup);
-            Files.move(tempNue, nue, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
-        } else {
-            saveTo(nue, signup);
+    private PartitionScan scan(SignupStore.Partition partition) throws IOException {
+        PartitionScan result = new PartitionScan();
+        try (Stream<byte[]> all = partition.records()) {
+            all.forEachOrdered(bytes -> {
+                if (result.count == result.hashes.length) {
+                    result.hashes = Arrays.copyOf(result.hashes, result.count * 2);
+                }
+                int position = result.count++;
+                result.hashes[position] = EmailIndex.hash(emailAddress(bytes));
+                result.lastModified = Math.max(result.lastModified, when(bytes));
+                for (String category : categories(bytes)) {
+                    result.categories.computeIfAbsent(category, c -> new OrdinalBitmap()).add(position);
+                }
+            });
         }
-        return nue;
+        return result;
+    }
+
+    private static final class PartitionScan {
+
+        long[] hashes = new long[256];
+        int count;
+        long lastModified;
+        final Map<String, OrdinalBitmap> categories = new HashMap<>();
     }
 
-    private void saveTo(Path nue, Signup signup) throws IOException {
-        try (OutputStream out = Files.newOutputStream(nue, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
-            mapper.writeValue(out, signup);
+    /**
+     * The ordinals of one partition's records: base + n for the nth record
+     * of the partition, for the first count records.
+     */
+    private static final class Range {
+
+        final int base;
+        final AtomicInteger count;
+
+        Range(int base, int count) {
+            this.base = base;
+            this.count = new AtomicInteger(count);
+        }
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable thrown) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        result.completeExceptionally(thrown);
+        return result;
+    }
+
+    private CompletableFuture<Integer> write(SignupInfo info, VisitorCookie vk, String agent, long emailHash) {
+        // Ids are issued on the writer thread, so records are stored in id
+        // order and each one's position in the current partition is known.
+        // Take the time from the id, so the two can never disagree about
+        // which time bucket the signup belongs in
+        long id = ids.next();
+        long now = SignupIds.timestamp(id);
+        Signup signup = new Signup(id, info, now, vk, agent, false, false, newRevocationToken(now));
+        CompletableFuture<Void> durable;
+        try {
+            durable = store.append(SignupCodec.encode(signup), signup.id);
+        } catch (IOException | RuntimeException ex) {
+            return failed(ex);
+        }
+        int ordinal = current.base + current.count.get();
+        // Index before publishing the new count, so a reader which sees the
+        // count also sees the record in the category bitmaps
+        categories.add(ordinal, info.signedUpFor);
+        current.count.incrementAndGet();
+        lastModified = Math.max(lastModified, now);
+        long gen = generation.incrementAndGet();
+        for (LongConsumer listener : changeListeners) {
+            listener.accept(gen);
         }
+        // The record was appended, so it will be read back on restart and is
+        // already listed; index the address even if syncing it fails, or a
+        // retry would store it twice
+        return durable.whenComplete((ignored, thrown) -> {
+            emails.put(emailHash, ordinal);
+        }).thenApply(ignored -> ordinal);
     }
 
     private String newRevocationToken(long now) {
@@ -132,40 +360,372 @@ public class Signups implements Iterable<Path> {
         return prefix + DELIM + strings.get(20) + DELIM + VER;
     }
 
+    /**
+     * Storage statistics for the metrics endpoint.
+     *
+     * @return A map
+     */
+    public Map<String, Object> metrics() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("storageMode", mode.name());
+        result.putAll(store.metrics());
+        return result;
+    }
+
+    private Signup toSignup(byte[] bytes) {
+        try {
+            if (SignupCodec.isEncoded(bytes)) {
+                return SignupCodec.decode(bytes);
+            }
+            // Written as JSON by an older version
+            return mapper.readValue(bytes, Signup.class);
+        } catch (IOException ex) {
+            return Exceptions.chuck(ex);
+        }
+    }
+
+    private String emailAddress(byte[] bytes) {
+        if (SignupCodec.isEncoded(bytes)) {
+            try {
+                return SignupCodec.emailAddress(bytes);
+            } catch (IOException ex) {
+                return Exceptions.chuck(ex);
+            }
+        }
+        return toSignup(bytes).info.emailAddress;
+    }
+
+    private long when(byte[] bytes) {
+        if (SignupCodec.isEncoded(bytes)) {
+            try {
+                return SignupCodec.when(bytes);
+            } catch (IOException ex) {
+                return Exceptions.chuck(ex);
+            }
+        }
+        return toSignup(bytes).when;
+    }
+
+    private boolean inRange(byte[] bytes, long from, long to) {
+        // Checked from the header, so records outside the range in buckets
+        // which overlap its ends are never decoded
+        if (from == Long.MIN_VALUE && to == Long.MAX_VALUE) {
+            return true;
+        }
+        long when = when(bytes);
+        return when >= from && when < to;
+    }
+
+    private long sortKey(byte[] bytes, long when) {
+        long id;
+        if (SignupCodec.isEncoded(bytes)) {
+            try {
+                id = SignupCodec.id(bytes);
+            } catch (IOException ex) {
+                return Exceptions.chuck(ex);
+            }
+        } else {
+            id = toSignup(bytes).id;
+        }
+        if (id != 0) {
+            return id;
+        }
+        // Signups from before ids existed get a stand-in which sorts by
+        // time, using the email address to make collisions unlikely
+        return SignupIds.id(Math.max(when, SignupIds.EPOCH), 0, (int) EmailIndex.hash(emailAddress(bytes)));
+    }
+
+    private boolean hasCategory(byte[] bytes, String category) {
+        if (SignupCodec.isEncoded(bytes)) {
+            try {
+                return SignupCodec.hasCategory(bytes, category);
+            } catch (IOException ex) {
+                return Exceptions.chuck(ex);
+            }
+        }
+        return toSignup(bytes).info.signedUpFor.contains(category);
+    }
+
+    private boolean hasCategories(byte[] bytes, Collection<String> allOf) {
+        for (String category : allOf) {
+            if (!hasCategory(bytes, category)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Set<String> categories(byte[] bytes) {
+        if (SignupCodec.isEncoded(bytes)) {
+            try {
+                return SignupCodec.categories(bytes);
+            } catch (IOException ex) {
+                return Exceptions.chuck(ex);
+            }
+        }
+        return toSignup(bytes).info.signedUpFor;
+    }
+
+    private byte[] toJson(byte[] bytes) {
+        if (!SignupCodec.isEncoded(bytes)) {
+            return bytes;
+        }
+        try {
+            return mapper.writeValueAsBytes(toSignup(bytes));
+        } catch (IOException ex) {
+            return Exceptions.chuck(ex);
+        }
+    }
+
+    /**
+     * Get the time of the most recent write to the store, as of startup or
+     * by this node since, without touching the disk. The time at startup is
+     * that of the newest record seen by the index scan or checkpoint.
+     *
+     * @return A unix timestamp, or 0 if nothing is stored
+     */
+    public long lastModified() {
+        return lastModified;
+    }
+
+    /**
+     * A number which increases with every signup this node stores,
+     * starting from the number of stored records at startup.
+     *
+     * @return The generation
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Add a listener which is called with the new generation each time a
+     * signup is stored. Listeners are called on the thread that writes the
+     * store, and must be quick.
+     *
+     * @param listener A listener
+     */
+    public void addChangeListener(LongConsumer listener) {
+        changeListeners.add(listener);
+    }
+
+    /**
+     * The id of this node, which generations are specific to.
+     *
+     * @return The node id
+     */
+    public int node() {
+        return ids.node();
+    }
+
+    /**
+     * Iterate the JSON bytes of each stored signup, converting records
+     * stored in binary form.
+     *
+     * @return An iterator
+     */
     @Override
-    public Iterator<Path> iterator() {
+    public CloseableIterator<byte[]> iterator() {
         try {
-            Stream<Path> paths = Files.find(store, 4, (pth, attrs) -> {
-                return pth.toString().endsWith(".signup") || attrs.isDirectory();
-            }).filter(pth -> {
-                return !Files.isDirectory(pth);
-            });
-            return paths.iterator();
+            return CloseableIterator.of(store.records().map(this::toJson));
+        } catch (IOException ex) {
+            return Exceptions.chuck(ex);
+        }
+    }
+
+    public CloseableIterator<Signup> iterator(Predicate<Signup> pred) {
+        try {
+            return CloseableIterator.of(store.records().map(this::toSignup).filter(pred));
         } catch (IOException ex) {
             return Exceptions.chuck(ex);
         }
     }
 
-    public Iterator<Path> iterator(Predicate<Signup> pred) {
+    /**
+     * Iterate the JSON bytes of signups made in a time range, reading only
+     * the parts of the store which can contain them.
+     *
+     * @param from The start of the range, inclusive
+     * @param to The end of the range, exclusive
+     * @return An iterator
+     */
+    public CloseableIterator<byte[]> iterator(long from, long to) {
+        if (from == Long.MIN_VALUE && to == Long.MAX_VALUE) {
+            return iterator();
+        }
         try {
-            Stream<Path> paths = Files.find(store, 4, (pth, attrs) -> {
-                return pth.toString().endsWith(".signup") || attrs.isDirectory();
-            }).filter(pth -> {
-                return !Files.isDirectory(pth);
-            }).filter(pth -> {
-                try {
-                    if (Files.size(pth) == 0) {
-                        return false;
+            return CloseableIterator.of(store.records(from, to).filter(bytes -> inRange(bytes, from, to))
+                    .map(this::toJson));
+        } catch (IOException ex) {
+            return Exceptions.chuck(ex);
+        }
+    }
+
+    /**
+     * Iterate signups made in a time range which are signed up for every
+     * one of a set of categories. The per-category bitmaps are intersected
+     * to find which records match, and only those are read from the store;
+     * records written by other nodes since startup, which are not in the
+     * bitmaps, are checked against the categories in their headers.
+     *
+     * @param from The start of the range, inclusive
+     * @param to The end of the range, exclusive
+     * @param allOf Categories, or an empty collection for all signups
+     * @return An iterator
+     */
+    public CloseableIterator<Signup> iterator(long from, long to, Collection<String> allOf) {
+        try {
+            Stream<byte[]> records;
+            if (allOf.isEmpty()) {
+                records = store.records(from, to);
+            } else {
+                // Read the count before the bitmaps; every ordinal below it
+                // is then guaranteed to be in them
+                int currentCount = current.count.get();
+                OrdinalBitmap matches = categories.allOf(allOf);
+                records = store.partitions().stream().flatMap(partition -> {
+                    try {
+                        return select(partition, matches, currentCount, from, to)
+                                .filter(bytes -> hasCategories(bytes, allOf));
+                    } catch (IOException ex) {
+                        return Exceptions.chuck(ex);
                     }
-                    return pred.test(mapper.readValue(Files.readAllBytes(pth), Signup.class));
-                } catch (IOException ex) {
-                    return Exceptions.chuck(ex);
-                }
-            });
-            return paths.iterator();
+                });
+            }
+            return CloseableIterator.of(records.filter(bytes -> inRange(bytes, from, to)).map(this::toSignup));
+        } catch (IOException ex) {
+            return Exceptions.chuck(ex);
+        }
+    }
+
+    private Stream<byte[]> select(SignupStore.Partition partition, OrdinalBitmap matches, int currentCount,
+            long from, long to) throws IOException {
+        Range range = ranges.get(partition.key());
+        if (range == null) {
+            // Created by another node since startup
+            return partition.records(from, to);
+        }
+        int base = range.base;
+        int indexed = range == current ? currentCount : range.count.get();
+        return partition.records(position -> {
+            if (position >= indexed) {
+                // Appended since the bitmaps were read, or by another node
+                // since startup - read it and check its header
+                return position;
+            }
+            int next = matches.nextSetBit(base + position);
+            return next < 0 || next >= base + indexed ? indexed : next - base;
+        });
+    }
+
+    /**
+     * Get one page of signups, newest first. Time windows are read
+     * backwards from the cursor (or the end of the range), widening as they
+     * go, so a page of recent signups reads only the most recent buckets;
+     * filters are applied to each record's header, and only the signups
+     * returned are decoded.
+     *
+     * @param query The query
+     * @return A page
+     */
+    public SignupPage page(SignupQuery query) {
+        long end = query.cursor == SignupQuery.NO_CURSOR ? query.to
+                : Math.min(query.to, SignupIds.timestamp(query.cursor) + 1);
+        // The newest limit + 1 rows - one more than needed, to tell if there
+        // is another page
+        PriorityQueue<Row> newest = new PriorityQueue<>(query.limit + 1);
+        long width = PAGE_WINDOW_MILLIS;
+        while (end > query.from && newest.size() <= query.limit) {
+            long start = end - width;
+            if (start > end || start < query.from) {
+                start = query.from;
+            }
+            long windowStart = start;
+            long windowEnd = end;
+            try (Stream<byte[]> records = store.records(windowStart, windowEnd)) {
+                records.forEach(bytes -> {
+                    long when = when(bytes);
+                    if (when < windowStart || when >= windowEnd) {
+                        return;
+                    }
+                    if (!hasCategories(bytes, query.categories)) {
+                        return;
+                    }
+                    long key = sortKey(bytes, when);
+                    if (key >= query.cursor) {
+                        return;
+                    }
+                    if (newest.size() <= query.limit) {
+                        newest.add(new Row(key, bytes));
+                    } else if (key > newest.peek().key) {
+                        newest.poll();
+                        newest.add(new Row(key, bytes));
+                    }
+                });
+            } catch (IOException ex) {
+                return Exceptions.chuck(ex);
+            }
+            end = start;
+            width = width > Long.MAX_VALUE / 4 ? Long.MAX_VALUE : width * 4;
+        }
+        List<Row> rows = new ArrayList<>(newest);
+        rows.sort(Collections.reverseOrder());
+        List<Signup> result = new ArrayList<>(Math.min(rows.size(), query.limit));
+        for (int i = 0; i < rows.size() && i < query.limit; i++) {
+            result.add(toSignup(rows.get(i).record));
+        }
+        String next = rows.size() > query.limit
+                ? SignupQuery.formatCursor(rows.get(query.limit - 1).key) : null;
+        return new SignupPage(result, next);
+    }
+
+    private static final class Row implements Comparable<Row> {
+
+        final long key;
+        final byte[] record;
+
+        Row(long key, byte[] record) {
+            this.key = key;
+            this.record = record;
+        }
+
+        @Override
+        public int compareTo(Row o) {
+            return Long.compare(key, o.key);
+        }
+    }
+
+    /**
+     * Stream stored records in a time range in the {@link RawExport} format,
+     * without decoding them. May include records just outside the range.
+     *
+     * @param from The start of the range, inclusive
+     * @param to The end of the range, exclusive
+     * @return An iterator
+     */
+    public CloseableIterator<RawExport.Chunk> export(long from, long to) {
+        try {
+            return CloseableIterator.of(store.export(from, to));
         } catch (IOException ex) {
             return Exceptions.chuck(ex);
         }
     }
 
+    /**
+     * Iterate signups made in a time range, reading only the parts of the
+     * store which can contain them.
+     *
+     * @param from The start of the range, inclusive
+     * @param to The end of the range, exclusive
+     * @param pred A filter
+     * @return An iterator
+     */
+    public CloseableIterator<Signup> iterator(long from, long to, Predicate<Signup> pred) {
+        try {
+            return CloseableIterator.of(store.records(from, to).filter(bytes -> inRange(bytes, from, to))
+                    .map(this::toSignup).filter(pred));
+        } catch (IOException ex) {
+            return Exceptions.chuck(ex);
+        }
+    }
 }
@@ -0,0 +1,69 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import com.mastfrog.util.preconditions.ConfigurationError;
+
+/**
+ * Which storage engine to use.
+ *
+ * @author Tim Boudreau
+ */
+public enum StorageMode {
+    /**
+     * One file per signup.
+     */
+    FILES(FileTreeStore.class),
+    /**
+     * Length-prefixed records appended to rolling segment files.
+     */
+    LOG(LogStore.class),
+    /**
+     * Nothing is persisted - for tests and benchmarks.
+     */
+    MEMORY(InMemoryStore.class);
+    private final Class<? extends SignupStore> storeType;
+
+    StorageMode(Class<? extends SignupStore> storeType) {
+        this.storeType = storeType;
+    }
+
+    /**
+     * The implementation type to bind SignupStore to.
+     *
+     * @return A type
+     */
+    public Class<? extends SignupStore> storeType() {
+        return storeType;
+    }
+
+    public static StorageMode parse(String s) {
+        for (StorageMode mode : values()) {
+            if (mode.name().equalsIgnoreCase(s.trim())) {
+                return mode;
+            }
+        }
+        throw new ConfigurationError("Unknown storage mode '" + s + "'");
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import com.mastfrog.util.preconditions.Exceptions;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The on-disk layout of the store: one directory per server launch under
+ * <code>sessions/</code>, holding a subdirectory per time bucket (see
+ * {@link TimePartitioning}) of individual signup files or log segments, and
+ * one compressed segment per compacted launch under <code>compacted/</code>.
+ * Sessions written before time partitioning have their files directly in the
+ * session directory, and are treated as a single bucket of unknown span. A
+ * launch that has been compacted is read from its compacted segment even if
+ * its session directory has not yet been deleted, so readers see each
+ * session exactly once.
+ *
+ * @author Tim Boudreau
+ */
+final class StoreLayout {
+
+    static final String SESSIONS_DIR = "sessions";
+    static final String COMPACTED_DIR = "compacted";
+    private final Path store;
+
+    StoreLayout(Path store) {
+        this.store = store;
+    }
+
+    Path sessionDir(long launch) {
+        return store.resolve(SESSIONS_DIR).resolve(Long.toString(launch));
+    }
+
+    Path compactedSegment(long launch) {
+        return store.resolve(COMPACTED_DIR).resolve(launch + CompactedSegment.SUFFIX);
+    }
+
+    boolean isCompacted(long launch) {
+        return Files.exists(compactedSegment(launch));
+    }
+
+    boolean hasSessionDir(long launch) {
+        return Files.isDirectory(sessionDir(launch));
+    }
+
+    /**
+     * List every launch which has stored data, oldest first.
+     */
+    List<Long> launches() throws IOException {
+        TreeSet<Long> result = new TreeSet<>();
+        collectLaunches(store.resolve(SESSIONS_DIR), "", result);
+        collectLaunches(store.resolve(COMPACTED_DIR), CompactedSegment.SUFFIX, result);
+        return result.isEmpty() ? Collections.emptyList() : new ArrayList<>(result);
+    }
+
+    private static void collectLaunches(Path dir, String suffix, TreeSet<Long> into) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.list(dir)) {
+            paths.forEach(pth -> {
+                String name = pth.getFileName().toString();
+                if (!name.endsWith(suffix)) {
+                    return;
+                }
+                long launch = launch(name.substring(0, name.length() - suffix.length()));
+                if (launch >= 0) {
+                    into.add(launch);
+                }
+            });
+        }
+    }
+
+    private static long launch(String name) {
+        try {
+            return Long.parseLong(name);
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * List the files holding a launch's records in the order they were
+     * written - either its compacted segment, or the contents of its session
+     * directory.
+     */
+    List<Path> recordFiles(long launch) throws IOException {
+        Path compacted = compactedSegment(launch);
+        if (Files.exists(compacted)) {
+            return Collections.singletonList(compacted);
+        }
+        return sessionFiles(launch);
+    }
+
+    /**
+     * List the record files in a session directory, ignoring any compacted
+     * segment for it.
+     */
+    List<Path> sessionFiles(long launch) throws IOException {
+        List<Path> result = new ArrayList<>();
+        for (Bucket bucket : buckets(launch)) {
+            result.addAll(bucket.files);
+        }
+        return result;
+    }
+
+    /**
+     * Determine if nothing has been written to a session directory since a
+     * given time.
+     */
+    static boolean isIdle(List<Bucket> buckets, long since) throws IOException {
+        for (Bucket bucket : buckets) {
+            for (Path file : bucket.files) {
+                if (Files.getLastModifiedTime(file).toMillis() > since) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * List the time buckets of a session directory in chronological order,
+     * ignoring any compacted segment for it.
+     */
+    List<Bucket> buckets(long launch) throws IOException {
+        Path dir = sessionDir(launch);
+        if (!Files.isDirectory(dir)) {
+            return Collections.emptyList();
+        }
+        List<Bucket> result = new ArrayList<>();
+        List<Path> unbucketed = new ArrayList<>();
+        List<Path> bucketDirs = new ArrayList<>();
+        listSession(dir, Long.MIN_VALUE, Long.MAX_VALUE, unbucketed, bucketDirs);
+        if (!unbucketed.isEmpty()) {
+            result.add(new Bucket(Long.MIN_VALUE, Long.MAX_VALUE, unbucketed));
+        }
+        for (Path bucketDir : bucketDirs) {
+            String name = bucketDir.getFileName().toString();
+            long start = TimePartitioning.startOf(name);
+            List<Path> files = recordFilesIn(bucketDir);
+            if (!files.isEmpty()) {
+                result.add(new Bucket(start, TimePartitioning.of(name).bucketEnd(start), files));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stream the record files of a session directory in chronological order,
+     * from only the buckets whose names overlap a time range. Buckets outside
+     * the range are never listed, and each one inside it is listed only when
+     * the stream reaches it.
+     */
+    Stream<Path> sessionFiles(long launch, long from, long to) throws IOException {
+        Path dir = sessionDir(launch);
+        if (!Files.isDirectory(dir)) {
+            return Stream.empty();
+        }
+        List<Path> unbucketed = new ArrayList<>();
+        List<Path> bucketDirs = new ArrayList<>();
+        listSession(dir, from, to, unbucketed, bucketDirs);
+        return Stream.concat(unbucketed.stream(), bucketDirs.stream().flatMap(bucketDir -> {
+            try {
+                return recordFilesIn(bucketDir).stream();
+            } catch (IOException ex) {
+                return Exceptions.chuck(ex);
+            }
+        }));
+    }
+
+    /**
+     * List a session directory once, collecting the record files written
+     * before time partitioning, which may hold anything, and the bucket
+     * directories overlapping a time range, each sorted.
+     */
+    private static void listSession(Path dir, long from, long to, List<Path> unbucketed, List<Path> bucketDirs)
+            throws IOException {
+        try (Stream<Path> paths = Files.list(dir)) {
+            // Names are checked first, so only candidates are stat'd
+            paths.forEach(pth -> {
+                if (isRecordFile(pth)) {
+                    if (Files.isRegularFile(pth)) {
+                        unbucketed.add(pth);
+                    }
+                } else if (TimePartitioning.overlaps(pth.getFileName().toString(), from, to)
+                        && Files.isDirectory(pth)) {
+                    bucketDirs.add(pth);
+                }
+            });
+        }
+        Collections.sort(unbucketed);
+        Collections.sort(bucketDirs);
+    }
+
+    private static List<Path> recordFilesIn(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.list(dir)) {
+            return paths.filter(pth -> isRecordFile(pth) && Files.isRegularFile(pth))
+                    .sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static boolean isRecordFile(Path pth) {
+        return pth.toString().endsWith(FileTreeWriter.SIGNUP_SUFFIX) || SignupLog.isSegment(pth);
+    }
+
+    Stream<Path> recordFiles() throws IOException {
+        return launches().stream().flatMap(launch -> {
+            try {
+                return recordFiles(launch).stream();
+            } catch (IOException ex) {
+                return Exceptions.chuck(ex);
+            }
+        });
+    }
+
+    static Stream<byte[]> records(Stream<Path> files) {
+        return files.flatMap(pth -> {
+            if (SignupLog.isSegment(pth)) {
+                return SignupLog.records(pth);
+            } else if (CompactedSegment.isCompactedSegment(pth)) {
+                return CompactedSegment.records(pth);
+            }
+            try {
+                return Stream.of(Files.readAllBytes(pth));
+            } catch (IOException ex) {
+                return Exceptions.chuck(ex);
+            }
+        }).filter(bytes -> bytes.length > 0);
+    }
+
+    Stream<byte[]> records(long launch) throws IOException {
+        return records(recordFiles(launch).stream());
+    }
+
+    /**
+     * Stream the records of a launch, opening only the buckets or compacted
+     * blocks which overlap a time range. Records outside the range may be
+     * included; callers needing an exact range must filter.
+     *
+     * @param launch The launch
+     * @param from The start of the range, inclusive
+     * @param to The end of the range, exclusive
+     * @return A stream
+     */
+    Stream<byte[]> records(long launch, long from, long to) throws IOException {
+        Path compacted = compactedSegment(launch);
+        if (Files.exists(compacted)) {
+            return CompactedSegment.records(compacted, from, to);
+        }
+        return records(sessionFiles(launch, from, to));
+    }
+
+    /**
+     * Stream the records of a launch at selected positions, where position
+     * n is the nth record {@link #records(long)} would return. Unselected
+     * <code>.signup</code> files are never opened, log segments are read
+     * only up to the last selected record, and compacted blocks with no
+     * selected record are never decompressed.
+     *
+     * @param launch The launch
+     * @param next Given a position, returns the first selected position at
+     * or after it, or Integer.MAX_VALUE if there are none
+     * @return A stream
+     */
+    Stream<byte[]> records(long launch, IntUnaryOperator next) throws IOException {
+        Path compacted = compactedSegment(launch);
+        if (Files.exists(compacted)) {
+            return CompactedSegment.records(compacted, next);
+        }
+        int[] position = new int[1];
+        return sessionFiles(launch).stream().flatMap(pth -> {
+            if (next.applyAsInt(position[0]) == Integer.MAX_VALUE) {
+                return Stream.empty();
+            }
+            try {
+                if (SignupLog.isSegment(pth)) {
+                    List<byte[]> selected = new ArrayList<>();
+                    position[0] = SignupLog.records(pth, position[0], next, selected::add);
+                    return selected.stream();
+                }
+                // Empty files are skipped by records(), so must not count
+                if (Files.size(pth) == 0) {
+                    return Stream.empty();
+                }
+                int pos = position[0]++;
+                return next.applyAsInt(pos) == pos ? Stream.of(Files.readAllBytes(pth)) : Stream.empty();
+            } catch (IOException ex) {
+                return Exceptions.chuck(ex);
+            }
+        });
+    }
+
+    /**
+     * The raw export of a session's records in a time range: compacted
+     * segments must be decompressed, but session files are sent as-is.
+     */
+    Stream<RawExport.Chunk> export(long launch, long from, long to) throws IOException {
+        Path compacted = compactedSegment(launch);
+        if (Files.exists(compacted)) {
+            return RawExport.framed(CompactedSegment.records(compacted, from, to));
+        }
+        return sessionFiles(launch, from, to).map(pth -> {
+            try {
+                return RawExport.chunk(pth);
+            } catch (IOException ex) {
+                return Exceptions.chuck(ex);
+            }
+        });
+    }
+
+    Stream<byte[]> records() throws IOException {
+        return records(recordFiles());
+    }
+
+    /**
+     * Delete a session directory whose records are safely in a compacted
+     * segment.
+     */
+    void deleteSessionDir(long launch) throws IOException {
+        if (!isCompacted(launch)) {
+            throw new IOException("Session " + launch + " has not been compacted");
+        }
+        Path dir = sessionDir(launch);
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        List<Path> bucketDirs = new ArrayList<>();
+        try (Stream<Path> paths = Files.list(dir)) {
+            for (Path p : (Iterable<Path>) paths::iterator) {
+                if (Files.isDirectory(p)) {
+                    bucketDirs.add(p);
+                } else {
+                    Files.deleteIfExists(p);
+                }
+            }
+        }
+        for (Path bucketDir : bucketDirs) {
+            try (Stream<Path> paths = Files.list(bucketDir)) {
+                for (Path p : (Iterable<Path>) paths::iterator) {
+                    Files.deleteIfExists(p);
+                }
+            }
+            Files.deleteIfExists(bucketDir);
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    /**
+     * The record files of one time bucket of a session.
+     */
+    static final class Bucket {
+
+        final long from;
+        final long to;
+        final List<Path> files;
+
+        Bucket(long from, long to, List<Path> files) {
+            this.from = from;
+            this.to = to;
+            this.files = files;
+        }
+    }
+}
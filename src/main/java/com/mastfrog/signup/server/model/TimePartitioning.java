@@ -0,0 +1,153 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import com.mastfrog.util.preconditions.ConfigurationError;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * How the records of a session are grouped into time buckets (UTC), so that
+ * queries over a time range only open the buckets which overlap it. Bucket
+ * names sort chronologically, and either granularity can be read regardless
+ * of which is configured.
+ *
+ * @author Tim Boudreau
+ */
+public enum TimePartitioning {
+    /**
+     * A bucket per day, named like <code>2018-05-01</code>.
+     */
+    DAY(DateTimeFormatter.ofPattern("yyyy-MM-dd").withZone(ZoneOffset.UTC), ChronoUnit.DAYS),
+    /**
+     * A bucket per hour, named like <code>2018-05-01T13</code>.
+     */
+    HOUR(DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH").withZone(ZoneOffset.UTC), ChronoUnit.HOURS);
+    private final DateTimeFormatter format;
+    private final ChronoUnit unit;
+
+    TimePartitioning(DateTimeFormatter format, ChronoUnit unit) {
+        this.format = format;
+        this.unit = unit;
+    }
+
+    /**
+     * Get the name of the bucket a timestamp falls in.
+     *
+     * @param when A unix timestamp
+     * @return A bucket name
+     */
+    public String bucket(long when) {
+        return format.format(Instant.ofEpochMilli(when));
+    }
+
+    /**
+     * Get the first millisecond of the bucket a timestamp falls in.
+     *
+     * @param when A unix timestamp
+     * @return A unix timestamp
+     */
+    public long bucketStart(long when) {
+        return Instant.ofEpochMilli(when).truncatedTo(unit).toEpochMilli();
+    }
+
+    /**
+     * Get the first millisecond after the bucket a timestamp falls in.
+     *
+     * @param when A unix timestamp
+     * @return A unix timestamp
+     */
+    public long bucketEnd(long when) {
+        return Instant.ofEpochMilli(bucketStart(when)).plus(1, unit).toEpochMilli();
+    }
+
+    /**
+     * Find the granularity a bucket name was written with.
+     *
+     * @param bucket A bucket name
+     * @return The partitioning, or null if the name is not a bucket
+     */
+    static TimePartitioning of(String bucket) {
+        switch (bucket.length()) {
+            case 10:
+                return DAY;
+            case 13:
+                return HOUR;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Get the first millisecond of a named bucket.
+     *
+     * @param bucket A bucket name
+     * @return A unix timestamp, or -1 if the name is not a bucket
+     */
+    static long startOf(String bucket) {
+        TimePartitioning part = of(bucket);
+        if (part == null) {
+            return -1;
+        }
+        try {
+            if (part == DAY) {
+                return LocalDate.parse(bucket).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+            }
+            return LocalDateTime.parse(bucket + ":00").toInstant(ZoneOffset.UTC).toEpochMilli();
+        } catch (DateTimeParseException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Determine if a named bucket may hold records in a time range.
+     *
+     * @param bucket A bucket name
+     * @param from The start of the range, inclusive
+     * @param to The end of the range, exclusive
+     * @return true if the bucket overlaps the range
+     */
+    static boolean overlaps(String bucket, long from, long to) {
+        long start = startOf(bucket);
+        if (start < 0) {
+            return false;
+        }
+        TimePartitioning part = of(bucket);
+        return start < to && part.bucketEnd(start) > from;
+    }
+
+    public static TimePartitioning parse(String s) {
+        for (TimePartitioning p : values()) {
+            if (p.name().equalsIgnoreCase(s.trim())) {
+                return p;
+            }
+        }
+        throw new ConfigurationError("Unknown time partitioning '" + s + "'");
+    }
+}
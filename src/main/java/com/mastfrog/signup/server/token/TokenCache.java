@@ -68,16 +68,25 @@ public class TokenCache {
         used.put(token, token);
     }
 
+    /**
+     * Allow a token to be used again, if a signup using it could not be
+     * saved.
+     *
+     * @param token The token
+     */
+    public void onTokenUnused(String token) {
+        used.invalidate(token);
+    }
+
     public boolean isUsed(String token) {
         return used.getIfPresent(token) != null;
     }
 
     public boolean isValid(String token) {
-        boolean result = this.tokens.isValid(token);
+        long issued = tokens.validTimestamp(token);
+        boolean result = issued != 0;
         if (result) {
-            long issued = tokens.extractTimestamp(token);
-            Duration age = Duration.ofMillis(System.currentTimeMillis() - issued);
-            result = age.toMillis() <= tokenMaxAge.toMillis();
+            result = System.currentTimeMillis() - issued <= tokenMaxAge.toMillis();
             if (result) {
                 result = cache.getIfPresent(token) != null;
             }
@@ -4,9 +4,7 @@ import com.mastfrog.giulius.DeploymentMode;
 import com.mastfrog.settings.SettingsBuilder;
 import static com.mastfrog.signup.server.token.TokensConfig.TOKEN_BYTES_LENGTH;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 import java.util.Random;
 import javax.inject.Inject;
@@ -18,6 +16,8 @@ import javax.inject.Inject;
  */
 public class TokenGenerator {
 
+    private static final Base64.Encoder ENCODER = Base64.getEncoder();
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial( Scratch::new );
     private final TokensConfig config;
 
     @Inject
@@ -29,12 +29,6 @@ public class TokenGenerator {
         return config.randomPrime();
     }
 
-    private byte[] toThreeByteArray(int val) {
-        byte[] result = new byte[4];
-        ByteBuffer.wrap( result ).asIntBuffer().put( val );
-        return new byte[]{result[3], result[2], result[1]};
-    }
-
     private int leastSignificantDWord(long l) {
         return (int) l;
     }
@@ -43,46 +37,55 @@ public class TokenGenerator {
         return (int) ( l >> 32 );
     }
 
+    private static void putInt(byte[] into, int at, int val) {
+        into[at] = (byte) val;
+        into[at + 1] = (byte) ( val >> 8 );
+        into[at + 2] = (byte) ( val >> 16 );
+        into[at + 3] = (byte) ( val >> 24 );
+    }
+
+    /**
+     * Create a new token. The raw bytes and their encoding are built in scratch arrays owned by the calling thread,
+     * so the returned string is the only thing allocated.
+     *
+     * @return A token
+     */
     public String newToken() {
-        byte[] result = new byte[TOKEN_BYTES_LENGTH];
-        ByteBuffer parts = ByteBuffer.wrap( result ).order( ByteOrder.LITTLE_ENDIAN );
-        IntBuffer randomInts = ByteBuffer.wrap( config.randomBytes( 16 )).asIntBuffer();
-        int firstInt = randomInts.get();
-        int secondInt = randomInts.get();
-        int thirdInt = Math.abs(randomInts.get() % 256);
-        long[] primes = config.pickPrimes( 2 );
-
-        long multiplier = Math.abs( randomInts.get() );
-//        long multiplier = Math.abs(config.randomLong());
-        for ( int i = 0; i < primes.length; i++ ) {
-            multiplier *= primes[i];
-        }
+        Scratch scratch = SCRATCH.get();
+        byte[] result = scratch.raw;
+        int firstInt = config.randomInt();
+        int secondInt = config.randomInt();
+        int thirdInt = Math.abs( config.randomInt() % 256 );
+
+        long multiplier = Math.abs( config.randomInt() );
+        multiplier *= config.twoPrimesProduct();
         long counter = config.counter();
         multiplier += config.primesAdd() + counter + ( thirdInt & 0xFF );
 
-        int multiplierLow = leastSignificantDWord( multiplier );
         // bytes 0-3, least significant dword of our random number multiplied by two of our
         // set of primes
-        parts.putInt( multiplierLow );
+        putInt( result, 0, leastSignificantDWord( multiplier ) );
         // bytes 4-7, a counter
-        parts.putInt( (int) ( counter % 2147483647 ) );
+        putInt( result, 4, (int) ( counter % 2147483647 ) );
 
-        // bytes 8-11, a hash of the mac addresses of all network interfaces
+        // bytes 8-10, a hash of the mac addresses of all network interfaces
         // on this machine.  The algorithm guarantees the result fits in 3 bytes and is
         // divisible by 91
-        parts.put( toThreeByteArray( config.interfacesHash() ) );
-        int multiplierHigh = mostSignificantDWord( multiplier );
-        // bytes 12-16, the most significant dword of the random number multiplied by
+        int interfacesHash = config.interfacesHash();
+        result[8] = (byte) interfacesHash;
+        result[9] = (byte) ( interfacesHash >> 8 );
+        result[10] = (byte) ( interfacesHash >> 16 );
+        // bytes 11-14, the most significant dword of the random number multiplied by
         // two of our primes
-        parts.putInt( multiplierHigh );
+        putInt( result, 11, mostSignificantDWord( multiplier ) );
         // A random sequence of four bytes that identifies this process
-        parts.putInt( config.processSpecificAsInt() );
+        putInt( result, 15, config.processSpecificAsInt() );
 
         // 9 random bytes, one of which was incorporated into the final multiplier value
-        // bytes 17-26
-        parts.putInt( firstInt );
-        parts.putInt( secondInt );
-        parts.put( (byte) thirdInt );
+        // bytes 19-27
+        putInt( result, 19, firstInt );
+        putInt( result, 23, secondInt );
+        result[27] = (byte) thirdInt;
 
         // Take the current timestamp, subtract our base timestamp, and divide by 15000
         long timeOffset = ( ( config.currentTimeMillis() - config.baseTimestamp() ) / config.timeOffsetDivisor() );
@@ -94,13 +97,19 @@ public class TokenGenerator {
         result[32] = (byte) (timeOffset >> 32);
         result[33] = (byte) (timeOffset >> 40);
 
-        Tokens.extractOffset( result);
+        // bytes 34-35, the process pid
+        short pid = config.pid();
+        result[34] = (byte) pid;
+        result[35] = (byte) ( pid >> 8 );
+        int length = ENCODER.encode( result, scratch.encoded );
+        return new String( scratch.encoded, 0, length, StandardCharsets.ISO_8859_1 );
+    }
 
+    private static final class Scratch {
 
-        parts.position( 34 );
-        // bytes 34-35, the process pid
-        parts.putShort( config.pid() );
-        return Base64.getEncoder().encodeToString( result );
+        final byte[] raw = new byte[TOKEN_BYTES_LENGTH];
+        // 36 bytes encode to exactly 48 characters, with no padding
+        final byte[] encoded = new byte[( TOKEN_BYTES_LENGTH + 2 ) / 3 * 4];
     }
 
     public static void main(String[] args) throws IOException {
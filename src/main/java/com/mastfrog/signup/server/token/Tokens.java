@@ -1,12 +1,9 @@
 package com.mastfrog.signup.server.token;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.Base64;
+import java.util.Arrays;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
-import static java.nio.ByteOrder.LITTLE_ENDIAN;
 import static com.mastfrog.signup.server.token.TokensConfig.TOKEN_BYTES_LENGTH;
 
 /**
@@ -27,8 +24,20 @@ import static com.mastfrog.signup.server.token.TokensConfig.TOKEN_BYTES_LENGTH;
 public class Tokens {
 
     private static final long LONG_MASK = 0x00000000ffffffffL;
+    // 36 bytes encode to exactly 48 characters, with no padding
+    private static final int TOKEN_CHARS_LENGTH = TOKEN_BYTES_LENGTH / 3 * 4;
+    private static final byte[] BASE64_VALUES = new byte[128];
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial( () -> new byte[TOKEN_BYTES_LENGTH] );
     private final TokensConfig config;
 
+    static {
+        Arrays.fill( BASE64_VALUES, (byte) -1 );
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for ( int i = 0; i < alphabet.length(); i++ ) {
+            BASE64_VALUES[alphabet.charAt( i )] = (byte) i;
+        }
+    }
+
     @Inject
     public Tokens(TokensConfig config) {
         this.config = config;
@@ -43,12 +52,11 @@ public class Tokens {
      * @return The timestamp as millis epoch, or 0 if the token is invalid.
      */
     public long extractTimestamp(String tok) {
-        try {
-            byte[] bytes = Base64.getDecoder().decode( tok );
-            return extractTimestamp( bytes );
-        } catch ( IllegalArgumentException ex ) {
+        byte[] bytes = SCRATCH.get();
+        if ( !decode( tok, bytes ) ) {
             return 0;
         }
+        return extractTimestamp( bytes );
     }
 
     public long extractTimestamp(byte[] bytes) {
@@ -60,13 +68,51 @@ public class Tokens {
     }
 
     static long extractOffset(byte[] bytes) {
-        byte[] b = new byte[8];
-        System.arraycopy( bytes, 28, b, 0, 6 );
-        b[6] = 0;
-        b[7] = 0;
-        long result = ByteBuffer.wrap( b ).order( LITTLE_ENDIAN ).getLong();
-//        logHex( "EXTRACTED as " + result, bytes, 28, 6 );
-        return result;
+        return ( bytes[28] & 0xFFL )
+                | ( ( bytes[29] & 0xFFL ) << 8 )
+                | ( ( bytes[30] & 0xFFL ) << 16 )
+                | ( ( bytes[31] & 0xFFL ) << 24 )
+                | ( ( bytes[32] & 0xFFL ) << 32 )
+                | ( ( bytes[33] & 0xFFL ) << 40 );
+    }
+
+    private static int getInt(byte[] bytes, int at) {
+        return ( bytes[at] & 0xFF )
+                | ( ( bytes[at + 1] & 0xFF ) << 8 )
+                | ( ( bytes[at + 2] & 0xFF ) << 16 )
+                | ( bytes[at + 3] << 24 );
+    }
+
+    /**
+     * Decode a token into an array, rejecting anything that is not exactly the length of one of our tokens before
+     * looking at its contents, and stopping at the first character which is not in the Base64 alphabet.
+     *
+     * @param tok The token
+     * @param into An array of at least TOKEN_BYTES_LENGTH bytes
+     * @return true if it decoded
+     */
+    private static boolean decode(String tok, byte[] into) {
+        if ( tok == null || tok.length() != TOKEN_CHARS_LENGTH ) {
+            return false;
+        }
+        for ( int i = 0, at = 0; i < TOKEN_CHARS_LENGTH; i += 4, at += 3 ) {
+            int a = value( tok.charAt( i ) );
+            int b = value( tok.charAt( i + 1 ) );
+            int c = value( tok.charAt( i + 2 ) );
+            int d = value( tok.charAt( i + 3 ) );
+            if ( ( a | b | c | d ) < 0 ) {
+                return false;
+            }
+            int bits = ( a << 18 ) | ( b << 12 ) | ( c << 6 ) | d;
+            into[at] = (byte) ( bits >> 16 );
+            into[at + 1] = (byte) ( bits >> 8 );
+            into[at + 2] = (byte) bits;
+        }
+        return true;
+    }
+
+    private static int value(char c) {
+        return c < 128 ? BASE64_VALUES[c] : -1;
     }
 
     /**
@@ -76,33 +122,36 @@ public class Tokens {
      * @return True if it is valid according to our rules
      */
     public boolean isValid(String tok) {
-        try {
-            byte[] bytes = Base64.getDecoder().decode( tok );
-            if ( bytes.length < TOKEN_BYTES_LENGTH ) {
-                return false;
-            }
-            ByteBuffer buf = ByteBuffer.wrap( bytes ).order( ByteOrder.LITTLE_ENDIAN );
-            long multiplierLsdw = buf.getInt( 0 ) & LONG_MASK;
-            int seq = buf.getInt( 4 );
-            ByteBuffer ihBytes = ByteBuffer.wrap( new byte[]{0, bytes[8], bytes[9], bytes[10]} ).order(
-                    ByteOrder.LITTLE_ENDIAN );
-            int ih = ihBytes.getInt( 0 );
-            long multiplierMsdw = buf.getInt( 11 ) & LONG_MASK;
+        return validTimestamp( tok ) != 0;
+    }
 
-//            long timeOffset = extractOffset( bytes );
-            long timestamp = extractTimestamp( bytes );
-            int thirdRand = (int) bytes[27] & 0xFF;
-            long multiplied = multiplierLsdw | ( multiplierMsdw << 32 );
-            multiplied -= config.primesAdd() + thirdRand + seq;
-            int divCount = config.divisibleCount( multiplied );
-            long skew = timestamp - config.currentTimeMillis();
-            boolean timestampTooOld = timestamp < config.baseTimestamp();
-            boolean divisibleBy91 = ih % 91 == 0;
-            boolean skewOk = skew < config.maxDateFutureSkew();
-            boolean containsOurPrimes = divCount >= 2;
-            return divisibleBy91 && skewOk && containsOurPrimes && !timestampTooOld;
-        } catch ( IllegalArgumentException ex ) { // Invalid base64
-            return false;
+    /**
+     * Validate a token and extract its timestamp in one pass, decoding it into a per-thread scratch array. The
+     * checks run cheapest first, so garbage is rejected on its length or its first non-Base64 character, and a
+     * forged token usually on its interface hash, before any division by the primes.
+     *
+     * @param tok The token
+     * @return The timestamp as millis epoch if the token is valid according to our rules, or 0 if it is not
+     */
+    public long validTimestamp(String tok) {
+        byte[] bytes = SCRATCH.get();
+        if ( !decode( tok, bytes ) ) {
+            return 0;
+        }
+        int ih = ( ( bytes[8] & 0xFF ) << 8 ) | ( ( bytes[9] & 0xFF ) << 16 ) | ( bytes[10] << 24 );
+        if ( ih % 91 != 0 ) {
+            return 0;
+        }
+        long timestamp = extractTimestamp( bytes );
+        if ( timestamp < config.baseTimestamp() || timestamp - config.currentTimeMillis() >= config.maxDateFutureSkew() ) {
+            return 0;
         }
+        long multiplierLsdw = getInt( bytes, 0 ) & LONG_MASK;
+        int seq = getInt( bytes, 4 );
+        long multiplierMsdw = getInt( bytes, 11 ) & LONG_MASK;
+        int thirdRand = (int) bytes[27] & 0xFF;
+        long multiplied = multiplierLsdw | ( multiplierMsdw << 32 );
+        multiplied -= config.primesAdd() + thirdRand + seq;
+        return config.divisibleCount( multiplied ) >= 2 ? timestamp : 0;
     }
 }
@@ -48,6 +48,7 @@ final class TokensConfig {
     private final long[] primes;
     private final Random random;
     private final byte[] processSpecific;
+    private final int processSpecificInt;
     private final int networkInterfacesHash;
     private final int pid;
     private final long fixedTimestamp;
@@ -69,6 +70,7 @@ final class TokensConfig {
         processSpecific = new byte[4];
         networkInterfacesHash = _interfacesHash();
         random.nextBytes( processSpecific );
+        processSpecificInt = ByteBuffer.wrap( processSpecific ).asIntBuffer().get();
         pid = Integer.parseInt( ManagementFactory.getRuntimeMXBean().getName().split( "@" )[0] );
         String primeList = settings.getString( SETTINGS_KEY_TOKEN_PRIMES_LIST, DEFAULT_PRIMES );
         if ( mode == DeploymentMode.PRODUCTION && DEFAULT_PRIMES.equals( primeList ) ) {
@@ -84,6 +86,9 @@ final class TokensConfig {
                         + primeList );
             }
         }
+        if ( primes.length < 2 ) {
+            throw new ConfigurationError( "Need at least two primes, but have " + primeList );
+        }
     }
 
     public ZonedDateTime currentDateTime() {
@@ -155,7 +160,22 @@ final class TokensConfig {
     }
 
     int processSpecificAsInt() {
-        return ByteBuffer.wrap( processSpecific() ).asIntBuffer().get();
+        return processSpecificInt;
+    }
+
+    /**
+     * The product of two different primes picked at random - equivalent to multiplying together the result of
+     * <code>pickPrimes(2)</code>, without allocating anything.
+     *
+     * @return The product
+     */
+    long twoPrimesProduct() {
+        int first = random.nextInt( primes.length );
+        int second = random.nextInt( primes.length - 1 );
+        if ( second >= first ) {
+            second++;
+        }
+        return primes[first] * primes[second];
     }
 
     public long[] pickPrimes(int count) {
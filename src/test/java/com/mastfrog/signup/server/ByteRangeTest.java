@@ -0,0 +1,78 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class ByteRangeTest {
+
+    @Test
+    public void testRanges() {
+        assertNull(ByteRange.parse(null, 1000));
+        ByteRange r = ByteRange.parse("bytes=0-99", 1000);
+        assertEquals(0, r.start);
+        assertEquals(99, r.end);
+        assertEquals(100, r.length());
+        assertEquals("bytes 0-99/1000", r.contentRange(1000));
+
+        r = ByteRange.parse("bytes=500-", 1000);
+        assertEquals(500, r.start);
+        assertEquals(999, r.end);
+
+        r = ByteRange.parse("bytes=-100", 1000);
+        assertEquals(900, r.start);
+        assertEquals(999, r.end);
+
+        r = ByteRange.parse("bytes=990-5000", 1000);
+        assertEquals(990, r.start);
+        assertEquals(999, r.end);
+
+        r = ByteRange.parse("bytes=-5000", 1000);
+        assertEquals(0, r.start);
+        assertEquals(999, r.end);
+    }
+
+    @Test
+    public void testUnsatisfiable() {
+        assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=1000-", 1000));
+        assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=-0", 1000));
+        assertSame(ByteRange.UNSATISFIABLE, ByteRange.parse("bytes=-10", 0));
+    }
+
+    @Test
+    public void testIgnored() {
+        assertNull(ByteRange.parse("bytes=0-1,5-10", 1000));
+        assertNull(ByteRange.parse("bytes=10-5", 1000));
+        assertNull(ByteRange.parse("bytes=a-b", 1000));
+        assertNull(ByteRange.parse("items=0-10", 1000));
+        assertNull(ByteRange.parse("bytes=", 1000));
+    }
+}
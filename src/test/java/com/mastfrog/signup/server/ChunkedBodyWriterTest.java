@@ -0,0 +1,210 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class ChunkedBodyWriterTest {
+
+    private static final int CHUNK = 16 * 1024;
+    private static final long MAX_BUFFERED = 256 * 1024;
+    private static final long TOTAL = 32L * 1024 * 1024;
+    private final UnpooledByteBufAllocator alloc = new UnpooledByteBufAllocator(false);
+    private EventLoopGroup group;
+    private Channel server;
+    private volatile BodyWriter writer;
+    private ExportExecutor exports;
+
+    @Test
+    public void testSlowClientDoesNotMakeTheServerBuffer() throws Exception {
+        readSlowly();
+    }
+
+    @Test
+    public void testProducedOnExportThreads() throws Exception {
+        exports = new ExportExecutor(1, 0, 1);
+        readSlowly();
+        assertTrue(writer.threads.toString(), writer.threads.size() == 1
+                && writer.threads.iterator().next().startsWith("signup-export"));
+        // The permit was returned when the body was complete
+        assertTrue(exports.tryAcquire(new EmbeddedChannel()));
+    }
+
+    private void readSlowly() throws Exception {
+        long peakHeap = 0;
+        long received = 0;
+        byte[] tail = new byte[5];
+        try (Socket socket = connect()) {
+            InputStream in = socket.getInputStream();
+            byte[] buf = new byte[8192];
+            for (int n; (n = in.read(buf)) >= 0;) {
+                received += n;
+                if (received < TOTAL / 4) {
+                    // Read the first part slowly, checking what the server
+                    // is holding on to
+                    Thread.sleep(1);
+                    peakHeap = Math.max(peakHeap, alloc.metric().usedHeapMemory());
+                }
+                if (n >= tail.length) {
+                    System.arraycopy(buf, n - tail.length, tail, 0, tail.length);
+                } else {
+                    System.arraycopy(tail, n, tail, 0, tail.length - n);
+                    System.arraycopy(buf, 0, tail, tail.length - n, n);
+                }
+                if ("0\r\n\r\n".equals(new String(tail, StandardCharsets.US_ASCII)) && writer.produced.get() == TOTAL / CHUNK) {
+                    break;
+                }
+            }
+        }
+        assertEquals(TOTAL / CHUNK, writer.produced.get());
+        assertTrue("Received " + received, received > TOTAL);
+        assertTrue("Peak buffered " + writer.peakBuffered(), writer.peakBuffered() <= MAX_BUFFERED + CHUNK);
+        assertTrue("Peak heap " + peakHeap, peakHeap > 0 && peakHeap <= MAX_BUFFERED + 2 * CHUNK);
+        assertTrue(writer.released.await(10, TimeUnit.SECONDS));
+        // The last chunk is freed by the pipeline once written, which can
+        // be a moment after the writer has finished
+        for (long until = System.currentTimeMillis() + 10000; alloc.metric().usedHeapMemory() > 0
+                && System.currentTimeMillis() < until;) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, alloc.metric().usedHeapMemory());
+    }
+
+    @Test
+    public void testReleasedWhenClientGoesAway() throws Exception {
+        try (Socket socket = connect()) {
+            InputStream in = socket.getInputStream();
+            byte[] buf = new byte[8192];
+            for (int i = 0; i < 10; i++) {
+                in.read(buf);
+            }
+        }
+        assertTrue(writer.released.await(10, TimeUnit.SECONDS));
+        assertTrue(writer.produced.get() < TOTAL / CHUNK);
+    }
+
+    private Socket connect() throws Exception {
+        Socket socket = new Socket();
+        socket.setReceiveBufferSize(16 * 1024);
+        socket.connect(server.localAddress());
+        return socket;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        group = new NioEventLoopGroup(1);
+        server = new ServerBootstrap().group(group)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.ALLOCATOR, alloc)
+                .childOption(ChannelOption.SO_SNDBUF, 16 * 1024)
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(32 * 1024, 64 * 1024))
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new HttpResponseEncoder(), new ChannelInboundHandlerAdapter() {
+                            @Override
+                            public void channelActive(ChannelHandlerContext ctx) {
+                                HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+                                HttpUtil.setTransferEncodingChunked(response, true);
+                                if (exports != null) {
+                                    assertTrue(exports.tryAcquire(ctx.channel()));
+                                }
+                                writer = new BodyWriter();
+                                ctx.writeAndFlush(response).addListener(writer);
+                            }
+                        });
+                    }
+                }).bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close().sync();
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+    }
+
+    private final class BodyWriter extends ChunkedBodyWriter {
+
+        private final AtomicInteger produced = new AtomicInteger();
+        private final CountDownLatch released = new CountDownLatch(1);
+        private final Set<String> threads = ConcurrentHashMap.newKeySet();
+
+        BodyWriter() {
+            super(MAX_BUFFERED, exports);
+        }
+
+        @Override
+        protected Object next(Channel channel) {
+            threads.add(Thread.currentThread().getName());
+            if (produced.get() == TOTAL / CHUNK) {
+                return null;
+            }
+            produced.incrementAndGet();
+            ByteBuf buf = alloc.heapBuffer(CHUNK);
+            return buf.writerIndex(CHUNK);
+        }
+
+        @Override
+        protected void release() {
+            released.countDown();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server;
+
+import com.mastfrog.signup.server.model.CloseableIterator;
+import com.mastfrog.signup.server.model.Signup;
+import com.mastfrog.signup.server.model.SignupInfo;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class CsvChunksTest {
+
+    private static final List<String> CATEGORIES = Arrays.asList("community", "invest");
+
+    @Test
+    public void testHeaderOnly() {
+        assertEquals("Name,Email,community,invest,When,Email Sent,Email Address Verified\r\n",
+                drain(Collections.emptyList(), 1024, new ArrayList<>()));
+    }
+
+    @Test
+    public void testFieldsAreEscaped() {
+        List<Signup> signups = Arrays.asList(
+                signup(0, "Smith, \"Jo\"", "jo@example.com", "invest"),
+                signup(1, "=HYPERLINK(\"x\")", "two@example.com"),
+                signup(2, "Line\nbreak", "three@example.com", "community", "invest"),
+                signup(3, null, "four@example.com"));
+        String[] rows = drain(signups, 1024, new ArrayList<>()).split("\r\n");
+        assertEquals(5, rows.length);
+        assertEquals("\"Smith, \"\"Jo\"\"\",jo@example.com,false,true,2018-04-29T11:06:40Z,false,true", rows[1]);
+        assertEquals("\"'=HYPERLINK(\"\"x\"\")\",two@example.com,false,false,2018-04-29T11:06:41Z,false,true", rows[2]);
+        assertEquals("\"Line\nbreak\",three@example.com,true,true,2018-04-29T11:06:42Z,false,true", rows[3]);
+        assertEquals(",four@example.com,false,false,2018-04-29T11:06:43Z,false,true", rows[4]);
+    }
+
+    @Test
+    public void testChunksStayNearTheChunkSize() {
+        List<Signup> signups = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            signups.add(signup(i, "Person Number " + i, "person" + i + "@example.com", "community"));
+        }
+        List<Integer> sizes = new ArrayList<>();
+        String csv = drain(signups, 4096, sizes);
+        assertEquals(1001, csv.split("\r\n").length);
+        assertTrue(sizes.toString(), sizes.size() > 10 && sizes.size() < 40);
+        for (int size : sizes) {
+            assertTrue(sizes.toString(), size <= 4096);
+        }
+    }
+
+    @Test
+    public void testRowsWiderThanAChunk() {
+        List<Signup> signups = new ArrayList<>();
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 2400; i++) {
+            name.append((char) ('a' + (i % 26)));
+        }
+        for (int i = 0; i < 10; i++) {
+            signups.add(signup(i, name.toString(), "person" + i + "@example.com", "community"));
+        }
+        List<Integer> sizes = new ArrayList<>();
+        String[] rows = drain(signups, 1024, sizes).split("\r\n");
+        assertEquals(11, rows.length);
+        for (int i = 1; i < rows.length; i++) {
+            assertTrue(rows[i], rows[i].startsWith(name + ",person" + (i - 1) + "@example.com,"));
+        }
+        assertEquals(sizes.toString(), 10, sizes.size());
+    }
+
+    @Test
+    public void testSignupsClosedWhenDone() {
+        AtomicInteger closed = new AtomicInteger();
+        List<Signup> signups = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            signups.add(signup(i, "Person " + i, "person" + i + "@example.com", "a"));
+        }
+        CsvChunks chunks = new CsvChunks(CloseableIterator.of(signups.stream().onClose(closed::incrementAndGet)),
+                CATEGORIES, PooledByteBufAllocator.DEFAULT, 256);
+        for (ByteBuf buf = chunks.next(); buf != null; buf = chunks.next()) {
+            buf.release();
+        }
+        assertEquals(1, closed.get());
+        chunks.close();
+        assertEquals("Closed twice", 1, closed.get());
+    }
+
+    private static Signup signup(int i, String name, String email, String... categories) {
+        SignupInfo info = new SignupInfo(email, new HashSet<>(Arrays.asList(categories)), "token", name);
+        long when = 1525000000000L + (i * 1000L);
+        return new Signup(i, info, when, null, "agent", false, true, null);
+    }
+
+    private String drain(List<Signup> signups, int chunkSize, List<Integer> sizes) {
+        CsvChunks chunks = new CsvChunks(CloseableIterator.of(signups.stream()), CATEGORIES, PooledByteBufAllocator.DEFAULT, chunkSize);
+        ByteBuf all = Unpooled.buffer();
+        for (ByteBuf buf = chunks.next(); buf != null; buf = chunks.next()) {
+            sizes.add(buf.readableBytes());
+            assertTrue("No end to chunks", sizes.size() <= signups.size() + 1);
+            all.writeBytes(buf);
+            buf.release();
+        }
+        assertNull(chunks.next());
+        return all.toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class DeflatingChunksTest {
+
+    private final DeflaterPool pool = new DeflaterPool(6, 1);
+
+    @Test
+    public void testGzip() throws IOException {
+        List<String> chunks = chunks();
+        byte[] compressed = compress(StreamEncoding.GZIP, chunks, null);
+        assertEquals(String.join("", chunks), inflate(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+        assertTrue(compressed.length * 5 < String.join("", chunks).length());
+        // The pooled deflater is reset before it is reused
+        assertArrayEquals(compressed, compress(StreamEncoding.GZIP, chunks, null));
+    }
+
+    @Test
+    public void testDeflateIsReadableAsEachChunkArrives() throws IOException, DataFormatException {
+        List<String> chunks = chunks();
+        List<byte[]> parts = new ArrayList<>();
+        byte[] compressed = compress(StreamEncoding.DEFLATE, chunks, parts);
+        assertEquals(String.join("", chunks), inflate(new InflaterInputStream(new ByteArrayInputStream(compressed))));
+        Inflater inflater = new Inflater();
+        byte[] out = new byte[64 * 1024];
+        for (int i = 0; i < chunks.size(); i++) {
+            inflater.setInput(parts.get(i));
+            int length = inflater.inflate(out);
+            assertEquals(chunks.get(i), new String(out, 0, length, StandardCharsets.UTF_8));
+        }
+        inflater.end();
+    }
+
+    @Test
+    public void testEmptyStream() throws IOException {
+        byte[] compressed = compress(StreamEncoding.GZIP, new ArrayList<>(), null);
+        assertEquals("", inflate(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+    }
+
+    @Test
+    public void testQuality() {
+        assertEquals(1f, StreamEncoding.quality("deflate, gzip;q=0.5", "deflate"), 0);
+        assertEquals(0.5f, StreamEncoding.quality("deflate, gzip;q=0.5", "gzip", "*"), 0);
+        assertEquals(0.1f, StreamEncoding.quality("br, *;q=0.1", "gzip", "*"), 0);
+        assertEquals(0f, StreamEncoding.quality("gzip;q=0", "gzip"), 0);
+        assertEquals(-1f, StreamEncoding.quality("br", "gzip"), 0);
+    }
+
+    private static List<String> chunks() {
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int j = 0; j < 200; j++) {
+                sb.append("{\"email\":\"person").append(i * 200 + j).append("@example.com\",\"signedUpFor\":[\"invest\"]}\n");
+            }
+            result.add(sb.toString());
+        }
+        return result;
+    }
+
+    private byte[] compress(StreamEncoding encoding, List<String> chunks, List<byte[]> parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeflatingChunks deflating = new DeflatingChunks(encoding, pool, PooledByteBufAllocator.DEFAULT);
+        for (String chunk : chunks) {
+            ByteBuf in = PooledByteBufAllocator.DEFAULT.directBuffer();
+            in.writeBytes(chunk.getBytes(StandardCharsets.UTF_8));
+            byte[] part = drain(deflating.compress(in));
+            if (parts != null) {
+                parts.add(part);
+            }
+            out.write(part, 0, part.length);
+        }
+        byte[] tail = drain(deflating.finish());
+        out.write(tail, 0, tail.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] drain(ByteBuf buf) {
+        byte[] result = new byte[buf.readableBytes()];
+        buf.readBytes(result);
+        buf.release();
+        return result;
+    }
+
+    private static String inflate(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        for (int n; (n = in.read(buf)) > 0;) {
+            out.write(buf, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
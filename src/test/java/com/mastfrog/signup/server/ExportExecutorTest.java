@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class ExportExecutorTest {
+
+    @Test
+    public void testAdmissionIsBounded() throws Exception {
+        ExportExecutor exports = new ExportExecutor(2, 1, 5);
+        EmbeddedChannel a = new EmbeddedChannel();
+        EmbeddedChannel b = new EmbeddedChannel();
+        EmbeddedChannel c = new EmbeddedChannel();
+        assertTrue(exports.tryAcquire(a));
+        assertTrue(exports.tryAcquire(b));
+        assertTrue(exports.tryAcquire(c));
+        assertFalse(exports.tryAcquire(new EmbeddedChannel()));
+
+        // Released when the response is done
+        exports.release(a);
+        exports.release(a);
+        assertTrue(exports.tryAcquire(a));
+        assertFalse(exports.tryAcquire(new EmbeddedChannel()));
+
+        // Or when the client goes away
+        b.close().sync();
+        exports.release(b);
+        assertTrue(exports.tryAcquire(new EmbeddedChannel()));
+        assertFalse(exports.tryAcquire(new EmbeddedChannel()));
+    }
+
+    @Test
+    public void testPermitIsReturnedIfTheWriterCannotBeCreated() throws Exception {
+        ExportExecutor exports = new ExportExecutor(1, 0, 5);
+        EmbeddedChannel a = new EmbeddedChannel();
+        assertTrue(exports.tryAcquire(a));
+        try {
+            exports.writer(a, () -> {
+                throw new IllegalStateException("Can't read the store");
+            });
+            fail("Exception expected");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        assertTrue(exports.tryAcquire(new EmbeddedChannel()));
+    }
+}
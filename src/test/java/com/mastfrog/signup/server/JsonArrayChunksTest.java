@@ -0,0 +1,174 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mastfrog.signup.server.model.CloseableIterator;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class JsonArrayChunksTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    public void testEmpty() throws IOException {
+        assertEquals("[]", drain(Collections.emptyList(), 1024, new ArrayList<>()));
+    }
+
+    @Test
+    public void testRecordsAreCoalesced() throws IOException {
+        List<Map<String, Object>> items = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("index", i);
+            item.put("email", "person" + i + "@example.com");
+            items.add(item);
+        }
+        List<Integer> sizes = new ArrayList<>();
+        String json = drain(items, 4096, sizes);
+        assertEquals(items, mapper.readValue(json, new TypeReference<List<Map<String, Object>>>() {
+        }));
+        assertTrue(sizes.toString(), sizes.size() > 5 && sizes.size() < 20);
+        for (int size : sizes) {
+            assertTrue(sizes.toString(), size <= 4096);
+        }
+    }
+
+    @Test
+    public void testNewlineDelimited() throws IOException {
+        assertEquals("", drain(Collections.emptyList(), 1024, new ArrayList<>(), true));
+        List<Map<String, Object>> items = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            items.add(Collections.singletonMap("index", i));
+        }
+        String lines = drain(items, 256, new ArrayList<>(), true);
+        assertTrue(lines.endsWith("\n"));
+        String[] split = lines.split("\n");
+        assertEquals(100, split.length);
+        for (int i = 0; i < split.length; i++) {
+            assertEquals(items.get(i), mapper.readValue(split[i], new TypeReference<Map<String, Object>>() {
+            }));
+        }
+    }
+
+    @Test
+    public void testRecordsLargerThanAChunk() throws IOException {
+        List<Map<String, Object>> items = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("index", i);
+            item.put("email", "person" + i + "@example.com");
+            items.add(item);
+        }
+        for (boolean lines : new boolean[]{false, true}) {
+            List<Integer> sizes = new ArrayList<>();
+            String json = drain(items, 16, sizes, lines);
+            assertEquals(20, sizes.size());
+            if (lines) {
+                String[] split = json.split("\n");
+                assertEquals(20, split.length);
+                for (int i = 0; i < split.length; i++) {
+                    assertEquals(items.get(i), mapper.readValue(split[i], new TypeReference<Map<String, Object>>() {
+                    }));
+                }
+            } else {
+                assertEquals(items, mapper.readValue(json, new TypeReference<List<Map<String, Object>>>() {
+                }));
+            }
+        }
+    }
+
+    @Test
+    public void testItemsClosedWhenDoneOrFailed() throws IOException {
+        AtomicInteger closed = new AtomicInteger();
+        List<Integer> items = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            items.add(i);
+        }
+        JsonArrayChunks chunks = new JsonArrayChunks(CloseableIterator.of(items.stream()
+                .onClose(closed::incrementAndGet)), mapper, PooledByteBufAllocator.DEFAULT, 64);
+        for (ByteBuf buf = chunks.next(); buf != null; buf = chunks.next()) {
+            buf.release();
+        }
+        assertEquals(1, closed.get());
+        chunks.close();
+        assertEquals("Closed twice", 1, closed.get());
+
+        closed.set(0);
+        chunks = new JsonArrayChunks(CloseableIterator.of(items.stream().map(i -> {
+            if (i == 50) {
+                throw new IllegalStateException("Boom");
+            }
+            return i;
+        }).onClose(closed::incrementAndGet)), mapper, PooledByteBufAllocator.DEFAULT, 64);
+        try {
+            for (ByteBuf buf = chunks.next(); buf != null; buf = chunks.next()) {
+                buf.release();
+            }
+            fail("Exception not thrown");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        assertEquals(1, closed.get());
+        assertNull(chunks.next());
+    }
+
+    private String drain(List<?> items, int chunkSize, List<Integer> sizes) throws IOException {
+        return drain(items, chunkSize, sizes, false);
+    }
+
+    private String drain(List<?> items, int chunkSize, List<Integer> sizes, boolean lines) throws IOException {
+        JsonArrayChunks chunks = new JsonArrayChunks(CloseableIterator.of(items.stream()), mapper, PooledByteBufAllocator.DEFAULT,
+                chunkSize, lines);
+        ByteBuf all = Unpooled.buffer();
+        for (ByteBuf buf = chunks.next(); buf != null; buf = chunks.next()) {
+            sizes.add(buf.readableBytes());
+            assertTrue("No end to chunks", sizes.size() <= items.size() + 1);
+            all.writeBytes(buf);
+            buf.release();
+        }
+        assertNull(chunks.next());
+        return all.toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mastfrog.signup.server.model.CloseableIterator;
+import com.mastfrog.signup.server.model.Signup;
+import com.mastfrog.signup.server.model.SignupInfo;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares producing the admin listing as one chunk per record, as it used
+ * to be, against coalescing records into large pooled chunks. Run with
+ * <code>main()</code> from the test classpath, which adds the GC profiler
+ * so allocation rates are reported alongside times.
+ *
+ * @author Tim Boudreau
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListChunkingBenchmark {
+
+    @Param({"65536"})
+    public int chunkSize;
+    private final ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final List<Signup> signups = new ArrayList<>();
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < 20000; i++) {
+            VisitorCookie ck = new VisitorCookie("a8Gk2pQ", "10.0.1." + (i % 250), 1525000000000L, i, 1200L + i);
+            SignupInfo info = new SignupInfo("person" + i + "@example.com",
+                    new HashSet<>(Arrays.asList("community", "invest")),
+                    "Gk2pQa8Vb1HTr8y0aZ6a9m2bhmjNQHa9mO7WXkHTcQZdyAAAAAD1AAAA+gE=", "Person Number " + i);
+            signups.add(new Signup(i + 1, info, 1525000000000L + (i * 1000L), ck,
+                    "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/66.0.3359.139 Safari/537.36",
+                    false, false, "3kq9ab8sk1$hwFVd8aLnzEpQ7uTx0cJm$1"));
+        }
+    }
+
+    @Benchmark
+    public long chunkPerRecord() throws IOException {
+        long total = 0;
+        boolean first = true;
+        for (Signup signup : signups) {
+            byte[] record = mapper.writeValueAsBytes(signup);
+            ByteBuf buf = alloc.ioBuffer(record.length + 1);
+            buf.writeByte(first ? '[' : ',');
+            buf.writeBytes(record);
+            total += buf.readableBytes();
+            buf.release();
+            first = false;
+        }
+        return total + 1;
+    }
+
+    @Benchmark
+    public long coalescedChunks() throws IOException {
+        long total = 0;
+        JsonArrayChunks chunks = new JsonArrayChunks(CloseableIterator.of(signups.stream()), mapper, alloc, chunkSize);
+        for (ByteBuf buf = chunks.next(); buf != null; buf = chunks.next()) {
+            total += buf.readableBytes();
+            buf.release();
+        }
+        return total;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ListChunkingBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
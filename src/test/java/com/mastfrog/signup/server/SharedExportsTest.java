@@ -0,0 +1,250 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server;
+
+import com.mastfrog.settings.SettingsBuilder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.LastHttpContent;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class SharedExportsTest {
+
+    private static final int BLOCKS = 50;
+    private static final int BLOCK_SIZE = 1000;
+    // Room for four blocks
+    private final SharedExports shared = new SharedExports(4 * BLOCK_SIZE);
+    private final AtomicInteger created = new AtomicInteger();
+    private final AtomicInteger closed = new AtomicInteger();
+
+    @Test
+    public void testLateJoinerGetsTheSameBytes() throws Exception {
+        SharedExports.Reader a = shared.join(Arrays.asList("test", 1L), this::source);
+        ByteBuf aBytes = Unpooled.buffer();
+        for (int i = 0; i < 3; i++) {
+            append(aBytes, read(a));
+        }
+        SharedExports.Reader b = shared.join(Arrays.asList("test", 1L), this::source);
+        SharedExports.Reader other = shared.join(Arrays.asList("test", 2L), this::source);
+        append(Unpooled.buffer(), read(other));
+        shared.leave(other);
+        assertEquals(2, created.get());
+        assertEquals(1, closed.get());
+
+        ByteBuf bBytes = Unpooled.buffer();
+        boolean aDone = false;
+        boolean bDone = false;
+        while (!aDone || !bDone) {
+            aDone = aDone || !append(aBytes, read(a));
+            bDone = bDone || !append(bBytes, read(b));
+        }
+        assertArrayEquals(expected(), bytes(aBytes));
+        assertArrayEquals(expected(), bytes(bBytes));
+        assertEquals(2, created.get());
+        assertEquals(2, closed.get());
+        shared.leave(a);
+        shared.leave(b);
+        assertEquals(0, shared.running());
+    }
+
+    @Test
+    public void testProductionWaitsForTheSlowestReader() throws Exception {
+        SharedExports.Reader fast = shared.join(Arrays.asList("test", 1L), this::source);
+        SharedExports.Reader slow = shared.join(Arrays.asList("test", 1L), this::source);
+        AtomicInteger woken = new AtomicInteger();
+        fast.listen(woken::incrementAndGet);
+        int read = 0;
+        for (Object chunk = read(fast); chunk != ChunkedBodyWriter.PENDING; chunk = read(fast)) {
+            ((ByteBuf) chunk).release();
+            read++;
+        }
+        assertEquals(4, read);
+        // The window is full, so an identical request gets a production of
+        // its own rather than joining one it has missed the start of
+        assertEquals(0, shared.running());
+        SharedExports.Reader late = shared.join(Arrays.asList("test", 1L), this::source);
+        append(Unpooled.buffer(), read(late));
+        assertEquals(2, created.get());
+        shared.leave(late);
+
+        int before = woken.get();
+        append(Unpooled.buffer(), read(slow));
+        assertTrue("Not woken when the slowest reader freed room", woken.get() > before);
+        assertTrue(append(Unpooled.buffer(), read(fast)));
+        assertSame(ChunkedBodyWriter.PENDING, read(fast));
+
+        // Once the slow reader leaves, the fast one is no longer held back
+        shared.leave(slow);
+        ByteBuf rest = Unpooled.buffer();
+        while (append(rest, read(fast))) {
+            // keep reading
+        }
+        assertEquals((BLOCKS - 5) * BLOCK_SIZE, rest.readableBytes());
+        shared.leave(fast);
+        assertEquals(2, closed.get());
+    }
+
+    @Test
+    public void testAbandonedProductionClosesItsSource() throws Exception {
+        SharedExports.Reader a = shared.join(Arrays.asList("test", 1L), this::source);
+        SharedExports.Reader b = shared.join(Arrays.asList("test", 1L), this::source);
+        append(Unpooled.buffer(), read(a));
+        shared.leave(a);
+        assertEquals(0, closed.get());
+        shared.leave(b);
+        assertEquals(1, closed.get());
+        assertEquals(0, shared.running());
+    }
+
+    @Test
+    public void testFailureIsReportedToEveryReader() throws Exception {
+        SharedExports.Reader a = shared.join(Arrays.asList("test", 1L), () -> new Blocks(2));
+        SharedExports.Reader b = shared.join(Arrays.asList("test", 1L), () -> new Blocks(2));
+        for (SharedExports.Reader reader : Arrays.asList(a, b)) {
+            try {
+                while (append(Unpooled.buffer(), read(reader))) {
+                    // keep reading
+                }
+                fail("Exception expected");
+            } catch (IOException ex) {
+                // expected
+            }
+        }
+        assertEquals(1, closed.get());
+        assertEquals(0, shared.running());
+        shared.leave(a);
+        shared.leave(b);
+    }
+
+    @Test
+    public void testSentThroughTheWriter() throws Exception {
+        ExportExecutor exports = new ExportExecutor(2, 4, 1);
+        EmbeddedChannel[] channels = new EmbeddedChannel[]{new EmbeddedChannel(), new EmbeddedChannel()};
+        ByteBuf[] received = new ByteBuf[]{Unpooled.buffer(), Unpooled.buffer()};
+        boolean[] done = new boolean[2];
+        for (EmbeddedChannel channel : channels) {
+            assertTrue(exports.tryAcquire(channel));
+            SharedExportWriter writer = new SharedExportWriter(new SettingsBuilder().build(), exports, shared,
+                    shared.join(Arrays.asList("test", 1L), this::source));
+            writer.operationComplete(channel.newSucceededFuture());
+        }
+        for (int i = 0; i < 10000 && !(done[0] && done[1]); i++) {
+            for (int j = 0; j < channels.length; j++) {
+                channels[j].runPendingTasks();
+                for (Object msg = channels[j].readOutbound(); msg != null; msg = channels[j].readOutbound()) {
+                    HttpContent content = (HttpContent) msg;
+                    received[j].writeBytes(content.content());
+                    content.release();
+                    done[j] |= msg instanceof LastHttpContent;
+                }
+            }
+            Thread.sleep(1);
+        }
+        assertArrayEquals(expected(), bytes(received[0]));
+        assertArrayEquals(expected(), bytes(received[1]));
+        assertEquals(1, created.get());
+        assertEquals(1, closed.get());
+        assertEquals(0, shared.running());
+    }
+
+    /**
+     * Read the next chunk, producing it if need be.
+     */
+    private Object read(SharedExports.Reader reader) throws IOException {
+        Object result = shared.next(reader);
+        return result == ChunkedBodyWriter.PENDING ? shared.next(reader) : result;
+    }
+
+    private static boolean append(ByteBuf into, Object chunk) {
+        if (chunk == null) {
+            return false;
+        }
+        ByteBuf buf = (ByteBuf) chunk;
+        into.writeBytes(buf);
+        buf.release();
+        return true;
+    }
+
+    private SharedExports.Source source() {
+        return new Blocks(Integer.MAX_VALUE);
+    }
+
+    private static byte[] block(int i) {
+        byte[] result = new byte[BLOCK_SIZE];
+        Arrays.fill(result, (byte) i);
+        return result;
+    }
+
+    private static byte[] expected() {
+        ByteBuf all = Unpooled.buffer();
+        for (int i = 0; i < BLOCKS; i++) {
+            all.writeBytes(block(i));
+        }
+        return bytes(all);
+    }
+
+    private static byte[] bytes(ByteBuf buf) {
+        return Arrays.copyOf(buf.array(), buf.readableBytes());
+    }
+
+    private final class Blocks implements SharedExports.Source {
+
+        private final int failAt;
+        private int index;
+
+        Blocks(int failAt) {
+            this.failAt = failAt;
+            created.incrementAndGet();
+        }
+
+        @Override
+        public ByteBuf next() throws IOException {
+            if (index == failAt) {
+                throw new IOException("Failed at " + index);
+            } else if (index == BLOCKS) {
+                return null;
+            }
+            return Unpooled.wrappedBuffer(block(index++));
+        }
+
+        @Override
+        public void close() {
+            closed.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class SheetCacheTest {
+
+    private static final List<?> KEY_A = Arrays.asList(null, null, Arrays.asList("community"));
+    private static final List<?> KEY_B = Arrays.asList(null, null, Arrays.asList("invest"));
+    private static final List<?> KEY_C = Arrays.asList(null, null, Arrays.asList("community", "invest"));
+    private Path dir;
+    private Path rendered;
+    private SheetCache cache;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("sheet-cache-test");
+        rendered = Files.createTempFile("sheet-cache-test", ".xlsx");
+        Files.write(rendered, new byte[100]);
+        cache = new SheetCache(dir, 250, 3);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        cache.close();
+        Files.deleteIfExists(rendered);
+    }
+
+    @Test
+    public void testHitAndMiss() throws IOException {
+        Files.write(rendered, "hello".getBytes(StandardCharsets.US_ASCII));
+        assertNull(cache.open(3, KEY_A));
+        cache.put(3, KEY_A, rendered);
+        Files.delete(rendered);
+        try (FileChannel ch = cache.open(3, KEY_A)) {
+            assertNotNull(ch);
+            ByteBuffer buf = ByteBuffer.allocate(16);
+            ch.read(buf);
+            assertEquals("hello", new String(buf.array(), 0, buf.position(), StandardCharsets.US_ASCII));
+        }
+        assertNull(cache.open(2, KEY_A));
+        assertNull(cache.open(3, KEY_B));
+    }
+
+    @Test
+    public void testInvalidate() throws IOException {
+        cache.put(3, KEY_A, rendered);
+        assertEquals(100, cache.totalBytes());
+        try (FileChannel open = cache.open(3, KEY_A)) {
+            cache.invalidate(4);
+            assertEquals(0, cache.totalBytes());
+            assertNull(cache.open(3, KEY_A));
+            assertNull(cache.open(4, KEY_A));
+            // Readers already sending the old file are unaffected
+            assertEquals(100, open.size());
+        }
+        assertEquals(0, Files.list(dir).count());
+        // A render of the old contents finishing late is not cached
+        cache.put(3, KEY_A, rendered);
+        assertNull(cache.open(3, KEY_A));
+        assertEquals(0, cache.totalBytes());
+        assertTrue(Files.exists(rendered));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws IOException {
+        cache.put(3, KEY_A, rendered);
+        cache.put(3, KEY_B, rendered);
+        cache.open(3, KEY_A).close();
+        cache.put(3, KEY_C, rendered);
+        assertEquals(200, cache.totalBytes());
+        assertNull(cache.open(3, KEY_B));
+        cache.open(3, KEY_A).close();
+        cache.open(3, KEY_C).close();
+        assertEquals(2, Files.list(dir).count());
+    }
+}
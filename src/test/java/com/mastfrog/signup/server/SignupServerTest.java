@@ -24,12 +24,14 @@
 package com.mastfrog.signup.server;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.net.MediaType;
 import static com.google.common.net.MediaType.JSON_UTF_8;
 import com.google.inject.AbstractModule;
 import com.google.inject.name.Named;
 import com.google.inject.name.Names;
 import com.mastfrog.acteur.annotations.GenericApplication;
 import com.mastfrog.acteur.annotations.GenericApplicationModule;
+import com.mastfrog.acteur.headers.Headers;
 import static com.mastfrog.acteur.headers.Headers.CONTENT_DISPOSITION;
 import static com.mastfrog.acteur.headers.Headers.CONTENT_TYPE;
 import static com.mastfrog.acteur.headers.Headers.COOKIE_B;
@@ -52,20 +54,22 @@ import static com.mastfrog.signup.server.SignupServer.SETTINGS_KEY_POSSIBLE_SIGN
 import static com.mastfrog.signup.server.SignupServer.SETTINGS_KEY_STORAGE_DIR;
 import com.mastfrog.signup.server.SignupServerTest.TestSignupModule;
 import com.mastfrog.signup.server.model.Signup;
+import com.mastfrog.signup.server.model.SignupCodec;
 import com.mastfrog.signup.server.model.SignupInfo;
 import com.mastfrog.util.preconditions.Exceptions;
 import static com.mastfrog.util.collections.CollectionUtils.setOf;
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static io.netty.handler.codec.http.HttpResponseStatus.CONFLICT;
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_MODIFIED;
 import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpResponseStatus.PARTIAL_CONTENT;
 import io.netty.handler.codec.http.cookie.Cookie;
 import io.netty.handler.codec.http.cookie.DefaultCookie;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.file.FileVisitOption;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.time.Duration;
 import java.util.Optional;
@@ -73,6 +77,7 @@ import java.util.function.BiPredicate;
 import java.util.stream.Stream;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import org.junit.Test;
@@ -139,10 +144,7 @@ public class SignupServerTest {
 
         Optional<Path> pth = str.findFirst();
         assertTrue("Searching " + store, pth.isPresent());
-        Signup up;
-        try (InputStream in = java.nio.file.Files.newInputStream(pth.get(), StandardOpenOption.READ)) {
-            up = mapper.readValue(in, Signup.class);
-        }
+        Signup up = SignupCodec.decode(Files.readAllBytes(pth.get()));
         assertEquals("foo@bar.com", up.info.emailAddress);
         assertEquals(setOf("community", "invest"), up.info.signedUpFor);
         assertEquals(up.cookie, vc);
@@ -203,6 +205,126 @@ public class SignupServerTest {
         }
         assertEquals(2, ct);
 
+        // Pages come newest first, and the cursor walks back through them
+        CallResult first = harn.get("api/admin/list")
+                .addQueryPair("limit", "1")
+                .basicAuthentication("foo", "bar")
+                .setTimeout(TIMEOUT)
+                .go()
+                .await()
+                .assertStatus(OK);
+        Signup[] page = mapper.readValue(first.content(), Signup[].class);
+        assertEquals(1, page.length);
+        assertEquals("moo@food.com", page[0].info.emailAddress);
+        CharSequence cursor = first.getHeader(Headers.header(ListSignupsResource.HEADER_NEXT_CURSOR));
+        assertNotNull(cursor);
+        CallResult second = harn.get("api/admin/list")
+                .addQueryPair("limit", "1")
+                .addQueryPair("cursor", cursor.toString())
+                .basicAuthentication("foo", "bar")
+                .setTimeout(TIMEOUT)
+                .go()
+                .await()
+                .assertStatus(OK);
+        page = mapper.readValue(second.content(), Signup[].class);
+        assertEquals(1, page.length);
+        assertEquals("foo@bar.com", page[0].info.emailAddress);
+        assertNull(second.getHeader(Headers.header(ListSignupsResource.HEADER_NEXT_CURSOR)));
+
+        page = mapper.readValue(harn.get("api/admin/list")
+                .addQueryPair("category", "community")
+                .basicAuthentication("foo", "bar")
+                .setTimeout(TIMEOUT)
+                .go()
+                .await()
+                .assertStatus(OK)
+                .content(), Signup[].class);
+        assertEquals(1, page.length);
+        assertEquals("foo@bar.com", page[0].info.emailAddress);
+
+        // Several categories means signed up for all of them
+        page = mapper.readValue(harn.get("api/admin/list")
+                .addQueryPair("category", "invest,community")
+                .basicAuthentication("foo", "bar")
+                .setTimeout(TIMEOUT)
+                .go()
+                .await()
+                .assertStatus(OK)
+                .content(), Signup[].class);
+        assertEquals(1, page.length);
+        assertEquals("foo@bar.com", page[0].info.emailAddress);
+
+        page = mapper.readValue(harn.get("api/admin/list")
+                .addQueryPair("category", "invest")
+                .addQueryPair("limit", "10")
+                .basicAuthentication("foo", "bar")
+                .setTimeout(TIMEOUT)
+                .go()
+                .await()
+                .assertStatus(OK)
+                .content(), Signup[].class);
+        assertEquals(2, page.length);
+
+        harn.get("api/admin/list")
+                .addQueryPair("limit", "0")
+                .basicAuthentication("foo", "bar")
+                .setTimeout(TIMEOUT)
+                .go()
+                .await()
+                .assertStatus(BAD_REQUEST);
+
+        String lines = harn.get("api/admin/list")
+                .addHeader(Headers.header("Accept"), "application/x-ndjson")
+                .basicAuthentication("foo", "bar")
+                .setTimeout(TIMEOUT)
+                .go()
+                .await()
+                .assertStatus(OK)
+                .assertHeader(CONTENT_TYPE, ListSignupsResource.NDJSON)
+                .content();
+        String[] records = lines.split("\n");
+        assertEquals(2, records.length);
+        assertEquals("foo@bar.com", mapper.readValue(records[0], Signup.class).info.emailAddress);
+
+        // Conditional requests are answered from the store's generation
+        CallResult listed = harn.get("api/admin/list")
+                .basicAuthentication("foo", "bar")
+                .setTimeout(TIMEOUT)
+                .go()
+                .await()
+                .assertStatus(OK)
+                .assertHasHeader(Headers.LAST_MODIFIED);
+        CharSequence etag = listed.getHeader(Headers.ETAG);
+        assertNotNull(etag);
+        harn.get("api/admin/list")
+                .addHeader(Headers.IF_NONE_MATCH, etag)
+                .basicAuthentication("foo", "bar")
+                .setTimeout(TIMEOUT)
+                .go()
+                .await()
+                .assertStatus(NOT_MODIFIED);
+        harn.get("api/admin/sheet")
+                .addHeader(Headers.IF_NONE_MATCH, "\"stale\", " + etag)
+                .basicAuthentication("foo", "bar")
+                .setTimeout(TIMEOUT)
+                .go()
+                .await()
+                .assertStatus(NOT_MODIFIED);
+        harn.get("api/admin/list")
+                .addHeader(Headers.IF_MODIFIED_SINCE, listed.getHeader(Headers.LAST_MODIFIED))
+                .basicAuthentication("foo", "bar")
+                .setTimeout(TIMEOUT)
+                .go()
+                .await()
+                .assertStatus(NOT_MODIFIED);
+        harn.get("api/admin/list")
+                .addHeader(Headers.IF_NONE_MATCH, "\"stale\"")
+                .basicAuthentication("foo", "bar")
+                .setTimeout(TIMEOUT)
+                .go()
+                .await()
+                .assertStatus(OK);
+
         harn.get("api/admin/sheet")
                 .basicAuthentication("foo", "bar")
                 .setTimeout(TIMEOUT)
@@ -212,6 +334,40 @@ public class SignupServerTest {
                 .assertHasHeader(CONTENT_TYPE)
                 .assertHasHeader(CONTENT_DISPOSITION);
 
+        String csv = harn.get("api/admin/csv")
+                .basicAuthentication("foo", "bar")
+                .setTimeout(TIMEOUT)
+                .go()
+                .await()
+                .assertStatus(OK)
+                .assertHeader(CONTENT_TYPE, MediaType.CSV_UTF_8)
+                .assertHasHeader(CONTENT_DISPOSITION)
+                .content();
+        String[] rows = csv.split("\r\n");
+        assertEquals(3, rows.length);
+        assertTrue(rows[0], rows[0].startsWith("Name,Email,"));
+        assertTrue(csv, csv.contains("foo@bar.com"));
+        assertTrue(csv, csv.contains("moo@food.com"));
+
+        // The workbook rendered above is cached, so it can be sent with a
+        // length, and in ranges
+        harn.get("api/admin/sheet")
+                .basicAuthentication("foo", "bar")
+                .setTimeout(TIMEOUT)
+                .go()
+                .await()
+                .assertStatus(OK)
+                .assertHeader(Headers.header("Accept-Ranges"), "bytes")
+                .assertHasHeader(Headers.CONTENT_LENGTH);
+        CharSequence contentRange = harn.get("api/admin/sheet")
+                .addHeader(Headers.header("Range"), "bytes=0-99")
+                .basicAuthentication("foo", "bar")
+                .setTimeout(TIMEOUT)
+                .go()
+                .await()
+                .assertStatus(PARTIAL_CONTENT)
+                .getHeader(Headers.header("Content-Range"));
+        assertTrue(String.valueOf(contentRange), contentRange.toString().startsWith("bytes 0-99/"));
     }
 
     static final class TestSignupModule extends AbstractModule {
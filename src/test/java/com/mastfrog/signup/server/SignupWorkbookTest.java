@@ -0,0 +1,87 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server;
+
+import com.mastfrog.signup.server.model.Signup;
+import com.mastfrog.signup.server.model.SignupInfo;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class SignupWorkbookTest {
+
+    private static final List<String> KINDS = Arrays.asList("community", "invest");
+
+    @Test
+    public void testRowsBeyondTheWindowAreWritten() throws Exception {
+        List<Signup> signups = new ArrayList<>();
+        for (int i = 0; i < 2500; i++) {
+            SignupInfo info = new SignupInfo("person" + i + "@example.com",
+                    new HashSet<>(i % 2 == 0 ? KINDS : Arrays.asList("invest")), "token",
+                    i == 1234 ? "Someone With A Much Longer Name Than Everyone Else" : "Person " + i);
+            signups.add(new Signup(i, info, 1525000000000L + i, null, "agent", i % 3 == 0, false, null));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SignupWorkbook.write(signups.iterator(), KINDS, 100, out);
+
+        try (XSSFWorkbook workbook = new XSSFWorkbook(new ByteArrayInputStream(out.toByteArray()))) {
+            Sheet sheet = workbook.getSheet("Signups");
+            assertEquals(2500, sheet.getLastRowNum());
+            Row header = sheet.getRow(0);
+            assertEquals("Name", header.getCell(0).getStringCellValue());
+            assertEquals("community", header.getCell(2).getStringCellValue());
+            assertEquals("invest", header.getCell(3).getStringCellValue());
+            assertEquals("Email Address Verified", header.getCell(6).getStringCellValue());
+            for (int i : new int[]{0, 1, 99, 100, 1234, 2499}) {
+                Row row = sheet.getRow(i + 1);
+                Signup s = signups.get(i);
+                assertEquals(s.info.name, row.getCell(0).getStringCellValue());
+                assertEquals(s.info.emailAddress, row.getCell(1).getStringCellValue());
+                assertEquals(i % 2 == 0, row.getCell(2).getBooleanCellValue());
+                assertTrue(row.getCell(3).getBooleanCellValue());
+                assertEquals(s.when, row.getCell(4).getDateCellValue().getTime());
+                assertEquals(s.emailed, row.getCell(5).getBooleanCellValue());
+            }
+            // Wide enough for the longest value, but not wider than needed
+            int nameWidth = sheet.getColumnWidth(0) / 256;
+            assertTrue("Name width " + nameWidth, nameWidth >= 50 && nameWidth < 60);
+            int emailWidth = sheet.getColumnWidth(1) / 256;
+            assertTrue("Email width " + emailWidth, emailWidth >= "person2499@example.com".length()
+                    && emailWidth < 30);
+        }
+    }
+}
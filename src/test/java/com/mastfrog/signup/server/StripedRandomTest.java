@@ -0,0 +1,98 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class StripedRandomTest {
+
+    @Test
+    public void testReseedsPerThreadAndInterval() throws InterruptedException {
+        AtomicInteger seeds = new AtomicInteger();
+        SecureRandom counting = new SecureRandom() {
+            @Override
+            public long nextLong() {
+                seeds.incrementAndGet();
+                return super.nextLong();
+            }
+        };
+        StripedRandom rnd = new StripedRandom(counting, 10);
+        for (int i = 0; i < 25; i++) {
+            rnd.nextInt();
+        }
+        assertEquals(3, seeds.get());
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread t = new Thread(() -> {
+                for (int j = 0; j < 10; j++) {
+                    rnd.nextLong();
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(7, seeds.get());
+    }
+
+    @Test
+    public void testValues() {
+        StripedRandom rnd = new StripedRandom(new SecureRandom(), 1000);
+        rnd.setSeed(1);
+        int[] counts = new int[7];
+        for (int i = 0; i < 7000; i++) {
+            counts[rnd.nextInt(7)]++;
+        }
+        for (int count : counts) {
+            assertTrue(count > 700 && count < 1300);
+        }
+        for (int length = 0; length < 20; length++) {
+            byte[] a = new byte[length];
+            byte[] b = new byte[length];
+            rnd.nextBytes(a);
+            rnd.nextBytes(b);
+            if (length >= 4) {
+                assertNotEquals(Arrays.toString(a), Arrays.toString(b));
+            }
+        }
+        for (int i = 0; i < 1000; i++) {
+            int bits = rnd.next(5);
+            assertTrue(bits >= 0 && bits < 32);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import com.mastfrog.settings.Settings;
+import com.mastfrog.settings.SettingsBuilder;
+import static com.mastfrog.signup.server.SignupServer.SETTINGS_KEY_COMPACTION_INTERVAL_MINUTES;
+import com.mastfrog.util.preconditions.Exceptions;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Finds the signups in every one of a set of categories in a store of a
+ * million records: by decoding every record and testing it, by testing
+ * each record's header and decoding only matches, and by intersecting
+ * category bitmaps and reading only the matching records. Run with
+ * <code>main()</code> from the test classpath.
+ *
+ * @author Tim Boudreau
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CategoryQueryBenchmark {
+
+    @Param({"1000000"})
+    public int records;
+    @Param({"log", "compacted"})
+    public String storage;
+    @Param({"invest,retail", "community,employment,invest,retail"})
+    public String categories;
+    private Path dir;
+    private SignupStore store;
+    private SignupStore.Partition partition;
+    private CategoryIndex index;
+    private List<String> allOf;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("signup-categories");
+        Settings settings = new SettingsBuilder().add(SETTINGS_KEY_COMPACTION_INTERVAL_MINUTES, "0").build();
+        try (SignupStore writer = new LogStore(1, dir, settings, new SignupIds(1))) {
+            for (int i = 0; i < records; i++) {
+                Signup signup = SampleSignups.signup(i);
+                writer.append(SignupCodec.encode(signup), signup.id);
+            }
+        }
+        if ("compacted".equals(storage)) {
+            new Compactor(new StoreLayout(dir), 2, -60000).compact();
+        }
+        store = new LogStore(2, dir, settings, new SignupIds(1));
+        partition = store.partitions().get(0);
+        index = new CategoryIndex();
+        int[] ordinal = new int[1];
+        try (Stream<byte[]> all = partition.records()) {
+            all.forEachOrdered(bytes -> {
+                try {
+                    index.add(ordinal[0]++, SignupCodec.categories(bytes));
+                } catch (IOException ex) {
+                    Exceptions.chuck(ex);
+                }
+            });
+        }
+        allOf = Arrays.asList(categories.split(","));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        store.close();
+        SampleSignups.delete(dir);
+    }
+
+    @Benchmark
+    public long decodeEveryRecord() throws IOException {
+        try (Stream<byte[]> all = partition.records()) {
+            return all.map(CategoryQueryBenchmark::decode)
+                    .filter(signup -> signup.info.signedUpFor.containsAll(allOf))
+                    .count();
+        }
+    }
+
+    @Benchmark
+    public long filterHeaders() throws IOException {
+        try (Stream<byte[]> all = partition.records()) {
+            return all.filter(this::hasCategories).map(CategoryQueryBenchmark::decode).count();
+        }
+    }
+
+    @Benchmark
+    public long intersectBitmaps() throws IOException {
+        OrdinalBitmap matches = index.allOf(allOf);
+        try (Stream<byte[]> selected = partition.records(position -> {
+            int next = matches.nextSetBit(position);
+            return next < 0 ? Integer.MAX_VALUE : next;
+        })) {
+            return selected.map(CategoryQueryBenchmark::decode).count();
+        }
+    }
+
+    private boolean hasCategories(byte[] bytes) {
+        try {
+            for (String category : allOf) {
+                if (!SignupCodec.hasCategory(bytes, category)) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException ex) {
+            return Exceptions.chuck(ex);
+        }
+    }
+
+    private static Signup decode(byte[] bytes) {
+        try {
+            return SignupCodec.decode(bytes);
+        } catch (IOException ex) {
+            return Exceptions.chuck(ex);
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(CategoryQueryBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
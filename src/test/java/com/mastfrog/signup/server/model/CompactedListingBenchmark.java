@@ -0,0 +1,114 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the time to read every record of a session stored as one file per
+ * signup against the same session after compaction. Run with
+ * <code>main()</code> from the test classpath.
+ *
+ * @author Tim Boudreau
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompactedListingBenchmark {
+
+    @Param({"10000"})
+    public int records;
+    private Path dir;
+    private StoreLayout raw;
+    private StoreLayout compacted;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("signup-listing");
+        raw = new StoreLayout(dir.resolve("raw"));
+        compacted = new StoreLayout(dir.resolve("compacted"));
+        ObjectMapper mapper = new ObjectMapper();
+        Path rawSession = Files.createDirectories(raw.sessionDir(1));
+        Path compactedSession = Files.createDirectories(compacted.sessionDir(1));
+        for (int i = 0; i < records; i++) {
+            byte[] bytes = mapper.writeValueAsBytes(SampleSignups.signup(i));
+            String name = String.format("%08d", i) + FileTreeWriter.SIGNUP_SUFFIX;
+            Files.write(rawSession.resolve(name), bytes);
+            Files.write(compactedSession.resolve(name), bytes);
+        }
+        Compactor compactor = new Compactor(compacted, 2, 0);
+        compactor.compact();
+        compactor.compact();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        SampleSignups.delete(dir);
+    }
+
+    @Benchmark
+    public long listFileTree() throws IOException {
+        return sum(raw);
+    }
+
+    @Benchmark
+    public long listCompacted() throws IOException {
+        return sum(compacted);
+    }
+
+    private static long sum(StoreLayout layout) throws IOException {
+        try (Stream<byte[]> all = layout.records()) {
+            return all.mapToLong(b -> b.length).sum();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(CompactedListingBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class CompactedSegmentTest {
+
+    private Path dir;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("signup-compact");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        SampleSignups.delete(dir);
+    }
+
+    @Test
+    public void testRoundTripAndRandomAccess() throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            records.add(bytes("record-" + i + "-padding-to-fill-several-blocks-" + i * 31));
+        }
+        Path seg = dir.resolve("1" + CompactedSegment.SUFFIX);
+        assertEquals(5000, CompactedSegment.write(seg, records.iterator()));
+        try (CompactedSegment cs = new CompactedSegment(seg)) {
+            assertEquals(5000, cs.recordCount());
+            assertArrayEquals(records.get(0), cs.record(0));
+            assertArrayEquals(records.get(2741), cs.record(2741));
+            assertArrayEquals(records.get(4999), cs.record(4999));
+        }
+        try (Stream<byte[]> all = CompactedSegment.records(seg)) {
+            List<byte[]> read = all.collect(Collectors.toList());
+            assertEquals(records.size(), read.size());
+            for (int i = 0; i < read.size(); i++) {
+                assertArrayEquals(records.get(i), read.get(i));
+            }
+        }
+        assertTrue(Files.size(seg) < records.stream().mapToInt(b -> b.length).sum());
+    }
+
+    @Test
+    public void testCorruptionIsDetected() throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            records.add(bytes("record-" + i));
+        }
+        Path seg = dir.resolve("2" + CompactedSegment.SUFFIX);
+        CompactedSegment.write(seg, records.iterator());
+        try (FileChannel ch = FileChannel.open(seg, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer one = ByteBuffer.allocate(1);
+            ch.read(one, 30);
+            one.put(0, (byte) (one.get(0) ^ 0x5A));
+            one.rewind();
+            ch.write(one, 30);
+        }
+        try (CompactedSegment cs = new CompactedSegment(seg)) {
+            cs.record(5);
+            fail("Corrupt block should not be readable");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testTruncatedBlockIsDetected() throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            records.add(bytes("record-" + i));
+        }
+        Path seg = dir.resolve("3" + CompactedSegment.SUFFIX);
+        CompactedSegment.write(seg, records.iterator());
+        // Shorten the first block's compressed length, so the inflater runs
+        // out of input before the block is complete
+        try (FileChannel ch = FileChannel.open(seg, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+            ch.read(length, Integer.BYTES * 3);
+            length.flip();
+            int compressedLength = length.getInt();
+            assertTrue(compressedLength > 10);
+            length.clear();
+            length.putInt(10).flip();
+            ch.write(length, Integer.BYTES * 3);
+        }
+        try (CompactedSegment cs = new CompactedSegment(seg)) {
+            cs.record(5);
+            fail("Truncated block should not be readable");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCompactionIsTransparentToReaders() throws IOException {
+        StoreLayout layout = new StoreLayout(dir);
+        long old = 1000;
+        long current = 2000;
+        Path oldSession = Files.createDirectories(layout.sessionDir(old));
+        Path currentSession = Files.createDirectories(layout.sessionDir(current));
+        for (int i = 0; i < 10; i++) {
+            Path file = Files.write(oldSession.resolve(String.format("a-%02d", i) + FileTreeWriter.SIGNUP_SUFFIX),
+                    bytes("old-" + i));
+            Files.setLastModifiedTime(file, FileTime.fromMillis(0));
+        }
+        try (SignupLog log = new SignupLog(oldSession, 1024)) {
+            for (int i = 10; i < 20; i++) {
+                log.append(bytes("old-" + i));
+            }
+        }
+        try (Stream<Path> files = Files.list(oldSession)) {
+            for (Path p : (Iterable<Path>) files::iterator) {
+                Files.setLastModifiedTime(p, FileTime.fromMillis(0));
+            }
+        }
+        Files.write(currentSession.resolve("b" + FileTreeWriter.SIGNUP_SUFFIX), bytes("current"));
+        List<String> before = readAll(layout);
+
+        Compactor compactor = new Compactor(layout, current, 60000);
+        assertEquals(1, compactor.compact());
+        assertTrue(layout.isCompacted(old));
+        assertFalse(layout.isCompacted(current));
+        // The session directory survives until the next pass, but is not read
+        assertTrue(layout.hasSessionDir(old));
+        assertEquals(before, readAll(layout));
+
+        assertEquals(0, compactor.compact());
+        assertFalse(layout.hasSessionDir(old));
+        assertEquals(before, readAll(layout));
+        assertEquals(21, before.size());
+        assertTrue(before.contains("old-0"));
+        assertEquals("current", before.get(20));
+    }
+
+    @Test
+    public void testRecentlyWrittenSessionsAreNotCompacted() throws IOException {
+        StoreLayout layout = new StoreLayout(dir);
+        Path session = Files.createDirectories(layout.sessionDir(1000));
+        Files.write(session.resolve("a" + FileTreeWriter.SIGNUP_SUFFIX), bytes("recent"));
+        assertEquals(0, new Compactor(layout, 2000, 60000).compact());
+        assertFalse(layout.isCompacted(1000));
+    }
+
+    private static List<String> readAll(StoreLayout layout) throws IOException {
+        try (Stream<byte[]> all = layout.records()) {
+            return all.map(b -> new String(b, StandardCharsets.UTF_8)).collect(Collectors.toList());
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class EmailIndexTest {
+
+    @Test
+    public void testPutAndGetAcrossResizes() {
+        EmailIndex index = new EmailIndex(16);
+        for (int i = 0; i < 100000; i++) {
+            assertTrue(index.put(EmailIndex.hash("person" + i + "@example.com"), i));
+        }
+        assertEquals(100000, index.size());
+        for (int i = 0; i < 100000; i++) {
+            assertEquals(i, index.get(EmailIndex.hash("person" + i + "@example.com")));
+        }
+        assertFalse(index.contains(EmailIndex.hash("nobody@example.com")));
+        assertEquals(-1, index.get(EmailIndex.hash("nobody@example.com")));
+    }
+
+    @Test
+    public void testAddressesAreNormalized() {
+        EmailIndex index = new EmailIndex(16);
+        assertTrue(index.put(EmailIndex.hash("Foo@Bar.com"), 0));
+        assertFalse(index.put(EmailIndex.hash(" foo@bar.COM "), 1));
+        assertEquals(0, index.get(EmailIndex.hash("foo@bar.com")));
+    }
+}
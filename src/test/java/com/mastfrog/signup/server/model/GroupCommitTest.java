@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class GroupCommitTest {
+
+    private Path dir;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("group-commit");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        SampleSignups.delete(dir);
+    }
+
+    @Test
+    public void testConcurrentWritersShareCommits() throws Exception {
+        CommitStats stats = new CommitStats();
+        ExecutorService svc = Executors.newFixedThreadPool(8);
+        try (SignupLog log = new SignupLog(dir, 1024 * 1024)) {
+            try (GroupCommit commit = new GroupCommit(log, 20, 1000, stats)) {
+                List<CompletableFuture<Void>> all = new ArrayList<>();
+                for (int i = 0; i < 200; i++) {
+                    byte[] rec = ("record-" + i).getBytes(StandardCharsets.UTF_8);
+                    all.add(CompletableFuture.supplyAsync(() -> {
+                        try {
+                            log.append(rec);
+                        } catch (IOException ex) {
+                            throw new IllegalStateException(ex);
+                        }
+                        return commit.enqueue();
+                    }, svc).thenCompose(f -> f));
+                }
+                CompletableFuture.allOf(all.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            svc.shutdown();
+        }
+        assertEquals(200, stats.records());
+        assertTrue("Expected batching, but got " + stats.toMap(), stats.commits() < 200);
+    }
+}
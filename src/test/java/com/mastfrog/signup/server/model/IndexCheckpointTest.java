@@ -0,0 +1,116 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class IndexCheckpointTest {
+
+    private Path dir;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("checkpoint");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        SampleSignups.delete(dir);
+    }
+
+    @Test
+    public void testOnlyEntriesBelowOrdinalCountAreSaved() throws IOException {
+        EmailIndex index = new EmailIndex(16);
+        for (int i = 0; i < 1000; i++) {
+            index.put(EmailIndex.hash("person" + i + "@example.com"), i);
+        }
+        Path file = dir.resolve(IndexCheckpoint.CHECKPOINT_FILE);
+        new IndexCheckpoint(12345L, 600, index).save(file);
+
+        IndexCheckpoint loaded = IndexCheckpoint.load(file);
+        assertEquals(12345L, loaded.highWaterMark);
+        assertEquals(600, loaded.ordinalCount);
+        assertEquals(600, loaded.emails.size());
+        assertEquals(599, loaded.emails.get(EmailIndex.hash("person599@example.com")));
+        assertFalse(loaded.emails.contains(EmailIndex.hash("person600@example.com")));
+    }
+
+    @Test
+    public void testCategoriesAndPartitionsAreSaved() throws IOException {
+        CategoryIndex categories = new CategoryIndex();
+        for (int i = 0; i < 1000; i++) {
+            categories.add(i, i % 2 == 0 ? setOf("invest", "retail") : setOf("retail"));
+        }
+        Map<Long, Integer> partitions = new LinkedHashMap<>();
+        partitions.put(100L, 400);
+        partitions.put(200L, 200);
+        Path file = dir.resolve(IndexCheckpoint.CHECKPOINT_FILE);
+        new IndexCheckpoint(200L, 600, 1525132800000L, new EmailIndex(16), categories, partitions).save(file);
+
+        IndexCheckpoint loaded = IndexCheckpoint.load(file);
+        assertEquals(partitions, loaded.partitionCounts);
+        assertEquals(1525132800000L, loaded.lastModified);
+        assertEquals(600, loaded.categories.allOf(setOf("retail")).cardinality());
+        OrdinalBitmap both = loaded.categories.allOf(setOf("invest", "retail"));
+        assertEquals(300, both.cardinality());
+        assertEquals(598, both.nextSetBit(597));
+        assertEquals(-1, both.nextSetBit(599));
+    }
+
+    @Test
+    public void testCorruptCheckpointIsIgnored() throws IOException {
+        EmailIndex index = new EmailIndex(16);
+        index.put(EmailIndex.hash("foo@bar.com"), 0);
+        Path file = dir.resolve(IndexCheckpoint.CHECKPOINT_FILE);
+        new IndexCheckpoint(12345L, 1, index).save(file);
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ch.truncate(ch.size() - 3);
+        }
+        IndexCheckpoint loaded = IndexCheckpoint.load(file);
+        assertEquals(Long.MIN_VALUE, loaded.highWaterMark);
+        assertEquals(0, loaded.emails.size());
+    }
+
+    private static Set<String> setOf(String... strings) {
+        return new TreeSet<>(Arrays.asList(strings));
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checked against a BitSet, with densities on both sides of the point where
+ * containers switch from arrays to bitmaps.
+ *
+ * @author Tim Boudreau
+ */
+public class OrdinalBitmapTest {
+
+    private static final int RANGE = 5 * 65536;
+
+    @Test
+    public void testMatchesBitSet() throws IOException {
+        Random rnd = new Random(7);
+        for (int density : new int[]{1, 30, 500}) {
+            BitSet expected = new BitSet();
+            OrdinalBitmap bitmap = new OrdinalBitmap();
+            populate(rnd, density, expected, bitmap);
+            assertSame(expected, bitmap);
+            assertSame(expected, roundTrip(bitmap));
+            for (int limit : new int[]{0, 1, 65535, 65536, 65537, 100000, RANGE}) {
+                BitSet below = expected.get(0, limit);
+                assertSame(below, bitmap.below(limit));
+            }
+        }
+    }
+
+    @Test
+    public void testIntersection() {
+        Random rnd = new Random(11);
+        int[] densities = {1, 30, 500};
+        for (int a : densities) {
+            for (int b : densities) {
+                BitSet expectedA = new BitSet();
+                BitSet expectedB = new BitSet();
+                OrdinalBitmap bitmapA = new OrdinalBitmap();
+                OrdinalBitmap bitmapB = new OrdinalBitmap();
+                populate(rnd, a, expectedA, bitmapA);
+                populate(rnd, b, expectedB, bitmapB);
+                BitSet expected = (BitSet) expectedA.clone();
+                expected.and(expectedB);
+                assertSame(expected, bitmapA.and(bitmapB));
+                assertSame(expected, bitmapB.and(bitmapA));
+                // Neither input is changed
+                assertSame(expectedA, bitmapA);
+                assertSame(expectedB, bitmapB);
+            }
+        }
+    }
+
+    @Test
+    public void testAddAllWithOffset() {
+        OrdinalBitmap positions = new OrdinalBitmap();
+        positions.add(0);
+        positions.add(3);
+        positions.add(70000);
+        OrdinalBitmap bitmap = new OrdinalBitmap();
+        bitmap.add(5);
+        bitmap.addAll(positions, 10);
+        assertTrue(bitmap.contains(5));
+        assertTrue(bitmap.contains(10));
+        assertTrue(bitmap.contains(13));
+        assertTrue(bitmap.contains(70010));
+        assertFalse(bitmap.contains(0));
+        assertEquals(4, bitmap.cardinality());
+        assertEquals(-1, new OrdinalBitmap().nextSetBit(0));
+    }
+
+    private static void populate(Random rnd, int perThousand, BitSet expected, OrdinalBitmap bitmap) {
+        // Mostly in order, as ordinals are assigned, with some out of order
+        for (int i = 0; i < RANGE; i++) {
+            if (rnd.nextInt(1000) < perThousand) {
+                expected.set(i);
+                bitmap.add(i);
+            }
+        }
+        for (int i = 0; i < 100; i++) {
+            int value = rnd.nextInt(RANGE);
+            expected.set(value);
+            bitmap.add(value);
+        }
+    }
+
+    private static void assertSame(BitSet expected, OrdinalBitmap bitmap) {
+        assertEquals(expected.cardinality(), bitmap.cardinality());
+        int count = 0;
+        for (int v = bitmap.nextSetBit(0); v >= 0; v = bitmap.nextSetBit(v + 1)) {
+            assertEquals(expected.nextSetBit(count == 0 ? 0 : v), v);
+            count++;
+        }
+        assertEquals(expected.cardinality(), count);
+        for (int i = 0; i < 2000; i++) {
+            int probe = (i * 7919) % RANGE;
+            assertEquals("At " + probe, expected.get(probe), bitmap.contains(probe));
+            int next = expected.nextSetBit(probe);
+            assertEquals("Next from " + probe, next, bitmap.nextSetBit(probe));
+        }
+    }
+
+    private static OrdinalBitmap roundTrip(OrdinalBitmap bitmap) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bitmap.write(new DataOutputStream(bytes));
+        return OrdinalBitmap.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import com.mastfrog.signup.server.VisitorCookie;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Realistic-looking signups for tests and benchmarks.
+ *
+ * @author Tim Boudreau
+ */
+final class SampleSignups {
+
+    static final String[] CATEGORIES = {"community", "employment", "invest", "retail"};
+    private static final long BASE = 1525000000000L;
+
+    private SampleSignups() {
+        throw new AssertionError();
+    }
+
+    static Signup signup(int i) {
+        HashSet<String> cats = new HashSet<>();
+        for (int j = 0; j < CATEGORIES.length; j++) {
+            if ((i & (1 << j)) != 0) {
+                cats.add(CATEGORIES[j]);
+            }
+        }
+        if (cats.isEmpty()) {
+            cats.addAll(Arrays.asList(CATEGORIES));
+        }
+        VisitorCookie ck = new VisitorCookie("a8Gk2pQ", "10.0.1." + (i % 250), BASE, i, 1200L + i);
+        SignupInfo info = new SignupInfo("person" + i + "@example.com", cats,
+                "Gk2pQa8Vb1HTr8y0aZ6a9m2bhmjNQHa9mO7WXkHTcQZdyAAAAAD1AAAA+gE=", "Person Number " + i);
+        return new Signup(SignupIds.id(BASE + (i * 1000L), 1, i), info, BASE + (i * 1000L), ck,
+                "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/66.0.3359.139 Safari/537.36",
+                false, false, "3kq9ab8sk1$hwFVd8aLnzEpQ7uTx0cJm$1");
+    }
+
+    static void delete(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException exc) throws IOException {
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mastfrog.signup.server.VisitorCookie;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class SignupCodecTest {
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        for (int i = 0; i < 64; i++) {
+            Signup signup = SampleSignups.signup(i);
+            byte[] encoded = SignupCodec.encode(signup);
+            assertTrue(SignupCodec.isEncoded(encoded));
+            assertSame(signup, SignupCodec.decode(encoded));
+            assertEquals(signup.info.emailAddress, SignupCodec.emailAddress(encoded));
+        }
+    }
+
+    @Test
+    public void testHeaderFieldsReadWithoutDecoding() throws IOException {
+        for (int i = 0; i < 64; i++) {
+            Signup signup = SampleSignups.signup(i);
+            byte[] encoded = SignupCodec.encode(signup);
+            assertEquals(signup.id, SignupCodec.id(encoded));
+            assertEquals(signup.when, SignupCodec.when(encoded));
+            for (String category : SampleSignups.CATEGORIES) {
+                assertEquals(signup.info.signedUpFor.contains(category), SignupCodec.hasCategory(encoded, category));
+            }
+        }
+        SignupInfo info = new SignupInfo("a@example.com", new HashSet<>(Arrays.asList("retail", "other")),
+                "not base64!", "A");
+        byte[] encoded = SignupCodec.encode(new Signup(0, info, 5, null, null, false, false, null));
+        assertEquals(0, SignupCodec.id(encoded));
+        assertTrue(SignupCodec.hasCategory(encoded, "retail"));
+        assertTrue(SignupCodec.hasCategory(encoded, "other"));
+        assertFalse(SignupCodec.hasCategory(encoded, "invest"));
+        assertFalse(SignupCodec.hasCategory(encoded, "another"));
+    }
+
+    @Test
+    public void testUnusualValuesRoundTrip() throws IOException {
+        VisitorCookie ck = new VisitorCookie("x", "::1", -5, Long.MAX_VALUE, Long.MIN_VALUE);
+        VisitorCookie leadingZero = new VisitorCookie("y", "10.01.0.255", 5, 0, 0);
+        SignupInfo info = new SignupInfo("\u00e9l\u00e8ve@example.com", new HashSet<>(Arrays.asList("retail", "other\u2603")),
+                "not base64!", null);
+        Signup signup = new Signup(0, info, 0, ck, "Weird\tAgent\u0001 Chrome/1 \ud83d\ude00", true, true, null);
+        assertSame(signup, SignupCodec.decode(SignupCodec.encode(signup)));
+        Signup sparse = new Signup(SignupIds.id(SignupIds.EPOCH + 5, 1023, 4095), info, 1, null, null, false, false, "r");
+        assertSame(sparse, SignupCodec.decode(SignupCodec.encode(sparse)));
+        Signup zero = new Signup(Long.MAX_VALUE, info, Long.MAX_VALUE, leadingZero, "", false, false, "r");
+        assertEquals(leadingZero, SignupCodec.decode(SignupCodec.encode(zero)).cookie);
+    }
+
+    @Test
+    public void testJsonIsNotMistakenForEncoded() throws IOException {
+        byte[] json = new ObjectMapper().writeValueAsBytes(SampleSignups.signup(3));
+        assertFalse(SignupCodec.isEncoded(json));
+    }
+
+    @Test
+    public void testEncodedIsAThirdTheSizeOfJson() throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        long json = 0;
+        long binary = 0;
+        for (int i = 0; i < 100; i++) {
+            json += mapper.writeValueAsBytes(SampleSignups.signup(i)).length;
+            binary += SignupCodec.encode(SampleSignups.signup(i)).length;
+        }
+        assertTrue(json + " vs " + binary, binary * 3 <= json);
+    }
+
+    @Test
+    public void testTruncatedRecordFails() {
+        byte[] encoded = SignupCodec.encode(SampleSignups.signup(7));
+        try {
+            SignupCodec.decode(Arrays.copyOf(encoded, encoded.length / 2));
+            fail("Should not decode");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    private static void assertSame(Signup expected, Signup got) {
+        assertEquals(expected, got);
+        assertEquals(expected.info.signedUpFor, got.info.signedUpFor);
+        assertEquals(expected.info.token, got.info.token);
+        assertEquals(expected.info.name, got.info.name);
+        assertEquals(expected.validated, got.validated);
+        assertEquals(expected.revocationToken, got.revocationToken);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mastfrog.util.preconditions.ConfigurationError;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class SignupIdsTest {
+
+    @Test
+    public void testIdsAreUniqueAndIncreasing() throws InterruptedException {
+        SignupIds ids = new SignupIds(7);
+        Set<Long> all = ConcurrentHashMap.newKeySet();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread t = new Thread(() -> {
+                long last = 0;
+                for (int j = 0; j < 50000; j++) {
+                    long id = ids.next();
+                    assertTrue(id > last);
+                    assertEquals(7, SignupIds.node(id));
+                    all.add(id);
+                    last = id;
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(200000, all.size());
+    }
+
+    @Test
+    public void testLayout() {
+        long now = System.currentTimeMillis();
+        long id = SignupIds.id(now, 1023, 4095);
+        assertEquals(now, SignupIds.timestamp(id));
+        assertEquals(1023, SignupIds.node(id));
+        assertTrue(id > 0);
+        assertTrue(SignupIds.id(now + 1, 0, 0) > id);
+        long fresh = new SignupIds(3).next();
+        assertTrue(Math.abs(SignupIds.timestamp(fresh) - now) < 60000);
+    }
+
+    @Test
+    public void testStringsSortLikeIds() {
+        Set<String> seen = new HashSet<>();
+        String prev = SignupIds.toString(0);
+        assertEquals(16, prev.length());
+        for (long id : new long[]{1, 255, SignupIds.id(SignupIds.EPOCH + 1, 0, 0), Long.MAX_VALUE}) {
+            String s = SignupIds.toString(id);
+            assertEquals(16, s.length());
+            assertTrue(s.compareTo(prev) > 0);
+            assertTrue(seen.add(s));
+            prev = s;
+        }
+    }
+
+    @Test
+    public void testIdIsJsonString() throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        Signup signup = SampleSignups.signup(5);
+        String json = mapper.writeValueAsString(signup);
+        assertTrue(json, json.contains("\"id\":\"" + signup.id + "\""));
+        assertEquals(signup.id, mapper.readValue(json, Signup.class).id);
+    }
+
+    @Test(expected = ConfigurationError.class)
+    public void testNodeOutOfRange() {
+        new SignupIds(SignupIds.MAX_NODE + 1);
+    }
+}
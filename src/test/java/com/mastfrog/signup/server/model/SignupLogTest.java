@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class SignupLogTest {
+
+    private Path dir;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("signup-log");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        SampleSignups.delete(dir);
+    }
+
+    @Test
+    public void testRecordsRollAcrossSegments() throws IOException {
+        Path first;
+        Path last;
+        try (SignupLog log = new SignupLog(dir, 64)) {
+            first = log.append(bytes("record-0"));
+            for (int i = 1; i < 20; i++) {
+                log.append(bytes("record-" + i));
+            }
+            last = log.currentSegment();
+        }
+        assertNotEquals(first, last);
+        List<String> all = readAll();
+        assertEquals(20, all.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals("record-" + i, all.get(i));
+        }
+    }
+
+    @Test
+    public void testTruncatedTailIsIgnored() throws IOException {
+        Path seg;
+        try (SignupLog log = new SignupLog(dir, 1024)) {
+            log.append(bytes("one"));
+            seg = log.append(bytes("two"));
+        }
+        try (FileChannel ch = FileChannel.open(seg, StandardOpenOption.WRITE)) {
+            ch.truncate(ch.size() - 1);
+        }
+        assertEquals(1, readAll().size());
+        // A new log over the same directory must not append to the damaged segment
+        try (SignupLog log = new SignupLog(dir, 1024)) {
+            assertNotEquals(seg, log.append(bytes("three")));
+        }
+        assertTrue(readAll().contains("three"));
+    }
+
+    private List<String> readAll() throws IOException {
+        try (Stream<Path> segs = Files.list(dir)) {
+            return segs.filter(SignupLog::isSegment).sorted()
+                    .flatMap(SignupLog::records)
+                    .map(b -> new String(b, StandardCharsets.UTF_8))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import com.mastfrog.settings.Settings;
+import com.mastfrog.settings.SettingsBuilder;
+import static com.mastfrog.signup.server.SignupServer.SETTINGS_KEY_COMPACTION_INTERVAL_MINUTES;
+import static com.mastfrog.signup.server.SignupServer.SETTINGS_KEY_COMPACTION_MIN_IDLE_MINUTES;
+import static com.mastfrog.signup.server.SignupServer.SETTINGS_KEY_DURABILITY;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The same behavior, checked against each store.
+ *
+ * @author Tim Boudreau
+ */
+public class SignupStoreTest {
+
+    private static final long DAY_ONE = 1525132800000L; // 2018-05-01T00:00Z
+    private static final long DAY = 24 * 60 * 60 * 1000;
+    private Path dir;
+    private Path tmp;
+    private int sequence;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("signup-stores");
+        tmp = Files.createDirectories(dir.resolve("tmp"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        SampleSignups.delete(dir);
+    }
+
+    private Settings settings(Durability durability) throws IOException {
+        return settings(durability, 0);
+    }
+
+    private Settings settings(Durability durability, int minIdleMinutes) throws IOException {
+        return new SettingsBuilder()
+                .add(SETTINGS_KEY_DURABILITY, durability.name())
+                .add(SETTINGS_KEY_COMPACTION_INTERVAL_MINUTES, "0")
+                .add(SETTINGS_KEY_COMPACTION_MIN_IDLE_MINUTES, Integer.toString(minIdleMinutes))
+                .build();
+    }
+
+    private long id(long when) {
+        return SignupIds.id(when, 1, sequence++);
+    }
+
+    @Test
+    public void testInMemoryStore() throws IOException {
+        try (SignupStore store = new InMemoryStore()) {
+            assertEquals(0, store.lastModified());
+            appendAndRead(store);
+            assertFalse(store.partitions().get(0).isClosed());
+            assertTrue(store.indexCheckpoint() == null);
+        }
+    }
+
+    @Test
+    public void testFileTreeStore() throws IOException {
+        try (SignupStore store = new FileTreeStore(1000, dir, tmp, false, settings(Durability.SYNC))) {
+            appendAndRead(store);
+        }
+        try (SignupStore store = new FileTreeStore(2000, dir, tmp, false, settings(Durability.NONE))) {
+            assertSessionsReopen(store);
+        }
+    }
+
+    @Test
+    public void testLogStore() throws IOException {
+        try (SignupStore store = new LogStore(1000, dir, settings(Durability.GROUP), new SignupIds(1))) {
+            appendAndRead(store);
+        }
+        try (SignupStore store = new LogStore(2000, dir, settings(Durability.NONE), new SignupIds(1))) {
+            assertSessionsReopen(store);
+        }
+    }
+
+    @Test
+    public void testRangeQueriesArePruned() throws IOException {
+        try (SignupStore store = new InMemoryStore()) {
+            assertRangeQueries(store);
+        }
+        try (SignupStore store = new FileTreeStore(1000, dir, tmp, false, settings(Durability.NONE))) {
+            assertRangeQueries(store);
+        }
+        SampleSignups.delete(dir);
+        Files.createDirectories(tmp);
+        try (SignupStore store = new LogStore(1000, dir, settings(Durability.NONE), new SignupIds(1))) {
+            assertRangeQueries(store);
+        }
+        // Only the second day's bucket is listed
+        StoreLayout layout = new StoreLayout(dir);
+        List<Path> files;
+        try (Stream<Path> inRange = layout.sessionFiles(1000, DAY_ONE + DAY, DAY_ONE + (2 * DAY))) {
+            files = inRange.collect(Collectors.toList());
+        }
+        assertFalse(files.isEmpty());
+        for (Path file : files) {
+            assertEquals(TimePartitioning.DAY.bucket(DAY_ONE + DAY), file.getParent().getFileName().toString());
+        }
+        // After compaction, range reads skip blocks from other days
+        assertEquals(1, new Compactor(layout, 2000, -60000).compact());
+        assertTrue(layout.isCompacted(1000));
+        try (SignupStore store = new LogStore(2000, dir, settings(Durability.NONE), new SignupIds(1))) {
+            assertEquals(Arrays.asList("day-2-0", "day-2-1", "day-2-2"),
+                    readRange(store, DAY_ONE + DAY, DAY_ONE + (2 * DAY)));
+            assertEquals(9, readAll(store).size());
+        }
+    }
+
+    @Test
+    public void testNodesCanShareASession() throws IOException {
+        // Two nodes launched in the same millisecond, writing the same
+        // timestamps into one directory
+        try (SignupStore a = new FileTreeStore(1000, dir, tmp, false, settings(Durability.NONE));
+                SignupStore b = new FileTreeStore(1000, dir, tmp, false, settings(Durability.NONE))) {
+            a.append(bytes("a"), SignupIds.id(DAY_ONE, 1, 0)).join();
+            b.append(bytes("b"), SignupIds.id(DAY_ONE, 2, 0)).join();
+            assertEquals(Arrays.asList("a", "b"), readAll(a));
+        }
+        try (SignupStore a = new LogStore(1000, dir, settings(Durability.NONE), new SignupIds(1));
+                SignupStore b = new LogStore(1000, dir, settings(Durability.NONE), new SignupIds(2))) {
+            a.append(bytes("log-a"), SignupIds.id(DAY_ONE, 1, 1)).join();
+            b.append(bytes("log-b"), SignupIds.id(DAY_ONE, 2, 1)).join();
+            a.append(bytes("log-a2"), SignupIds.id(DAY_ONE, 1, 2)).join();
+            assertEquals(5, readAll(b).size());
+            assertTrue(readAll(b).containsAll(Arrays.asList("log-a", "log-b", "log-a2")));
+        }
+    }
+
+    @Test
+    public void testAnotherNodesSessionIsOpenUntilIdle() throws IOException {
+        try (SignupStore other = new LogStore(1000, dir, settings(Durability.NONE), new SignupIds(1));
+                SignupStore ours = new LogStore(2000, dir, settings(Durability.NONE, 10), new SignupIds(2))) {
+            other.append(bytes("other"), id(DAY_ONE)).join();
+            assertFalse(ours.partitions().get(0).isClosed());
+        }
+        try (SignupStore ours = new LogStore(2000, dir, settings(Durability.NONE, 0), new SignupIds(2))) {
+            assertTrue(ours.partitions().get(0).isClosed());
+        }
+    }
+
+    @Test
+    public void testRawExportMatchesRecords() throws IOException {
+        try (SignupStore store = new InMemoryStore()) {
+            assertRangeQueries(store);
+            assertExportMatchesRecords(store);
+        }
+        try (SignupStore store = new FileTreeStore(1000, dir, tmp, false, settings(Durability.NONE))) {
+            assertRangeQueries(store);
+            assertExportMatchesRecords(store);
+        }
+        SampleSignups.delete(dir);
+        Files.createDirectories(tmp);
+        try (SignupStore store = new LogStore(1000, dir, settings(Durability.NONE), new SignupIds(1))) {
+            assertRangeQueries(store);
+        }
+        // A record torn by a crash is skipped, and the next block still read
+        Path segment;
+        try (Stream<Path> files = Files.walk(dir)) {
+            segment = files.filter(SignupLog::isSegment).sorted().findFirst().get();
+        }
+        Files.write(segment, new byte[]{0, 0, 1, 0, 'x'}, StandardOpenOption.APPEND);
+        try (SignupStore store = new LogStore(2000, dir, settings(Durability.NONE), new SignupIds(1))) {
+            assertExportMatchesRecords(store);
+            assertEquals(9, exported(store, Long.MIN_VALUE, Long.MAX_VALUE).size());
+        }
+        new Compactor(new StoreLayout(dir), 3000, -60000).compact();
+        try (SignupStore store = new LogStore(3000, dir, settings(Durability.NONE), new SignupIds(1))) {
+            assertExportMatchesRecords(store);
+        }
+    }
+
+    @Test
+    public void testSelectedPositionsMatchRecords() throws IOException {
+        try (SignupStore store = new InMemoryStore()) {
+            assertRangeQueries(store);
+            assertSelectionsMatchRecords(store);
+        }
+        try (SignupStore store = new FileTreeStore(1000, dir, tmp, false, settings(Durability.NONE))) {
+            assertRangeQueries(store);
+            assertSelectionsMatchRecords(store);
+        }
+        SampleSignups.delete(dir);
+        Files.createDirectories(tmp);
+        try (SignupStore store = new LogStore(1000, dir, settings(Durability.NONE), new SignupIds(1))) {
+            assertRangeQueries(store);
+        }
+        Path segment;
+        try (Stream<Path> files = Files.walk(dir)) {
+            segment = files.filter(SignupLog::isSegment).sorted().findFirst().get();
+        }
+        Files.write(segment, new byte[]{0, 0, 1, 0, 'x'}, StandardOpenOption.APPEND);
+        try (SignupStore store = new LogStore(2000, dir, settings(Durability.NONE), new SignupIds(1))) {
+            assertSelectionsMatchRecords(store);
+        }
+        new Compactor(new StoreLayout(dir), 3000, -60000).compact();
+        try (SignupStore store = new LogStore(3000, dir, settings(Durability.NONE), new SignupIds(1))) {
+            assertSelectionsMatchRecords(store);
+        }
+    }
+
+    private void assertSelectionsMatchRecords(SignupStore store) throws IOException {
+        for (SignupStore.Partition partition : store.partitions()) {
+            List<String> all;
+            try (Stream<byte[]> records = partition.records()) {
+                all = records.map(b -> new String(b, StandardCharsets.UTF_8)).collect(Collectors.toList());
+            }
+            for (int stride = 1; stride <= all.size() + 1; stride++) {
+                TreeSet<Integer> positions = new TreeSet<>();
+                List<String> expected = new ArrayList<>();
+                for (int i = stride - 1; i < all.size(); i += stride) {
+                    positions.add(i);
+                    expected.add(all.get(i));
+                }
+                List<String> selected;
+                try (Stream<byte[]> records = partition.records(pos -> {
+                    Integer next = positions.ceiling(pos);
+                    return next == null ? Integer.MAX_VALUE : next;
+                })) {
+                    selected = records.map(b -> new String(b, StandardCharsets.UTF_8)).collect(Collectors.toList());
+                }
+                assertEquals("Stride " + stride, expected, selected);
+            }
+        }
+    }
+
+    private void assertExportMatchesRecords(SignupStore store) throws IOException {
+        assertEquals(readAll(store), exported(store, Long.MIN_VALUE, Long.MAX_VALUE));
+        assertEquals(readRange(store, DAY_ONE + DAY, DAY_ONE + (2 * DAY)),
+                exported(store, DAY_ONE + DAY, DAY_ONE + (2 * DAY)));
+    }
+
+    private static List<String> exported(SignupStore store, long from, long to) throws IOException {
+        // What the raw export resource puts on the wire
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (Stream<RawExport.Chunk> chunks = store.export(from, to)) {
+            for (RawExport.Chunk chunk : (Iterable<RawExport.Chunk>) chunks::iterator) {
+                out.write(chunk.prefix);
+                if (chunk.file != null) {
+                    out.write(Arrays.copyOf(Files.readAllBytes(chunk.file), (int) chunk.count));
+                }
+            }
+        }
+        List<String> result = new ArrayList<>();
+        RawExport.read(new ByteArrayInputStream(out.toByteArray()))
+                .forEachRemaining(bytes -> result.add(new String(bytes, StandardCharsets.UTF_8)));
+        return result;
+    }
+
+    private void assertRangeQueries(SignupStore store) throws IOException {
+        for (int day = 1; day <= 3; day++) {
+            for (int i = 0; i < 3; i++) {
+                store.append(bytes("day-" + day + "-" + i), id(DAY_ONE + ((day - 1) * DAY) + (i * 1000))).join();
+            }
+        }
+        assertEquals(Arrays.asList("day-2-0", "day-2-1", "day-2-2"),
+                readRange(store, DAY_ONE + DAY, DAY_ONE + (2 * DAY)));
+        assertEquals(Arrays.asList("day-1-0", "day-1-1", "day-1-2", "day-2-0", "day-2-1", "day-2-2"),
+                readRange(store, Long.MIN_VALUE, DAY_ONE + (2 * DAY)));
+        assertEquals(Collections.emptyList(), readRange(store, DAY_ONE + (5 * DAY), Long.MAX_VALUE));
+    }
+
+    private static List<String> readRange(SignupStore store, long from, long to) throws IOException {
+        try (Stream<byte[]> all = store.records(from, to)) {
+            return all.map(b -> new String(b, StandardCharsets.UTF_8)).collect(Collectors.toList());
+        }
+    }
+
+    private void appendAndRead(SignupStore store) throws IOException {
+        for (int i = 0; i < 10; i++) {
+            store.append(bytes("record-" + i), id(DAY_ONE + i)).join();
+        }
+        assertEquals(10, readAll(store).size());
+        assertEquals("record-0", readAll(store).get(0));
+        assertEquals("record-9", readAll(store).get(9));
+        assertEquals(1, store.partitions().size());
+        assertTrue(store.lastModified() > 0);
+    }
+
+    private void assertSessionsReopen(SignupStore store) throws IOException {
+        store.append(bytes("later"), id(DAY_ONE + 100)).join();
+        List<SignupStore.Partition> partitions = store.partitions();
+        assertEquals(2, partitions.size());
+        assertEquals(1000, partitions.get(0).key());
+        assertTrue(partitions.get(0).isClosed());
+        assertFalse(partitions.get(1).isClosed());
+        List<String> all = readAll(store);
+        assertEquals(11, all.size());
+        assertEquals("later", all.get(10));
+    }
+
+    private static List<String> readAll(SignupStore store) throws IOException {
+        try (Stream<byte[]> all = store.records()) {
+            return all.map(b -> new String(b, StandardCharsets.UTF_8)).collect(Collectors.toList());
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
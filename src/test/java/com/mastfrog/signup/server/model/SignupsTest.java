@@ -0,0 +1,156 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.model;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.giulius.ShutdownHookRegistry;
+import com.mastfrog.settings.SettingsBuilder;
+import com.mastfrog.signup.server.token.TestTokens;
+import com.mastfrog.util.strings.RandomStrings;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class SignupsTest {
+
+    @Test
+    public void testRetryAfterFailedSyncIsADuplicate() throws Exception {
+        FailFirstSync store = new FailFirstSync();
+        Signups signups = signups(store);
+        SignupInfo info = new SignupInfo("someone@example.com", new HashSet<>(Arrays.asList("invest")),
+                "token", "Someone");
+        HttpEvent evt = (HttpEvent) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{HttpEvent.class}, (proxy, method, args) -> null);
+        try {
+            signups.add(info, null, evt).get(10, TimeUnit.SECONDS);
+            fail("Sync should have failed");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IOException);
+        }
+        // The record was appended, and will be there after a restart
+        assertTrue(signups.isSignedUp(info.emailAddress));
+        try {
+            signups.add(info, null, evt).get(10, TimeUnit.SECONDS);
+            fail("Retry should be a duplicate");
+        } catch (ExecutionException ex) {
+            assertTrue(String.valueOf(ex.getCause()), ex.getCause() instanceof DuplicateSignupException);
+        }
+        try (Stream<byte[]> records = store.records()) {
+            assertEquals(1, records.collect(Collectors.toList()).size());
+        }
+    }
+
+    @Test
+    public void testLastModifiedIsTheNewestRecordAtStartup() throws Exception {
+        FailFirstSync store = new FailFirstSync();
+        store.failed.set(true);
+        Signups signups = signups(store);
+        assertEquals(0, signups.lastModified());
+        HttpEvent evt = (HttpEvent) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{HttpEvent.class}, (proxy, method, args) -> null);
+        for (int i = 0; i < 3; i++) {
+            signups.add(new SignupInfo("someone" + i + "@example.com", new HashSet<>(Arrays.asList("invest")),
+                    "token", "Someone"), null, evt).get(10, TimeUnit.SECONDS);
+            Thread.sleep(2);
+        }
+        long newest;
+        try (Stream<byte[]> records = store.records()) {
+            newest = records.mapToLong(record -> {
+                try {
+                    return SignupCodec.when(record);
+                } catch (IOException ex) {
+                    throw new AssertionError(ex);
+                }
+            }).max().getAsLong();
+        }
+        assertEquals(newest, signups.lastModified());
+        assertEquals(newest, signups(store).lastModified());
+    }
+
+    private static Signups signups(SignupStore store) throws IOException {
+        return new Signups(store, new SignupIds(1), new ObjectMapper(), new Random(1),
+                new RandomStrings(new Random(2)), TestTokens.generator(new Random(3)), new SettingsBuilder().build(),
+                ShutdownHookRegistry.get());
+    }
+
+    private static final class FailFirstSync implements SignupStore {
+
+        private final InMemoryStore delegate = new InMemoryStore();
+        private final AtomicBoolean failed = new AtomicBoolean();
+
+        @Override
+        public CompletableFuture<Void> append(byte[] record, long id) throws IOException {
+            CompletableFuture<Void> result = delegate.append(record, id);
+            if (failed.compareAndSet(false, true)) {
+                result = new CompletableFuture<>();
+                result.completeExceptionally(new IOException("Sync failed"));
+            }
+            return result;
+        }
+
+        @Override
+        public List<Partition> partitions() throws IOException {
+            return delegate.partitions();
+        }
+
+        @Override
+        public long currentPartition() {
+            return delegate.currentPartition();
+        }
+
+        @Override
+        public long lastModified() throws IOException {
+            throw new AssertionError("Should not need to ask the store");
+        }
+
+        @Override
+        public Map<String, Object> metrics() {
+            return delegate.metrics();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.token;
+
+import com.mastfrog.giulius.DeploymentMode;
+import com.mastfrog.settings.SettingsBuilder;
+import static com.mastfrog.signup.server.token.TokensConfig.TOKEN_BYTES_LENGTH;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares issuing a token the way TokenGenerator used to, with a fresh
+ * array, buffer wrappers and shuffled primes for each one, against the
+ * current scratch-array version. Run with <code>main()</code> from the test
+ * classpath; the GC profiler's <code>gc.alloc.rate.norm</code> is the bytes
+ * allocated per token.
+ *
+ * @author Tim Boudreau
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenGenerationBenchmark {
+
+    private TokensConfig config;
+    private TokenGenerator generator;
+
+    @Setup
+    public void setup() throws IOException {
+        config = new TokensConfig(new SettingsBuilder().build(), DeploymentMode.DEVELOPMENT, new Random());
+        generator = new TokenGenerator(config);
+    }
+
+    @Benchmark
+    public String previous() {
+        return previousNewToken(config);
+    }
+
+    @Benchmark
+    public String scratchArrays() {
+        return generator.newToken();
+    }
+
+    static String previousNewToken(TokensConfig config) {
+        byte[] result = new byte[TOKEN_BYTES_LENGTH];
+        ByteBuffer parts = ByteBuffer.wrap(result).order(ByteOrder.LITTLE_ENDIAN);
+        IntBuffer randomInts = ByteBuffer.wrap(config.randomBytes(16)).asIntBuffer();
+        int firstInt = randomInts.get();
+        int secondInt = randomInts.get();
+        int thirdInt = Math.abs(randomInts.get() % 256);
+        long[] primes = config.pickPrimes(2);
+        long multiplier = Math.abs(randomInts.get());
+        for (int i = 0; i < primes.length; i++) {
+            multiplier *= primes[i];
+        }
+        long counter = config.counter();
+        multiplier += config.primesAdd() + counter + (thirdInt & 0xFF);
+        parts.putInt((int) multiplier);
+        parts.putInt((int) (counter % 2147483647));
+        byte[] ih = new byte[4];
+        ByteBuffer.wrap(ih).asIntBuffer().put(config.interfacesHash());
+        parts.put(new byte[]{ih[3], ih[2], ih[1]});
+        parts.putInt((int) (multiplier >> 32));
+        parts.putInt(ByteBuffer.wrap(config.processSpecific()).asIntBuffer().get());
+        parts.putInt(firstInt);
+        parts.putInt(secondInt);
+        parts.put((byte) thirdInt);
+        long timeOffset = ((config.currentTimeMillis() - config.baseTimestamp()) / config.timeOffsetDivisor());
+        for (int i = 0; i < 6; i++) {
+            result[28 + i] = (byte) (timeOffset >> (i * 8));
+        }
+        // The offset used to be extracted again here and discarded
+        byte[] b = new byte[8];
+        System.arraycopy(result, 28, b, 0, 6);
+        ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN).getLong();
+        parts.position(34);
+        parts.putShort(config.pid());
+        return Base64.getEncoder().encodeToString(result);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(TokenGenerationBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
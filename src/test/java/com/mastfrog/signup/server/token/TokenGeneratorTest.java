@@ -0,0 +1,75 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.token;
+
+import com.mastfrog.giulius.DeploymentMode;
+import com.mastfrog.settings.SettingsBuilder;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class TokenGeneratorTest {
+
+    @Test
+    public void testTokensAreValid() throws IOException {
+        TokensConfig config = new TokensConfig(new SettingsBuilder().build(), DeploymentMode.DEVELOPMENT, new Random(5));
+        TokenGenerator gen = new TokenGenerator(config);
+        Tokens tokens = new Tokens(config);
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < 2000; i++) {
+            long before = System.currentTimeMillis();
+            String tok = gen.newToken();
+            assertEquals(tok, 48, tok.length());
+            assertTrue(tok, seen.add(tok));
+            assertTrue(tok, tokens.isValid(tok));
+            long after = System.currentTimeMillis();
+            long ts = tokens.extractTimestamp(tok);
+            assertTrue(tok + " " + ts, ts <= after && before - ts < config.timeOffsetDivisor());
+            byte[] bytes = Base64.getDecoder().decode(tok);
+            assertEquals(config.pid(), (short) ((bytes[34] & 0xFF) | (bytes[35] << 8)));
+        }
+    }
+
+    @Test
+    public void testTwoPrimesAreDifferent() throws IOException {
+        TokensConfig config = new TokensConfig(new SettingsBuilder().add(TokensConfig.SETTINGS_KEY_TOKEN_PRIMES_LIST, "3,5")
+                .build(), DeploymentMode.DEVELOPMENT, new Random(7));
+        for (int i = 0; i < 100; i++) {
+            long product = config.twoPrimesProduct();
+            assertNotEquals(9, product);
+            assertNotEquals(25, product);
+            assertEquals(15, product);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.token;
+
+import com.mastfrog.giulius.DeploymentMode;
+import com.mastfrog.settings.SettingsBuilder;
+import static com.mastfrog.signup.server.token.TokensConfig.TOKEN_BYTES_LENGTH;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares checking a submitted token the way signup used to, decoding it
+ * once for isValid() and again for extractTimestamp(), against the single
+ * pass validTimestamp(). Tokens are real ones, well-formed forgeries, or the
+ * kind of garbage bots post. Run with <code>main()</code> from the test
+ * classpath, which adds the GC profiler.
+ *
+ * @author Tim Boudreau
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenValidationBenchmark {
+
+    private static final long LONG_MASK = 0x00000000ffffffffL;
+    @Param({"valid", "forged", "garbage"})
+    public String kind;
+    private final String[] submitted = new String[1024];
+    private TokensConfig config;
+    private Tokens tokens;
+    private int index;
+
+    @Setup
+    public void setup() throws IOException {
+        config = new TokensConfig(new SettingsBuilder().build(), DeploymentMode.DEVELOPMENT, new Random());
+        tokens = new Tokens(config);
+        TokenGenerator gen = new TokenGenerator(config);
+        Random rnd = new Random(3);
+        for (int i = 0; i < submitted.length; i++) {
+            switch (kind) {
+                case "valid":
+                    submitted[i] = gen.newToken();
+                    break;
+                case "forged":
+                    byte[] bytes = new byte[TOKEN_BYTES_LENGTH];
+                    rnd.nextBytes(bytes);
+                    submitted[i] = Base64.getEncoder().encodeToString(bytes);
+                    break;
+                default:
+                    StringBuilder sb = new StringBuilder();
+                    for (int j = rnd.nextInt(120); j >= 0; j--) {
+                        sb.append((char) (32 + rnd.nextInt(95)));
+                    }
+                    submitted[i] = sb.toString();
+            }
+        }
+    }
+
+    private String next() {
+        return submitted[index++ & (submitted.length - 1)];
+    }
+
+    @Benchmark
+    public long previous() {
+        String tok = next();
+        return previousIsValid(config, tok) ? previousExtractTimestamp(config, tok) : 0;
+    }
+
+    @Benchmark
+    public long singlePass() {
+        return tokens.validTimestamp(next());
+    }
+
+    static long previousExtractTimestamp(TokensConfig config, String tok) {
+        try {
+            return previousExtractTimestamp(config, Base64.getDecoder().decode(tok));
+        } catch (IllegalArgumentException ex) {
+            return 0;
+        }
+    }
+
+    static long previousExtractTimestamp(TokensConfig config, byte[] bytes) {
+        if (bytes.length < TOKEN_BYTES_LENGTH) {
+            return 0;
+        }
+        byte[] b = new byte[8];
+        System.arraycopy(bytes, 28, b, 0, 6);
+        long timeOffset = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN).getLong();
+        return (timeOffset * config.timeOffsetDivisor()) + config.baseTimestamp();
+    }
+
+    static boolean previousIsValid(TokensConfig config, String tok) {
+        try {
+            byte[] bytes = Base64.getDecoder().decode(tok);
+            if (bytes.length < TOKEN_BYTES_LENGTH) {
+                return false;
+            }
+            ByteBuffer buf = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            long multiplierLsdw = buf.getInt(0) & LONG_MASK;
+            int seq = buf.getInt(4);
+            int ih = ByteBuffer.wrap(new byte[]{0, bytes[8], bytes[9], bytes[10]})
+                    .order(ByteOrder.LITTLE_ENDIAN).getInt(0);
+            long multiplierMsdw = buf.getInt(11) & LONG_MASK;
+            long timestamp = previousExtractTimestamp(config, bytes);
+            int thirdRand = (int) bytes[27] & 0xFF;
+            long multiplied = multiplierLsdw | (multiplierMsdw << 32);
+            multiplied -= config.primesAdd() + thirdRand + seq;
+            int divCount = config.divisibleCount(multiplied);
+            long skew = timestamp - config.currentTimeMillis();
+            return ih % 91 == 0 && skew < config.maxDateFutureSkew() && divCount >= 2
+                    && timestamp >= config.baseTimestamp();
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(TokenValidationBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2018 Tim Boudreau.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.mastfrog.signup.server.token;
+
+import com.mastfrog.giulius.DeploymentMode;
+import com.mastfrog.settings.SettingsBuilder;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class TokensTest {
+
+    private TokensConfig config;
+    private TokenGenerator gen;
+    private Tokens tokens;
+
+    @Before
+    public void setup() throws IOException {
+        config = new TokensConfig(new SettingsBuilder().build(), DeploymentMode.DEVELOPMENT, new Random(11));
+        gen = new TokenGenerator(config);
+        tokens = new Tokens(config);
+    }
+
+    @Test
+    public void testValidTokenTimestamp() {
+        for (int i = 0; i < 500; i++) {
+            String tok = gen.newToken();
+            long ts = tokens.validTimestamp(tok);
+            assertTrue(tok, ts != 0);
+            assertEquals(tok, tokens.extractTimestamp(tok), ts);
+            assertTrue(tok, tokens.isValid(tok));
+        }
+    }
+
+    @Test
+    public void testGarbageIsRejected() {
+        String tok = gen.newToken();
+        String[] garbage = {null, "", "x", tok.substring(1), tok + "A", tok + "==",
+            tok.substring(0, 47) + "=", tok.substring(0, 47) + "-", tok.substring(0, 20) + "\u00e9" + tok.substring(21),
+            "<script>alert(1)</script><script>alert(1)</script>"};
+        for (String g : garbage) {
+            assertEquals(g, 0, tokens.validTimestamp(g));
+            assertFalse(g, tokens.isValid(g));
+            assertEquals(g, 0, tokens.extractTimestamp(g));
+        }
+    }
+
+    @Test
+    public void testForgedTokensAreRejected() {
+        Random rnd = new Random(13);
+        byte[] bytes = new byte[TokensConfig.TOKEN_BYTES_LENGTH];
+        int rejected = 0;
+        for (int i = 0; i < 1000; i++) {
+            rnd.nextBytes(bytes);
+            if (tokens.validTimestamp(Base64.getEncoder().encodeToString(bytes)) == 0) {
+                rejected++;
+            }
+        }
+        assertEquals(1000, rejected);
+        // Right interface hash and timestamp, but a multiplier that is not
+        // a product of our primes
+        byte[] real = Base64.getDecoder().decode(gen.newToken());
+        for (int i = 0; i < 100; i++) {
+            byte[] forged = real.clone();
+            forged[0] += 1 + rnd.nextInt(200);
+            assertEquals(0, tokens.validTimestamp(Base64.getEncoder().encodeToString(forged)));
+        }
+        // From too far in the future
+        byte[] future = real.clone();
+        future[33] = 0x7F;
+        assertEquals(0, tokens.validTimestamp(Base64.getEncoder().encodeToString(future)));
+    }
+}